@@ -0,0 +1,82 @@
+package com.luneruniverse.nettymux.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+import com.luneruniverse.nettymux.byteprotocol.ByteProtocol;
+import com.luneruniverse.nettymux.byteprotocol.HttpByteProtocol;
+import com.luneruniverse.nettymux.byteprotocol.MagicByteProtocol;
+import com.luneruniverse.nettymux.byteprotocol.NettyByteMultiplexer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.ssl.SslContext;
+
+/**
+ * Shared setup for the benchmarks
+ */
+final class BenchmarkProtocols {
+	
+	/**
+	 * The first packet of every plaintext connection, which is detected by the last registered protocol
+	 */
+	static final byte[] HTTP_REQUEST = ("GET /index.html HTTP/1.1\r\n" +
+			"Host: localhost\r\n" +
+			"User-Agent: nettymux-benchmarks\r\n" +
+			"Accept: */*\r\n" +
+			"\r\n").getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * Hides that a protocol is a {@link com.luneruniverse.nettymux.byteprotocol.PrefixByteProtocol}, so the
+	 * multiplexer has to fall back to calling {@link #attemptDetection(ByteBuf)} on each protocol in turn
+	 */
+	private static final class LinearByteProtocol implements ByteProtocol {
+		private final ByteProtocol protocol;
+		
+		private LinearByteProtocol(ByteProtocol protocol) {
+			this.protocol = protocol;
+		}
+		
+		@Override
+		public String getAlpnName() {
+			return protocol.getAlpnName();
+		}
+		
+		@Override
+		public ProtocolDetectionResult attemptDetection(ByteBuf in) {
+			return protocol.attemptDetection(in);
+		}
+		
+		@Override
+		public void bind(ChannelHandlerContext ctx) {
+			protocol.bind(ctx);
+		}
+	}
+	
+	private BenchmarkProtocols() {
+		
+	}
+	
+	/**
+	 * @param protocols The total number of protocols; all but the last are {@link MagicByteProtocol}s that won't match
+	 * {@link #HTTP_REQUEST}, and the last is a {@link HttpByteProtocol}
+	 * @param linear If the protocols should be checked one at a time instead of by the compiled matcher
+	 * @param ssl The SSL data for {@link NettyByteMultiplexer.Builder#optionalSsl(SslContext)}, or null for plaintext
+	 * @param bound Run when a protocol is bound
+	 * @return The multiplexer's template
+	 */
+	static NettyByteMultiplexer.Template byteTemplate(int protocols, boolean linear, SslContext ssl, Runnable bound) {
+		NettyByteMultiplexer.Builder builder = NettyByteMultiplexer.builder();
+		for (int i = 0; i < protocols - 1; i++) {
+			ByteProtocol protocol = new MagicByteProtocol("magic" + i,
+					String.format("MAGIC%02d", i).getBytes(StandardCharsets.US_ASCII), true, ctx -> bound.run());
+			builder.addProtocol(linear ? new LinearByteProtocol(protocol) : protocol);
+		}
+		ByteProtocol http = new HttpByteProtocol(ctx -> bound.run());
+		builder.addProtocol(linear ? new LinearByteProtocol(http) : http);
+		if (ssl != null)
+			builder.optionalSsl(ssl);
+		return builder.buildTemplate();
+	}
+	
+}
@@ -0,0 +1,96 @@
+package com.luneruniverse.nettymux.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luneruniverse.nettymux.byteprotocol.NettyByteMultiplexer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.pkitesting.CertificateBuilder;
+import io.netty.pkitesting.X509Bundle;
+
+/**
+ * Detects a plaintext HTTP request on a new {@link EmbeddedChannel} per operation
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteMultiplexerBenchmark {
+	
+	/**
+	 * The number of registered protocols; the request always matches the last one
+	 */
+	@Param({"1", "4", "16", "64"})
+	public int protocols;
+	/**
+	 * The number of bytes per read, or 0 to send the whole request in one read
+	 */
+	@Param({"1", "8", "0"})
+	public int fragment;
+	/**
+	 * <code>plaintext</code> for no SSL, or <code>optionalSsl</code> to also check for a ClientHello
+	 */
+	@Param({"plaintext", "optionalSsl"})
+	public String mode;
+	/**
+	 * <code>compiled</code> to let the multiplexer match prefixes itself, or <code>linear</code> to check each
+	 * protocol one at a time
+	 */
+	@Param({"compiled", "linear"})
+	public String engine;
+	
+	private NettyByteMultiplexer.Template template;
+	private ByteBuf request;
+	private int bound;
+	
+	@Setup
+	public void setup() throws Exception {
+		SslContext ssl = null;
+		if (mode.equals("optionalSsl")) {
+			X509Bundle cert = new CertificateBuilder()
+					.subject("CN=localhost")
+					.setIsCertificateAuthority(true)
+					.buildSelfSigned();
+			ssl = SslContextBuilder.forServer(cert.toTempCertChainPem(), cert.toTempPrivateKeyPem()).build();
+		}
+		template = BenchmarkProtocols.byteTemplate(protocols, engine.equals("linear"), ssl, () -> bound++);
+		request = Unpooled.unreleasableBuffer(Unpooled.directBuffer().writeBytes(BenchmarkProtocols.HTTP_REQUEST));
+	}
+	
+	@TearDown
+	public void tearDown() {
+		if (bound == 0)
+			throw new IllegalStateException("No protocol was bound!");
+	}
+	
+	@Benchmark
+	public int detect() {
+		EmbeddedChannel channel = new EmbeddedChannel(template.newHandler());
+		int length = request.readableBytes();
+		int step = fragment == 0 ? length : fragment;
+		for (int offset = 0; offset < length; offset += step)
+			channel.writeInbound(request.retainedSlice(offset, Math.min(step, length - offset)));
+		channel.finishAndReleaseAll();
+		return bound;
+	}
+	
+}
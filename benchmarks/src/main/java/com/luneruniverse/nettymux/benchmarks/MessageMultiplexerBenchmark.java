@@ -0,0 +1,86 @@
+package com.luneruniverse.nettymux.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luneruniverse.nettymux.messageprotocol.MagicMessageProtocol;
+import com.luneruniverse.nettymux.messageprotocol.NettyMessageMultiplexer;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Detects a sequence of messages on a new {@link EmbeddedChannel} per operation
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageMultiplexerBenchmark {
+	
+	/**
+	 * The number of registered protocols; the messages always match the last one
+	 */
+	@Param({"1", "4", "16", "64"})
+	public int protocols;
+	/**
+	 * The number of messages it takes to detect the protocol, each of which is a separate read
+	 */
+	@Param({"1", "4", "16"})
+	public int messages;
+	
+	private NettyMessageMultiplexer.Template<String> template;
+	private List<String> sequence;
+	private int bound;
+	
+	@Setup
+	public void setup() {
+		NettyMessageMultiplexer.Builder<String> builder = NettyMessageMultiplexer.builder(String.class);
+		for (int i = 0; i < protocols; i++)
+			builder.addProtocol(new MagicMessageProtocol<>(sequence(i), true, ctx -> bound++));
+		template = builder.buildTemplate();
+		sequence = sequence(protocols - 1);
+	}
+	
+	/**
+	 * All sequences share every message except the last, so every protocol stays a candidate until the end
+	 */
+	private List<String> sequence(int protocol) {
+		List<String> sequence = new ArrayList<>();
+		for (int i = 0; i < messages - 1; i++)
+			sequence.add("message" + i);
+		sequence.add("protocol" + protocol);
+		return sequence;
+	}
+	
+	@TearDown
+	public void tearDown() {
+		if (bound == 0)
+			throw new IllegalStateException("No protocol was bound!");
+	}
+	
+	@Benchmark
+	public int detect() {
+		EmbeddedChannel channel = new EmbeddedChannel(template.newHandler());
+		for (String message : sequence)
+			channel.writeInbound(message);
+		channel.finishAndReleaseAll();
+		return bound;
+	}
+	
+}
@@ -0,0 +1,95 @@
+package com.luneruniverse.nettymux.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.luneruniverse.nettymux.byteprotocol.NettyByteMultiplexer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.pkitesting.CertificateBuilder;
+import io.netty.pkitesting.X509Bundle;
+
+/**
+ * Performs a full TLS handshake through the <code>optionalSsl</code> path of a {@link NettyByteMultiplexer} and then
+ * detects a HTTP request, with a new pair of {@link EmbeddedChannel}s per operation
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SslMultiplexerBenchmark {
+	
+	/**
+	 * The number of registered protocols; the request always matches the last one
+	 */
+	@Param({"1", "16"})
+	public int protocols;
+	
+	private NettyByteMultiplexer.Template template;
+	private SslContext clientSsl;
+	private ByteBuf request;
+	private int bound;
+	
+	@Setup
+	public void setup() throws Exception {
+		X509Bundle cert = new CertificateBuilder()
+				.subject("CN=localhost")
+				.setIsCertificateAuthority(true)
+				.buildSelfSigned();
+		SslContext ssl = SslContextBuilder.forServer(cert.toTempCertChainPem(), cert.toTempPrivateKeyPem()).build();
+		template = BenchmarkProtocols.byteTemplate(protocols, false, ssl, () -> bound++);
+		clientSsl = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+		request = Unpooled.unreleasableBuffer(Unpooled.directBuffer().writeBytes(BenchmarkProtocols.HTTP_REQUEST));
+	}
+	
+	@TearDown
+	public void tearDown() {
+		if (bound == 0)
+			throw new IllegalStateException("No protocol was bound!");
+	}
+	
+	@Benchmark
+	public int handshakeAndDetect() {
+		EmbeddedChannel server = new EmbeddedChannel(template.newHandler());
+		EmbeddedChannel client = new EmbeddedChannel(clientSsl.newHandler(server.alloc()));
+		client.writeOutbound(request.retainedDuplicate());
+		int before = bound;
+		while (bound == before && (pump(client, server) | pump(server, client)));
+		client.finishAndReleaseAll();
+		server.finishAndReleaseAll();
+		return bound;
+	}
+	
+	/**
+	 * @return If any data was moved
+	 */
+	private static boolean pump(EmbeddedChannel from, EmbeddedChannel to) {
+		boolean moved = false;
+		ByteBuf buf;
+		while ((buf = from.readOutbound()) != null) {
+			to.writeInbound(buf);
+			moved = true;
+		}
+		return moved;
+	}
+	
+}
@@ -0,0 +1,202 @@
+package com.luneruniverse.nettymux;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.byteprotocol.ByteProtocol;
+import com.luneruniverse.nettymux.byteprotocol.NettyByteMultiplexer;
+import com.luneruniverse.nettymux.messageprotocol.MessageProtocol;
+import com.luneruniverse.nettymux.messageprotocol.NettyMessageMultiplexer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Limits how many channels a protocol accepts, for shedding load before the protocol's pipeline is set up. Add one
+ * with {@link NettyByteMultiplexer.Builder#addProtocol(ByteProtocol, AdmissionLimit)} or
+ * {@link NettyMessageMultiplexer.Builder#addProtocol(MessageProtocol, AdmissionLimit)}; once the protocol is detected
+ * on a channel that's over the limit, the protocol isn't bound, and the rejection runs instead (by default, closing
+ * the channel).<br>
+ * <br>
+ * The counters are shared by every channel and event loop using this limit, and are updated without locking. A
+ * single limit can be added for multiple protocols, in which case they share the counters.
+ */
+public final class AdmissionLimit {
+	
+	/**
+	 * Creates {@link AdmissionLimit}s
+	 */
+	public static class Builder {
+		private int maxConnections;
+		private long intervalNanos;
+		private long burstNanos;
+		private Consumer<ChannelHandlerContext> rejection;
+		
+		private Builder() {
+			this.rejection = ChannelHandlerContext::close;
+		}
+		
+		/**
+		 * @param maxConnections The maximum number of open channels admitted by this limit, or 0 for no limit (the
+		 * default)
+		 * @return this
+		 * @throws IllegalArgumentException If <code>maxConnections</code> is negative
+		 */
+		public Builder maxConnections(int maxConnections) throws IllegalArgumentException {
+			if (maxConnections < 0)
+				throw new IllegalArgumentException("maxConnections must not be negative!");
+			this.maxConnections = maxConnections;
+			return this;
+		}
+		/**
+		 * Limit how quickly new channels are admitted with a token bucket, which holds up to <code>burst</code>
+		 * tokens and gains <code>perSecond</code> tokens each second (by default, there is no limit)
+		 * @param perSecond The sustained number of channels admitted per second
+		 * @param burst The number of channels that can be admitted at once after a quiet period
+		 * @return this
+		 * @throws IllegalArgumentException If <code>perSecond</code> or <code>burst</code> isn't positive
+		 */
+		public Builder maxConnectionRate(double perSecond, int burst) throws IllegalArgumentException {
+			if (!(perSecond > 0))
+				throw new IllegalArgumentException("perSecond must be positive!");
+			if (burst <= 0)
+				throw new IllegalArgumentException("burst must be positive!");
+			this.intervalNanos = Math.max(1, (long) (1_000_000_000 / perSecond));
+			this.burstNanos = intervalNanos * burst;
+			return this;
+		}
+		
+		/**
+		 * @param rejection Called with the multiplexer's context instead of binding the protocol; it should close the
+		 * channel once it's done
+		 * @return this
+		 */
+		public Builder rejectWith(Consumer<ChannelHandlerContext> rejection) {
+			this.rejection = Objects.requireNonNull(rejection, "rejection");
+			return this;
+		}
+		/**
+		 * Write <code>response</code> to rejected channels, then close them. The bytes are written from the
+		 * multiplexer's context, so with {@link NettyByteMultiplexer} they're sent as they are (or encrypted, if the
+		 * protocol was selected by ALPN), without any codec being set up.
+		 * @param response The bytes to send, such as a protocol's error frame
+		 * @return this
+		 */
+		public Builder rejectWith(byte[] response) {
+			ByteBuf buf = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(response.clone()));
+			return rejectWith(ctx -> ctx.writeAndFlush(buf.duplicate()).addListener(ChannelFutureListener.CLOSE));
+		}
+		/**
+		 * Respond to rejected channels with an empty HTTP/1.1 503 Service Unavailable response, then close them. This
+		 * is for HTTP/1.x protocols detected by {@link NettyByteMultiplexer}, before an HTTP codec is added.
+		 * @return this
+		 * @see #rejectWith(byte[])
+		 */
+		public Builder rejectWithServiceUnavailable() {
+			return rejectWith(SERVICE_UNAVAILABLE);
+		}
+		
+		/**
+		 * @return An {@link AdmissionLimit} with these settings
+		 */
+		public AdmissionLimit build() {
+			return new AdmissionLimit(this);
+		}
+	}
+	
+	private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "Connection: close\r\n"
+			+ "\r\n").getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * @return A {@link Builder} to create an {@link AdmissionLimit}
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+	
+	private final int maxConnections;
+	private final long intervalNanos;
+	private final long burstNanos;
+	private final Consumer<ChannelHandlerContext> rejection;
+	private final AtomicInteger connections;
+	private final AtomicLong bucket;
+	private final ChannelFutureListener release;
+	
+	private AdmissionLimit(Builder builder) {
+		this.maxConnections = builder.maxConnections;
+		this.intervalNanos = builder.intervalNanos;
+		this.burstNanos = builder.burstNanos;
+		this.rejection = builder.rejection;
+		this.connections = new AtomicInteger();
+		// The bucket starts out full
+		this.bucket = new AtomicLong(System.nanoTime() - burstNanos);
+		this.release = future -> connections.decrementAndGet();
+	}
+	
+	/**
+	 * @return The number of open channels admitted by this limit, which are only counted if there is a maximum
+	 */
+	public int getConnections() {
+		return connections.get();
+	}
+	
+	/**
+	 * Admit <code>channel</code> if it's within the limits, counting it until it closes
+	 * @param channel The channel whose protocol was detected
+	 * @return If the channel was admitted; if not, {@link #reject(ChannelHandlerContext)} should be called
+	 */
+	public boolean tryAdmit(Channel channel) {
+		if (maxConnections > 0) {
+			int current;
+			do {
+				current = connections.get();
+				if (current >= maxConnections)
+					return false;
+			} while (!connections.compareAndSet(current, current + 1));
+		}
+		if (intervalNanos > 0 && !takeToken()) {
+			if (maxConnections > 0)
+				connections.decrementAndGet();
+			return false;
+		}
+		if (maxConnections > 0)
+			channel.closeFuture().addListener(release);
+		return true;
+	}
+	
+	/**
+	 * The bucket is stored as the time at which it was empty, so a token is available once a full interval has
+	 * passed since then, and taking one moves that time forward by an interval
+	 * @return If a token was taken
+	 */
+	private boolean takeToken() {
+		long now = System.nanoTime();
+		long full = now - burstNanos;
+		for (;;) {
+			long empty = bucket.get();
+			long next = (empty - full > 0 ? empty : full) + intervalNanos;
+			if (next - now > 0)
+				return false;
+			if (bucket.compareAndSet(empty, next))
+				return true;
+		}
+	}
+	
+	/**
+	 * Stop reading from a channel that wasn't admitted and run the rejection
+	 * @param ctx The context of the multiplexer that detected the protocol
+	 */
+	public void reject(ChannelHandlerContext ctx) {
+		ctx.channel().config().setAutoRead(false);
+		rejection.accept(ctx);
+	}
+	
+}
@@ -0,0 +1,58 @@
+package com.luneruniverse.nettymux;
+
+import java.util.List;
+
+import com.luneruniverse.nettymux.byteprotocol.ByteProtocol;
+import com.luneruniverse.nettymux.byteprotocol.ByteProtocolDetector;
+import com.luneruniverse.nettymux.messageprotocol.MessageProtocol;
+import com.luneruniverse.nettymux.messageprotocol.MessageProtocolDetector;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+
+/**
+ * Passes what a protocol learned during detection (such as a parsed header) to the pipeline it binds, so the bound
+ * handlers don't have to parse the same data again. When a protocol is detected, the multiplexer asks it for an
+ * attachment ({@link ByteProtocol#getAttachment(ByteBuf)}, {@link ByteProtocolDetector#getAttachment()},
+ * {@link MessageProtocol#getAttachment(List)}, or {@link MessageProtocolDetector#getAttachment()}) and, if there is
+ * one, stores it in the channel attribute {@link #KEY} before calling
+ * {@link ByteProtocol#bind(ChannelHandlerContext)}. When multiplexers are nested, the attribute holds the attachment
+ * of the most recently detected protocol that had one.
+ */
+public final class DetectionAttachment {
+	
+	/**
+	 * The channel attribute holding the attachment
+	 */
+	public static final AttributeKey<Object> KEY = AttributeKey.valueOf(DetectionAttachment.class, "attachment");
+	
+	private DetectionAttachment() {
+		
+	}
+	
+	/**
+	 * @param <T> The type of attachment
+	 * @param channel The channel
+	 * @param type The type of attachment
+	 * @return The channel's attachment, or null if it doesn't have one of this type
+	 */
+	public static <T> T get(Channel channel, Class<T> type) {
+		if (!channel.hasAttr(KEY))
+			return null;
+		Object attachment = channel.attr(KEY).get();
+		return type.isInstance(attachment) ? type.cast(attachment) : null;
+	}
+	
+	/**
+	 * Store the attachment of a detected protocol
+	 * @param channel The channel
+	 * @param attachment The attachment, or null to keep the channel's current one (if any)
+	 */
+	public static void set(Channel channel, Object attachment) {
+		if (attachment != null)
+			channel.attr(KEY).set(attachment);
+	}
+	
+}
@@ -0,0 +1,57 @@
+package com.luneruniverse.nettymux;
+
+/**
+ * Detection was abandoned because the connection hit one of the multiplexer's limits before a protocol was detected
+ * and bound. This is passed to {@link io.netty.channel.ChannelHandler#exceptionCaught} and the channel is closed.
+ * @see Type
+ */
+@SuppressWarnings("serial")
+public class DetectionLimitException extends InvalidProtocolException {
+	
+	/**
+	 * Which limit was hit
+	 * @see #BUFFERED_BYTES
+	 * @see #BUFFERED_MESSAGES
+	 * @see #TIMEOUT
+	 * @see #PENDING_HANDSHAKES
+	 * @see #BIND_TIMEOUT
+	 */
+	public enum Type {
+		/**
+		 * More bytes were received than the maximum number of bytes that can be buffered during detection
+		 */
+		BUFFERED_BYTES,
+		/**
+		 * More messages were received than the maximum number of messages that can be buffered during detection
+		 */
+		BUFFERED_MESSAGES,
+		/**
+		 * No protocol was detected within the detection timeout
+		 */
+		TIMEOUT,
+		/**
+		 * An SSL handshake was requested while the maximum number of SSL handshakes were already in progress
+		 */
+		PENDING_HANDSHAKES,
+		/**
+		 * A protocol was detected, but binding it asynchronously didn't complete within the bind timeout
+		 */
+		BIND_TIMEOUT
+	}
+	
+	private final Type type;
+	
+	public DetectionLimitException(Type type) {
+		super(type.toString());
+		this.type = type;
+	}
+	
+	/**
+	 * @return Which limit was hit
+	 * @see Type
+	 */
+	public Type getType() {
+		return type;
+	}
+	
+}
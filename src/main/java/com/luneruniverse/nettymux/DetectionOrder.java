@@ -0,0 +1,110 @@
+package com.luneruniverse.nettymux;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.luneruniverse.nettymux.byteprotocol.NettyByteMultiplexer;
+import com.luneruniverse.nettymux.messageprotocol.NettyMessageMultiplexer;
+
+/**
+ * The order in which a multiplexer template tries its protocols, shared by every channel and event loop using the
+ * template. A fixed order is the order the protocols were added in. An adaptive order counts how often each protocol
+ * is detected and, once per interval, publishes a new order with the most frequently detected protocols first.
+ * Counting doesn't lock, and each published order is an immutable array that handlers read without locking.<br>
+ * <br>
+ * When multiple protocols would be detected from the same input, the first one tried wins, so reordering protocols
+ * that overlap would change which one is bound. A protocol is therefore only moved ahead of one that was added
+ * before it if the two were declared mutually exclusive, with {@link NettyByteMultiplexer.Builder}'s or
+ * {@link NettyMessageMultiplexer.Builder}'s <code>mutuallyExclusive</code>.
+ */
+public final class DetectionOrder {
+	
+	private final long[] exclusive;
+	private final long intervalNanos;
+	private final LongAdder[] hits;
+	private final double[] scores;
+	private final AtomicLong lastReorder;
+	private volatile int[] order;
+	
+	/**
+	 * @param protocols The number of protocols, at most 64
+	 * @param exclusiveGroups Each element has the bits of a group of protocols that never match the same input
+	 * @param intervalNanos How often to reorder the protocols, or 0 to keep them in the order they were added
+	 */
+	public DetectionOrder(int protocols, long[] exclusiveGroups, long intervalNanos) {
+		this.exclusive = new long[protocols];
+		for (long group : exclusiveGroups) {
+			for (int i = 0; i < protocols; i++) {
+				if ((group & 1L << i) != 0)
+					exclusive[i] |= group;
+			}
+		}
+		this.intervalNanos = intervalNanos;
+		this.order = new int[protocols];
+		for (int i = 0; i < protocols; i++)
+			order[i] = i;
+		if (intervalNanos > 0) {
+			this.hits = new LongAdder[protocols];
+			for (int i = 0; i < protocols; i++)
+				hits[i] = new LongAdder();
+			this.scores = new double[protocols];
+			this.lastReorder = new AtomicLong(System.nanoTime());
+		} else {
+			this.hits = null;
+			this.scores = null;
+			this.lastReorder = null;
+		}
+	}
+	
+	/**
+	 * @return The indices of the protocols in the order they should be tried, which must not be modified
+	 */
+	public int[] get() {
+		return order;
+	}
+	
+	/**
+	 * Count a detection of a protocol, and reorder the protocols if the interval has passed
+	 * @param protocol The index of the detected protocol
+	 */
+	public void hit(int protocol) {
+		if (hits == null)
+			return;
+		hits[protocol].increment();
+		long now = System.nanoTime();
+		long last = lastReorder.get();
+		if (now - last >= intervalNanos && lastReorder.compareAndSet(last, now))
+			reorder();
+	}
+	
+	/**
+	 * Publish a new order, trying the protocols with the highest scores first as long as every protocol still comes
+	 * after the ones that were added before it and overlap with it. The scores halve every interval, so the order
+	 * follows changes in traffic.
+	 */
+	private synchronized void reorder() {
+		int protocols = scores.length;
+		for (int i = 0; i < protocols; i++)
+			scores[i] = scores[i] / 2 + hits[i].sumThenReset();
+		
+		int[] order = new int[protocols];
+		long placed = 0;
+		for (int k = 0; k < protocols; k++) {
+			int best = -1;
+			for (int i = 0; i < protocols; i++) {
+				long bit = 1L << i;
+				if ((placed & bit) != 0)
+					continue;
+				long overlappingBefore = (bit - 1) & ~exclusive[i];
+				if ((overlappingBefore & ~placed) != 0)
+					continue;
+				if (best == -1 || scores[i] > scores[best])
+					best = i;
+			}
+			order[k] = best;
+			placed |= 1L << best;
+		}
+		this.order = order;
+	}
+	
+}
@@ -0,0 +1,37 @@
+package com.luneruniverse.nettymux;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollIoHandler;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+
+/**
+ * The epoll parts of {@link NettyMuxServer.Transport#EPOLL}, kept separate so the epoll classes are only loaded when
+ * they're on the classpath
+ */
+final class EpollTransport {
+	
+	private EpollTransport() {
+		
+	}
+	
+	static boolean isAvailable() {
+		return Epoll.isAvailable();
+	}
+	
+	static IoHandlerFactory newIoHandlerFactory() {
+		return EpollIoHandler.newFactory();
+	}
+	
+	static Class<? extends ServerChannel> serverChannelClass() {
+		return EpollServerSocketChannel.class;
+	}
+	
+	static ChannelOption<Boolean> reusePort() {
+		return EpollChannelOption.SO_REUSEPORT;
+	}
+	
+}
@@ -0,0 +1,37 @@
+package com.luneruniverse.nettymux;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.uring.IoUring;
+import io.netty.channel.uring.IoUringChannelOption;
+import io.netty.channel.uring.IoUringIoHandler;
+import io.netty.channel.uring.IoUringServerSocketChannel;
+
+/**
+ * The io_uring parts of {@link NettyMuxServer.Transport#IO_URING}, kept separate so the io_uring classes are only
+ * loaded when they're on the classpath
+ */
+final class IoUringTransport {
+	
+	private IoUringTransport() {
+		
+	}
+	
+	static boolean isAvailable() {
+		return IoUring.isAvailable();
+	}
+	
+	static IoHandlerFactory newIoHandlerFactory() {
+		return IoUringIoHandler.newFactory();
+	}
+	
+	static Class<? extends ServerChannel> serverChannelClass() {
+		return IoUringServerSocketChannel.class;
+	}
+	
+	static ChannelOption<Boolean> reusePort() {
+		return IoUringChannelOption.SO_REUSEPORT;
+	}
+	
+}
@@ -0,0 +1,384 @@
+package com.luneruniverse.nettymux;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.byteprotocol.NettyByteMultiplexer;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+/**
+ * Serves a {@link NettyByteMultiplexer.Template} on a port, taking care of the {@link ServerBootstrap}: the fastest
+ * available transport is used, each incoming channel gets its own multiplexer, and shutting down can wait for the open
+ * connections to finish. With a native transport, several listeners can share the port with
+ * <code>SO_REUSEPORT</code> so the kernel spreads accepting connections over multiple event loops.<br>
+ * <br>
+ * The native transports need their native libraries on the classpath (for example,
+ * <code>netty-transport-native-epoll</code> with the <code>linux-x86_64</code> classifier); otherwise, NIO is used.
+ */
+public final class NettyMuxServer {
+	
+	/**
+	 * The I/O transports that a {@link NettyMuxServer} can use
+	 */
+	public enum Transport {
+		/**
+		 * Linux epoll, which needs <code>netty-transport-native-epoll</code>
+		 */
+		EPOLL("io.netty.channel.epoll.Epoll"),
+		/**
+		 * Linux io_uring, which needs <code>netty-transport-native-io_uring</code>
+		 */
+		IO_URING("io.netty.channel.uring.IoUring"),
+		/**
+		 * Java NIO, which is always available
+		 */
+		NIO(null);
+		
+		private final String className;
+		
+		private Transport(String className) {
+			this.className = className;
+		}
+		
+		/**
+		 * @return If this transport's classes and native library are present and work on this system
+		 */
+		public boolean isAvailable() {
+			if (className == null)
+				return true;
+			try {
+				Class.forName(className, false, Transport.class.getClassLoader());
+				return this == EPOLL ? EpollTransport.isAvailable() : IoUringTransport.isAvailable();
+			} catch (ClassNotFoundException | LinkageError e) {
+				return false;
+			}
+		}
+		
+		/**
+		 * @return If multiple listeners can share a port with this transport
+		 * @see Builder#listeners(int)
+		 */
+		public boolean supportsReusePort() {
+			return this != NIO;
+		}
+		
+		/**
+		 * @return The first available transport out of {@link #EPOLL}, {@link #IO_URING}, and {@link #NIO}
+		 */
+		public static Transport best() {
+			for (Transport transport : values()) {
+				if (transport.isAvailable())
+					return transport;
+			}
+			return NIO;
+		}
+		
+		private IoHandlerFactory newIoHandlerFactory() {
+			switch (this) {
+				case EPOLL:
+					return EpollTransport.newIoHandlerFactory();
+				case IO_URING:
+					return IoUringTransport.newIoHandlerFactory();
+				default:
+					return NioIoHandler.newFactory();
+			}
+		}
+		
+		private Class<? extends ServerChannel> serverChannelClass() {
+			switch (this) {
+				case EPOLL:
+					return EpollTransport.serverChannelClass();
+				case IO_URING:
+					return IoUringTransport.serverChannelClass();
+				default:
+					return NioServerSocketChannel.class;
+			}
+		}
+		
+		private ChannelOption<Boolean> reusePort() {
+			return this == EPOLL ? EpollTransport.reusePort() : IoUringTransport.reusePort();
+		}
+	}
+	
+	/**
+	 * Fired as a user event on every open connection when {@link NettyMuxServer#shutdownGracefully(long, TimeUnit)}
+	 * starts, so the bound protocols can finish what they're doing and close the connection (for example, after the
+	 * current HTTP response)
+	 */
+	public static final class DrainEvent {
+		/**
+		 * The only instance
+		 */
+		public static final DrainEvent INSTANCE = new DrainEvent();
+		
+		private DrainEvent() {
+			
+		}
+	}
+	
+	/**
+	 * Creates and starts {@link NettyMuxServer}s
+	 */
+	public static class Builder {
+		private final NettyByteMultiplexer.Template mux;
+		private Transport transport;
+		private int threads;
+		private int listeners;
+		private int backlog;
+		private boolean tcpNoDelay;
+		private ByteBufAllocator allocator;
+		private Consumer<Channel> initializer;
+		
+		private Builder(NettyByteMultiplexer.Template mux) {
+			this.mux = Objects.requireNonNull(mux, "mux");
+			this.transport = Transport.best();
+			this.listeners = 1;
+			this.backlog = DEFAULT_BACKLOG;
+			this.tcpNoDelay = true;
+			this.allocator = PooledByteBufAllocator.DEFAULT;
+		}
+		
+		/**
+		 * @param transport The transport to use (the default is {@link Transport#best()})
+		 * @return this
+		 * @throws IllegalArgumentException If <code>transport</code> isn't available
+		 */
+		public Builder transport(Transport transport) throws IllegalArgumentException {
+			if (!transport.isAvailable())
+				throw new IllegalArgumentException("The " + transport + " transport isn't available!");
+			this.transport = transport;
+			return this;
+		}
+		/**
+		 * @param threads The number of event loops, or 0 for Netty's default (twice the number of processors, unless
+		 * configured otherwise)
+		 * @return this
+		 * @throws IllegalArgumentException If <code>threads</code> is negative
+		 */
+		public Builder threads(int threads) throws IllegalArgumentException {
+			if (threads < 0)
+				throw new IllegalArgumentException("threads must not be negative!");
+			this.threads = threads;
+			return this;
+		}
+		/**
+		 * Bind several listeners to the same port with <code>SO_REUSEPORT</code>, each on its own event loop (as long
+		 * as there are enough of them), so that accepting connections isn't limited to a single thread. This requires a
+		 * transport where {@link Transport#supportsReusePort()}.
+		 * @param listeners The number of listeners (the default is 1)
+		 * @return this
+		 * @throws IllegalArgumentException If <code>listeners</code> isn't positive
+		 */
+		public Builder listeners(int listeners) throws IllegalArgumentException {
+			if (listeners <= 0)
+				throw new IllegalArgumentException("listeners must be positive!");
+			this.listeners = listeners;
+			return this;
+		}
+		/**
+		 * @param backlog The maximum number of connections waiting to be accepted by each listener (the default is
+		 * {@value NettyMuxServer#DEFAULT_BACKLOG})
+		 * @return this
+		 * @throws IllegalArgumentException If <code>backlog</code> isn't positive
+		 */
+		public Builder backlog(int backlog) throws IllegalArgumentException {
+			if (backlog <= 0)
+				throw new IllegalArgumentException("backlog must be positive!");
+			this.backlog = backlog;
+			return this;
+		}
+		/**
+		 * @param tcpNoDelay If Nagle's algorithm should be disabled on the connections (the default is true)
+		 * @return this
+		 */
+		public Builder tcpNoDelay(boolean tcpNoDelay) {
+			this.tcpNoDelay = tcpNoDelay;
+			return this;
+		}
+		/**
+		 * @param allocator The allocator for the listeners and connections (the default is
+		 * {@link PooledByteBufAllocator#DEFAULT}, which prefers direct buffers where possible)
+		 * @return this
+		 */
+		public Builder allocator(ByteBufAllocator allocator) {
+			this.allocator = Objects.requireNonNull(allocator, "allocator");
+			return this;
+		}
+		/**
+		 * @param initializer Called for each connection before its multiplexer is added to the pipeline, such as to add
+		 * logging or idle handlers, or null to not do anything (the default)
+		 * @return this
+		 */
+		public Builder initializer(Consumer<Channel> initializer) {
+			this.initializer = initializer;
+			return this;
+		}
+		
+		/**
+		 * Start the server, waiting until all of the listeners are bound
+		 * @param port The port to listen on, on all addresses, or 0 for any free port
+		 * @return The running server
+		 * @throws InterruptedException If interrupted while binding
+		 * @throws IllegalStateException If multiple listeners were requested but the transport doesn't support it
+		 * @see #bind(SocketAddress)
+		 */
+		public NettyMuxServer bind(int port) throws InterruptedException, IllegalStateException {
+			return bind(new InetSocketAddress(port));
+		}
+		/**
+		 * Start the server, waiting until all of the listeners are bound. If binding fails, everything that was
+		 * started is shut down and the failure is thrown.
+		 * @param address The address to listen on; the port can be 0 for any free port
+		 * @return The running server
+		 * @throws InterruptedException If interrupted while binding
+		 * @throws IllegalStateException If multiple listeners were requested but the transport doesn't support it
+		 */
+		public NettyMuxServer bind(SocketAddress address) throws InterruptedException, IllegalStateException {
+			if (listeners > 1 && !transport.supportsReusePort())
+				throw new IllegalStateException("The " + transport + " transport can't share a port!");
+			return new NettyMuxServer(this, address);
+		}
+	}
+	
+	/**
+	 * The default value for the backlog
+	 */
+	public static final int DEFAULT_BACKLOG = 1024;
+	
+	/**
+	 * @param mux The multiplexer to add to each connection
+	 * @return A {@link Builder} to create a {@link NettyMuxServer}
+	 */
+	public static Builder builder(NettyByteMultiplexer.Template mux) {
+		return new Builder(mux);
+	}
+	
+	private final Transport transport;
+	private final EventLoopGroup group;
+	private final ChannelGroup connections;
+	private final List<Channel> listeners;
+	
+	private NettyMuxServer(Builder builder, SocketAddress address) throws InterruptedException {
+		this.transport = builder.transport;
+		this.group = new MultiThreadIoEventLoopGroup(builder.threads, transport.newIoHandlerFactory());
+		this.connections = new DefaultChannelGroup("nettymux-connections", GlobalEventExecutor.INSTANCE);
+		this.listeners = new ArrayList<>();
+		
+		NettyByteMultiplexer.Template mux = builder.mux;
+		Consumer<Channel> initializer = builder.initializer;
+		ServerBootstrap bootstrap = new ServerBootstrap()
+				.group(group)
+				.channel(transport.serverChannelClass())
+				.option(ChannelOption.SO_BACKLOG, builder.backlog)
+				.option(ChannelOption.SO_REUSEADDR, true)
+				.option(ChannelOption.ALLOCATOR, builder.allocator)
+				.childOption(ChannelOption.TCP_NODELAY, builder.tcpNoDelay)
+				.childOption(ChannelOption.ALLOCATOR, builder.allocator)
+				.childHandler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel channel) throws Exception {
+						connections.add(channel);
+						if (initializer != null)
+							initializer.accept(channel);
+						channel.pipeline().addLast(mux.newHandler());
+					}
+				});
+		if (builder.listeners > 1)
+			bootstrap.option(transport.reusePort(), true);
+		
+		try {
+			for (int i = 0; i < builder.listeners; i++) {
+				// Any free port is only chosen once, and the other listeners share it
+				Channel listener = bootstrap.bind(i == 0 ? address : listeners.get(0).localAddress()).sync().channel();
+				listeners.add(listener);
+			}
+		} catch (Throwable e) {
+			listeners.forEach(Channel::close);
+			group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return The transport in use
+	 */
+	public Transport getTransport() {
+		return transport;
+	}
+	
+	/**
+	 * @return The address that the server is listening on, including the chosen port if any free port was requested
+	 */
+	public SocketAddress getLocalAddress() {
+		return listeners.get(0).localAddress();
+	}
+	
+	/**
+	 * @return The listening channels, one per listener
+	 */
+	public List<Channel> getListeners() {
+		return Collections.unmodifiableList(listeners);
+	}
+	
+	/**
+	 * @return The number of open connections
+	 */
+	public int getConnections() {
+		return connections.size();
+	}
+	
+	/**
+	 * @return A future that completes once the server has been shut down
+	 */
+	public Future<?> terminationFuture() {
+		return group.terminationFuture();
+	}
+	
+	/**
+	 * Stop accepting connections, fire a {@link DrainEvent} on every open connection, and wait for them to close
+	 * before closing any that are left and stopping the event loops
+	 * @param drainTimeout The maximum time to wait for the open connections to close, or 0 to close them right away
+	 * @param unit The unit of <code>drainTimeout</code>
+	 * @return If all of the connections closed on their own
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean shutdownGracefully(long drainTimeout, TimeUnit unit) throws InterruptedException {
+		for (Channel listener : listeners)
+			listener.close().await();
+		
+		boolean drained = connections.isEmpty();
+		if (!drained && drainTimeout > 0) {
+			Future<?> closed = connections.newCloseFuture();
+			for (Channel connection : connections)
+				connection.pipeline().fireUserEventTriggered(DrainEvent.INSTANCE);
+			drained = closed.await(drainTimeout, unit);
+		}
+		
+		connections.close().await();
+		group.shutdownGracefully(0, 0, TimeUnit.SECONDS).await();
+		return drained;
+	}
+	
+}
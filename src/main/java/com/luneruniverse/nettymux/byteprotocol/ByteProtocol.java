@@ -1,5 +1,9 @@
 package com.luneruniverse.nettymux.byteprotocol;
 
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import com.luneruniverse.nettymux.DetectionAttachment;
 import com.luneruniverse.nettymux.ProtocolDetectionResult;
 
 import io.netty.buffer.ByteBuf;
@@ -29,6 +33,16 @@ public interface ByteProtocol {
 	 * @return If this protocol is in use, cannot be in use, or this isn't known
 	 */
 	public ProtocolDetectionResult attemptDetection(ByteBuf in);
+	/**
+	 * Called once this protocol is detected by the incoming bytes, before binding it; see {@link DetectionAttachment}.
+	 * A protocol selected by ALPN is only asked if the decrypted bytes received by the end of the handshake (usually
+	 * none) already detect it.
+	 * @param in The currently received bytes, after any bytes were removed during detection
+	 * @return What was learned during detection, or null if there isn't anything to pass along (the default)
+	 */
+	public default Object getAttachment(ByteBuf in) {
+		return null;
+	}
 	/**
 	 * Set up the pipeline to handle this protocol (this is only called if {@link #attemptDetection(ByteBuf)} returns
 	 * {@link ProtocolDetectionResult#DETECTED}). Note that SSL support will already be added to the pipeline if it
@@ -38,4 +52,28 @@ public interface ByteProtocol {
 	 * {@link NettyByteMultiplexer} if SSL is not in use)
 	 */
 	public void bind(ChannelHandlerContext ctx);
+	/**
+	 * Set up the pipeline to handle this protocol when that involves slow work, such as loading configuration or keys,
+	 * which shouldn't block the event loop. While the returned stage is pending, the channel stops reading and the
+	 * multiplexer holds onto the bytes received so far; once it completes, they're passed to the handlers that were
+	 * added. If it fails, the failure is passed to {@link io.netty.channel.ChannelHandler#exceptionCaught} and the
+	 * channel is closed. See {@link NettyByteMultiplexer.Builder#bindTimeout(long, TimeUnit)} to limit how long this
+	 * can take.<br>
+	 * <br>
+	 * The work can run on any executor (including one with virtual threads, where the JDK has them), and the pipeline
+	 * can be changed from any thread, though it's simplest to finish on the channel's event loop, such as with
+	 * {@link CompletionStage#thenAcceptAsync(java.util.function.Consumer, java.util.concurrent.Executor)} and
+	 * {@link ChannelHandlerContext#executor()}. Add handlers with
+	 * {@link io.netty.channel.ChannelPipeline#addLast}, since <code>ctx</code> may be removed by the time the stage
+	 * completes.<br>
+	 * <br>
+	 * By default, this calls {@link #bind(ChannelHandlerContext)} and returns null. When this is overridden,
+	 * {@link #bind(ChannelHandlerContext)} isn't called by the multiplexer.
+	 * @param ctx See {@link #bind(ChannelHandlerContext)}
+	 * @return A stage that completes once the pipeline is set up, or null if it's already set up
+	 */
+	public default CompletionStage<?> bindAsync(ChannelHandlerContext ctx) {
+		bind(ctx);
+		return null;
+	}
 }
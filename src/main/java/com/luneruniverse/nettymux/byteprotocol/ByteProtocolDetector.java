@@ -0,0 +1,54 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.util.concurrent.CompletionStage;
+
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Detects a {@link StatefulByteProtocol} on a single channel, remembering how much of the incoming bytes have already
+ * been verified so that each call only has to look at the bytes that arrived since the previous one
+ */
+public interface ByteProtocolDetector {
+	/**
+	 * Check if the currently received bytes are enough to determine whether or not the protocol is in use. Each call
+	 * receives the same bytes as the previous call (starting at the reader index), followed by any bytes that have
+	 * arrived since then.<br>
+	 * <br>
+	 * <strong>Warning:</strong> Only move the reader index of <code>in</code> if the protocol is detected AND
+	 * you want to remove some bytes before they get to the protocol's handler!
+	 * @param in The currently received bytes
+	 * @return If the protocol is in use, cannot be in use, or this isn't known
+	 * @see ByteProtocol#attemptDetection(ByteBuf)
+	 */
+	public ProtocolDetectionResult attemptDetection(ByteBuf in);
+	/**
+	 * Called once the protocol is detected, before binding it; see {@link DetectionAttachment}
+	 * @return What was learned during detection, or null if there isn't anything to pass along (the default)
+	 */
+	public default Object getAttachment() {
+		return null;
+	}
+	/**
+	 * Set up the pipeline to handle the protocol (this is only called if {@link #attemptDetection(ByteBuf)} returns
+	 * {@link ProtocolDetectionResult#DETECTED}), with access to anything learned during detection
+	 * @param ctx The context of the last handler in the pipeline involved in multiplexing
+	 * @see ByteProtocol#bind(ChannelHandlerContext)
+	 */
+	public void bind(ChannelHandlerContext ctx);
+	/**
+	 * Set up the pipeline to handle the protocol when that involves slow work (this is only called if
+	 * {@link #attemptDetection(ByteBuf)} returns {@link ProtocolDetectionResult#DETECTED}). By default, this calls
+	 * {@link #bind(ChannelHandlerContext)} and returns null.
+	 * @param ctx The context of the last handler in the pipeline involved in multiplexing
+	 * @return A stage that completes once the pipeline is set up, or null if it's already set up
+	 * @see ByteProtocol#bindAsync(ChannelHandlerContext)
+	 */
+	public default CompletionStage<?> bindAsync(ChannelHandlerContext ctx) {
+		bind(ctx);
+		return null;
+	}
+}
@@ -0,0 +1,45 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+
+/**
+ * Uses <code>splice(2)</code> to relay between two epoll channels. This is kept separate from {@link RelayHandler} so
+ * the epoll classes are only loaded when they're on the classpath.
+ */
+final class EpollSplice {
+	
+	private EpollSplice() {
+		
+	}
+	
+	/**
+	 * Start splicing in both directions if both channels use the epoll transport, in which case the bytes no longer
+	 * pass through either pipeline
+	 * @param inbound The incoming channel
+	 * @param outbound The backend connection, which must be on the same event loop
+	 */
+	// Netty deprecated splice and the epoll modes it needs without a replacement, but they still work, and splicing is
+	// what lets the relayed bytes skip user space; EpollMode is named in full since importing it can't be suppressed
+	@SuppressWarnings("deprecation")
+	static void splice(Channel inbound, Channel outbound) {
+		if (!(inbound instanceof AbstractEpollStreamChannel) || !(outbound instanceof AbstractEpollStreamChannel))
+			return;
+		AbstractEpollStreamChannel a = (AbstractEpollStreamChannel) inbound;
+		AbstractEpollStreamChannel b = (AbstractEpollStreamChannel) outbound;
+		// Splicing requires level-triggered mode on both ends
+		a.config().setEpollMode(io.netty.channel.epoll.EpollMode.LEVEL_TRIGGERED);
+		b.config().setEpollMode(io.netty.channel.epoll.EpollMode.LEVEL_TRIGGERED);
+		
+		ChannelFutureListener closeOnFailure = future -> {
+			if (!future.isSuccess()) {
+				RelayHandler.closeOnFlush(a);
+				RelayHandler.closeOnFlush(b);
+			}
+		};
+		a.spliceTo(b, Integer.MAX_VALUE).addListener(closeOnFailure);
+		b.spliceTo(a, Integer.MAX_VALUE).addListener(closeOnFailure);
+	}
+	
+}
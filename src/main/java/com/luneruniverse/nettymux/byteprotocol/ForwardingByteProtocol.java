@@ -0,0 +1,331 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.io.Closeable;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * Detects protocols that start by sending a specific byte sequence, like {@link MagicByteProtocol}, and forwards them
+ * to a backend over TCP. The backend connection is opened on the channel's event loop, the bytes received during
+ * detection are sent first, and then the bytes are relayed in both directions with backpressure and half-close
+ * support. The buffers read from one channel are written to the other as they are, and the backend connection shares
+ * the incoming channel's allocator, so the bytes aren't copied along the way.<br>
+ * <br>
+ * With {@link Builder#pooledConnections(int)}, call {@link #close()} once the server has stopped to close the
+ * connections that are still pooled; they're also closed when their event loop shuts down.
+ */
+public class ForwardingByteProtocol extends MagicByteProtocol implements Closeable {
+	
+	/**
+	 * Creates {@link ForwardingByteProtocol}s
+	 */
+	public static class Builder {
+		private final SocketAddress backend;
+		private final byte[] magic;
+		private String alpnName;
+		private boolean removeMagic;
+		private int connectTimeoutMillis;
+		private int pooledConnections;
+		private long pooledIdleNanos;
+		private boolean splice;
+		
+		private Builder(SocketAddress backend, byte[] magic) {
+			this.backend = Objects.requireNonNull(backend, "backend");
+			this.magic = Objects.requireNonNull(magic, "magic");
+			this.connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+			this.pooledIdleNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_POOLED_IDLE_TIMEOUT_MILLIS);
+		}
+		
+		/**
+		 * @param alpnName The name used in ALPN negotiation (see {@link ForwardingByteProtocol#getAlpnName()} for
+		 * details), or null if this protocol can't be selected by ALPN (the default)
+		 * @return this
+		 */
+		public Builder alpnName(String alpnName) {
+			this.alpnName = alpnName;
+			return this;
+		}
+		/**
+		 * @param removeMagic If the magic byte sequence should be removed before the bytes are forwarded (by default,
+		 * it's forwarded too)
+		 * @return this
+		 */
+		public Builder removeMagic(boolean removeMagic) {
+			this.removeMagic = removeMagic;
+			return this;
+		}
+		/**
+		 * Close the incoming channel if the backend connection can't be established within <code>timeout</code>
+		 * @param timeout The maximum time (the default is
+		 * {@value ForwardingByteProtocol#DEFAULT_CONNECT_TIMEOUT_MILLIS} milliseconds)
+		 * @param unit The unit of <code>timeout</code>
+		 * @return this
+		 * @throws IllegalArgumentException If <code>timeout</code> isn't positive
+		 */
+		public Builder connectTimeout(long timeout, TimeUnit unit) throws IllegalArgumentException {
+			if (timeout <= 0)
+				throw new IllegalArgumentException("timeout must be positive!");
+			this.connectTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, Math.max(1, unit.toMillis(timeout)));
+			return this;
+		}
+		/**
+		 * Keep connections to the backend open ahead of time on each event loop that has forwarded a channel, so
+		 * forwarding doesn't have to wait for a new connection. Each pooled connection is used for a single channel,
+		 * and is replaced once it's taken. The pool is refilled one connection at a time, and only keeps going while
+		 * the connections succeed; after a failure, the pool isn't refilled again until a delay has passed, which
+		 * doubles with each failure in a row, so channels don't open extra connections while the backend is down.
+		 * @param pooledConnections The number of connections to keep ready per event loop, or 0 to connect for each
+		 * channel (the default)
+		 * @return this
+		 * @throws IllegalArgumentException If <code>pooledConnections</code> is negative
+		 */
+		public Builder pooledConnections(int pooledConnections) throws IllegalArgumentException {
+			if (pooledConnections < 0)
+				throw new IllegalArgumentException("pooledConnections must not be negative!");
+			this.pooledConnections = pooledConnections;
+			return this;
+		}
+		/**
+		 * Close pooled connections that haven't been used within <code>timeout</code>, so they aren't handed out
+		 * after the backend or something in between has dropped them. The pool is refilled the next time a channel is
+		 * forwarded.
+		 * @param timeout The maximum time (the default is
+		 * {@value ForwardingByteProtocol#DEFAULT_POOLED_IDLE_TIMEOUT_MILLIS} milliseconds)
+		 * @param unit The unit of <code>timeout</code>
+		 * @return this
+		 * @throws IllegalArgumentException If <code>timeout</code> isn't positive
+		 */
+		public Builder pooledIdleTimeout(long timeout, TimeUnit unit) throws IllegalArgumentException {
+			if (timeout <= 0)
+				throw new IllegalArgumentException("timeout must be positive!");
+			this.pooledIdleNanos = unit.toNanos(timeout);
+			return this;
+		}
+		
+		/**
+		 * With the epoll transport, splice the bytes between the sockets without copying them into user space. Netty's
+		 * splicing shuts down a socket's input as soon as the peer's end of stream is seen, even if more than a pipe's
+		 * capacity (64 KiB by default) is still unread, so only enable this when neither side closes or half-closes
+		 * while the other is still receiving.
+		 * @param splice If splicing should be used when available (the default is false)
+		 * @return this
+		 */
+		public Builder splice(boolean splice) {
+			this.splice = splice;
+			return this;
+		}
+		
+		/**
+		 * @return A {@link ForwardingByteProtocol} with these settings
+		 */
+		public ForwardingByteProtocol build() {
+			return new ForwardingByteProtocol(this);
+		}
+	}
+	
+	/**
+	 * The default value for the connect timeout
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+	/**
+	 * The default value for the pooled idle timeout
+	 */
+	public static final int DEFAULT_POOLED_IDLE_TIMEOUT_MILLIS = 30000;
+	
+	private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+	
+	/**
+	 * @param backend Where to forward the channels to
+	 * @param magic The byte sequence that starts this protocol
+	 * @return A {@link Builder} to create a {@link ForwardingByteProtocol}
+	 */
+	public static Builder builder(SocketAddress backend, byte[] magic) {
+		return new Builder(backend, magic);
+	}
+	
+	private final SocketAddress backend;
+	private final int connectTimeoutMillis;
+	private final int pooledConnections;
+	private final long pooledIdleNanos;
+	private final boolean splice;
+	private final ConcurrentMap<EventLoop, Pool> pools;
+	private volatile boolean closed;
+	
+	private ForwardingByteProtocol(Builder builder) {
+		super(builder.alpnName, builder.magic, builder.removeMagic, null);
+		this.backend = builder.backend;
+		this.connectTimeoutMillis = builder.connectTimeoutMillis;
+		this.pooledConnections = builder.pooledConnections;
+		this.pooledIdleNanos = builder.pooledIdleNanos;
+		this.splice = builder.splice;
+		this.pools = new ConcurrentHashMap<>();
+	}
+	
+	/**
+	 * Forward the channel to the backend
+	 */
+	@Override
+	public void bind(ChannelHandlerContext ctx) {
+		RelayHandler.relay(ctx, connect(ctx.channel()), splice);
+	}
+	
+	/**
+	 * @param inbound The incoming channel
+	 * @return A pooled connection for <code>inbound</code>'s event loop, or a new connection
+	 */
+	private ChannelFuture connect(Channel inbound) {
+		if (pooledConnections == 0 || closed)
+			return RelayHandler.connect(inbound, backend, connectTimeoutMillis);
+		
+		EventLoop eventLoop = inbound.eventLoop();
+		Pool pool = pools.get(eventLoop);
+		if (pool == null) {
+			pool = pools.computeIfAbsent(eventLoop, Pool::new);
+			Pool created = pool;
+			eventLoop.terminationFuture().addListener(future -> pools.remove(eventLoop, created));
+		}
+		
+		Channel connection = pool.take();
+		pool.refill(inbound);
+		if (connection == null)
+			return RelayHandler.connect(inbound, backend, connectTimeoutMillis);
+		return connection.newSucceededFuture();
+	}
+	
+	/**
+	 * @return The number of connections that are currently pooled and ready, across all event loops
+	 */
+	public int getPooledConnections() {
+		int output = 0;
+		for (Pool pool : pools.values())
+			output += pool.ready;
+		return output;
+	}
+	
+	/**
+	 * Close the pooled connections and stop pooling new ones; channels forwarded after this connect to the backend
+	 * for themselves
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (Pool pool : new ArrayList<>(pools.values())) {
+			if (pool.eventLoop.inEventLoop())
+				pool.close();
+			else if (!pool.eventLoop.isShuttingDown())
+				pool.eventLoop.execute(pool::close);
+		}
+		pools.clear();
+	}
+	
+	/**
+	 * A pooled connection that isn't being used yet
+	 */
+	private static final class IdleConnection {
+		private final Channel channel;
+		private final ScheduledFuture<?> timeout;
+		
+		private IdleConnection(Channel channel, ScheduledFuture<?> timeout) {
+			this.channel = channel;
+			this.timeout = timeout;
+		}
+	}
+	
+	/**
+	 * The idle connections for a single event loop, which is only used from that event loop
+	 */
+	private final class Pool {
+		private final EventLoop eventLoop;
+		private final Deque<IdleConnection> idle;
+		// The size of idle, which can be read from any thread
+		private volatile int ready;
+		private boolean connecting;
+		private int failures;
+		private long retryNanos;
+		
+		private Pool(EventLoop eventLoop) {
+			this.eventLoop = eventLoop;
+			this.idle = new ArrayDeque<>();
+		}
+		
+		/**
+		 * @return An idle connection, or null if there aren't any
+		 */
+		private Channel take() {
+			IdleConnection connection;
+			while ((connection = idle.poll()) != null) {
+				ready = idle.size();
+				connection.timeout.cancel(false);
+				if (connection.channel.isActive())
+					return connection.channel;
+			}
+			return null;
+		}
+		
+		/**
+		 * Open another connection if the pool isn't full, nothing is connecting, and the backoff has passed
+		 * @param inbound A channel on this event loop, to take the transport and allocator from
+		 */
+		private void refill(Channel inbound) {
+			if (closed || connecting || idle.size() >= pooledConnections || eventLoop.isShuttingDown())
+				return;
+			if (failures > 0 && System.nanoTime() - retryNanos < 0)
+				return;
+			
+			connecting = true;
+			ChannelFuture connect = RelayHandler.connect(inbound, backend, connectTimeoutMillis);
+			connect.addListener((ChannelFutureListener) future -> {
+				connecting = false;
+				Channel channel = future.channel();
+				if (!future.isSuccess()) {
+					failures++;
+					retryNanos = System.nanoTime() + Math.min(MAX_BACKOFF_NANOS,
+							MIN_BACKOFF_NANOS << Math.min(failures - 1, 20));
+					return;
+				}
+				failures = 0;
+				if (closed) {
+					channel.close();
+					return;
+				}
+				
+				// Connections that are idle for too long are closed, and so are ones that close while pooled
+				ScheduledFuture<?> timeout = eventLoop.schedule(() -> channel.close(), pooledIdleNanos,
+						TimeUnit.NANOSECONDS);
+				IdleConnection connection = new IdleConnection(channel, timeout);
+				idle.add(connection);
+				ready = idle.size();
+				channel.closeFuture().addListener(closeFuture -> {
+					idle.remove(connection);
+					ready = idle.size();
+					timeout.cancel(false);
+				});
+				refill(inbound);
+			});
+		}
+		
+		private void close() {
+			IdleConnection connection;
+			while ((connection = idle.poll()) != null) {
+				connection.timeout.cancel(false);
+				connection.channel.close();
+			}
+			ready = 0;
+		}
+	}
+	
+}
@@ -0,0 +1,68 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Detects connections that start with a PROXY protocol header, which load balancers such as HAProxy send to pass
+ * along the client's address: either the text header of version 1 (<code>PROXY </code>) or the 12 byte binary
+ * signature of version 2. The header is left in place, so the pipeline set up by
+ * {@link #bind(ChannelHandlerContext)} can decode it (such as with Netty's <code>HAProxyMessageDecoder</code>) and
+ * then detect the protocol that follows.<br>
+ * <br>
+ * To parse the header and detect the protocol that follows in the same {@link NettyByteMultiplexer}, use
+ * {@link NettyByteMultiplexer.Builder#requireProxyProtocol()} instead.
+ */
+public class HAProxyByteProtocol implements PrefixByteProtocol {
+	
+	private static final List<byte[]> PREFIXES = Collections.unmodifiableList(Arrays.asList(
+			ProxyHeader.V1_PREFIX, ProxyHeader.V2_SIGNATURE));
+	
+	private final Consumer<ChannelHandlerContext> bind;
+	
+	/**
+	 * @param bind Set up the pipeline for the PROXY protocol (see {@link #bind(ChannelHandlerContext)} for details)
+	 */
+	public HAProxyByteProtocol(Consumer<ChannelHandlerContext> bind) {
+		this.bind = bind;
+	}
+	
+	/**
+	 * @return null, since the header is sent before any TLS handshake
+	 */
+	@Override
+	public String getAlpnName() {
+		return null;
+	}
+	
+	@Override
+	public List<byte[]> getPrefixes() {
+		return PREFIXES;
+	}
+	
+	@Override
+	public ProtocolDetectionResult attemptDetection(ByteBuf in) {
+		return ProxyHeader.detect(in);
+	}
+	
+	/**
+	 * @return The version of the PROXY protocol header, 1 or 2
+	 */
+	@Override
+	public Object getAttachment(ByteBuf in) {
+		return in.getByte(in.readerIndex()) == 'P' ? 1 : 2;
+	}
+	
+	@Override
+	public void bind(ChannelHandlerContext ctx) {
+		bind.accept(ctx);
+	}
+	
+}
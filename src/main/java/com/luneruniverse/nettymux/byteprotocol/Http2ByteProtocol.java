@@ -0,0 +1,61 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+import com.luneruniverse.nettymux.messageprotocol.H2cUpgradeHttpMessageProtocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Detects HTTP/2 connections, either by the client connection preface (<code>PRI * HTTP/2.0</code>) sent with prior
+ * knowledge, or by negotiating <code>h2</code> with ALPN. The preface is left in place for the HTTP/2 handlers, which
+ * expect to read it.<br>
+ * <br>
+ * Clients that start with an HTTP/1.1 request and upgrade to cleartext HTTP/2 are detected by
+ * {@link HttpByteProtocol} instead; use the {@link H2cUpgradeHttpMessageProtocol} to recognize them.
+ */
+public class Http2ByteProtocol implements PrefixByteProtocol {
+	
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final List<byte[]> PREFIXES = Collections.singletonList(PREFACE);
+	
+	private final Consumer<ChannelHandlerContext> bind;
+	
+	/**
+	 * @param bind Set up the pipeline for HTTP/2 (see {@link #bind(ChannelHandlerContext)} for details)
+	 */
+	public Http2ByteProtocol(Consumer<ChannelHandlerContext> bind) {
+		this.bind = bind;
+	}
+	
+	@Override
+	public String getAlpnName() {
+		return "h2";
+	}
+	
+	@Override
+	public List<byte[]> getPrefixes() {
+		return PREFIXES;
+	}
+	
+	@Override
+	public ProtocolDetectionResult attemptDetection(ByteBuf in) {
+		int length = Math.min(in.readableBytes(), PREFACE.length);
+		for (int i = 0; i < length; i++) {
+			if (in.getByte(in.readerIndex() + i) != PREFACE[i])
+				return ProtocolDetectionResult.REJECTED;
+		}
+		return length == PREFACE.length ? ProtocolDetectionResult.DETECTED : ProtocolDetectionResult.UNKNOWN;
+	}
+	
+	@Override
+	public void bind(ChannelHandlerContext ctx) {
+		bind.accept(ctx);
+	}
+	
+}
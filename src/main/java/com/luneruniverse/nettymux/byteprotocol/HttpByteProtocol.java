@@ -1,44 +1,45 @@
 package com.luneruniverse.nettymux.byteprotocol;
 
 import java.nio.charset.StandardCharsets;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.function.Consumer;
 
 import com.luneruniverse.nettymux.ProtocolDetectionResult;
+import com.luneruniverse.nettymux.messageprotocol.H2cUpgradeHttpMessageProtocol;
 import com.luneruniverse.nettymux.messageprotocol.NettyMessageMultiplexer;
 import com.luneruniverse.nettymux.messageprotocol.NormalHttpMessageProtocol;
 import com.luneruniverse.nettymux.messageprotocol.WebSocketHttpMessageProtocol;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpMethod;
 
 /**
  * Detects HTTP/1.1 requests<br>
  * <br>
  * <strong>Warning:</strong> This doesn't check for the <code>Upgrade</code> header. Follow this with a
  * {@link NettyMessageMultiplexer} that includes the {@link NormalHttpMessageProtocol} to confirm that the request
- * is normal. Similarly, you can detect the WebSocket protocol by including the {@link WebSocketHttpMessageProtocol}.
+ * is normal. Similarly, you can detect the WebSocket protocol by including the {@link WebSocketHttpMessageProtocol},
+ * and upgrades to cleartext HTTP/2 with the {@link H2cUpgradeHttpMessageProtocol}.
  */
-public class HttpByteProtocol implements ByteProtocol {
+public class HttpByteProtocol implements PrefixByteProtocol {
 	
-	private static final Set<String> METHODS;
-	private static final int MIN_METHOD_LENGTH;
-	private static final int MAX_METHOD_LENGTH;
-	static {
-		METHODS = new HashSet<>();
-		METHODS.add("CONNECT");
-		METHODS.add("DELETE");
-		METHODS.add("GET");
-		METHODS.add("HEAD");
-		METHODS.add("OPTIONS");
-		METHODS.add("PATCH");
-		METHODS.add("POST");
-		METHODS.add("PUT");
-		METHODS.add("TRACE");
-		
-		MIN_METHOD_LENGTH = METHODS.stream().mapToInt(String::length).min().getAsInt();
-		MAX_METHOD_LENGTH = METHODS.stream().mapToInt(String::length).max().getAsInt();
+	private static final byte[] CONNECT = method("CONNECT");
+	private static final byte[] DELETE = method("DELETE");
+	private static final byte[] GET = method("GET");
+	private static final byte[] HEAD = method("HEAD");
+	private static final byte[] OPTIONS = method("OPTIONS");
+	private static final byte[] PATCH = method("PATCH");
+	private static final byte[] POST = method("POST");
+	private static final byte[] PUT = method("PUT");
+	private static final byte[] TRACE = method("TRACE");
+	private static final List<byte[]> PREFIXES = Collections.unmodifiableList(Arrays.asList(
+			CONNECT, DELETE, GET, HEAD, OPTIONS, PATCH, POST, PUT, TRACE));
+	
+	private static byte[] method(String name) {
+		return name.getBytes(StandardCharsets.US_ASCII);
 	}
 	
 	private final Consumer<ChannelHandlerContext> bind;
@@ -55,23 +56,84 @@ public class HttpByteProtocol implements ByteProtocol {
 		return "http/1.1";
 	}
 	
+	@Override
+	public List<byte[]> getPrefixes() {
+		return PREFIXES;
+	}
+	
 	@Override
 	public ProtocolDetectionResult attemptDetection(ByteBuf in) {
-		if (in.readableBytes() < MIN_METHOD_LENGTH)
+		if (!in.isReadable())
 			return ProtocolDetectionResult.UNKNOWN;
 		
-		byte[] bytes = new byte[Math.min(in.readableBytes(), MAX_METHOD_LENGTH)];
-		in.getBytes(in.readerIndex(), bytes);
-		String str = new String(bytes, StandardCharsets.US_ASCII);
-		
-		for (String method : METHODS) {
-			if (str.startsWith(method))
-				return ProtocolDetectionResult.DETECTED;
+		switch (in.getByte(in.readerIndex())) {
+			case 'C':
+				return attemptDetection(in, CONNECT);
+			case 'D':
+				return attemptDetection(in, DELETE);
+			case 'G':
+				return attemptDetection(in, GET);
+			case 'H':
+				return attemptDetection(in, HEAD);
+			case 'O':
+				return attemptDetection(in, OPTIONS);
+			case 'P':
+				if (in.readableBytes() < 2)
+					return ProtocolDetectionResult.UNKNOWN;
+				switch (in.getByte(in.readerIndex() + 1)) {
+					case 'A':
+						return attemptDetection(in, PATCH);
+					case 'O':
+						return attemptDetection(in, POST);
+					case 'U':
+						return attemptDetection(in, PUT);
+					default:
+						return ProtocolDetectionResult.REJECTED;
+				}
+			case 'T':
+				return attemptDetection(in, TRACE);
+			default:
+				return ProtocolDetectionResult.REJECTED;
+		}
+	}
+	
+	private static ProtocolDetectionResult attemptDetection(ByteBuf in, byte[] method) {
+		int length = Math.min(in.readableBytes(), method.length);
+		for (int i = 0; i < length; i++) {
+			if (in.getByte(in.readerIndex() + i) != method[i])
+				return ProtocolDetectionResult.REJECTED;
+		}
+		return length == method.length ? ProtocolDetectionResult.DETECTED : ProtocolDetectionResult.UNKNOWN;
+	}
+	
+	/**
+	 * @return The {@link HttpMethod} of the request; the request target starts right after the method and a space
+	 */
+	@Override
+	public Object getAttachment(ByteBuf in) {
+		switch (in.getByte(in.readerIndex())) {
+			case 'C':
+				return HttpMethod.CONNECT;
+			case 'D':
+				return HttpMethod.DELETE;
+			case 'G':
+				return HttpMethod.GET;
+			case 'H':
+				return HttpMethod.HEAD;
+			case 'O':
+				return HttpMethod.OPTIONS;
+			case 'P':
+				switch (in.getByte(in.readerIndex() + 1)) {
+					case 'A':
+						return HttpMethod.PATCH;
+					case 'O':
+						return HttpMethod.POST;
+					default:
+						return HttpMethod.PUT;
+				}
+			default:
+				return HttpMethod.TRACE;
 		}
-		
-		if (in.readableBytes() < MAX_METHOD_LENGTH)
-			return ProtocolDetectionResult.UNKNOWN;
-		return ProtocolDetectionResult.REJECTED;
 	}
 	
 	@Override
@@ -0,0 +1,280 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+import com.luneruniverse.nettymux.messageprotocol.MessageProtocol;
+import com.luneruniverse.nettymux.messageprotocol.MessageProtocolDetector;
+import com.luneruniverse.nettymux.messageprotocol.NettyMessageMultiplexer;
+import com.luneruniverse.nettymux.messageprotocol.StatefulMessageProtocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectDecoder;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Detects HTTP/1.1 requests and chooses between {@link MessageProtocol}s for {@link HttpRequest}s (such as
+ * {@link com.luneruniverse.nettymux.messageprotocol.HttpRouterMessageProtocol} or
+ * {@link com.luneruniverse.nettymux.messageprotocol.WebSocketHttpRequestMessageProtocol}) in the same step. This
+ * replaces following a {@link HttpByteProtocol} with an HTTP codec and a {@link NettyMessageMultiplexer}: the request
+ * head is parsed straight from the buffered bytes, and once a protocol is detected, the codec and that protocol's
+ * handlers are added at once, so no handlers are added only to be removed again.<br>
+ * <br>
+ * The protocols are checked in order against the head alone, and the first one detected is bound; a protocol that
+ * can't decide from the head is treated as rejected. The parsed head is only used for detection, and the codec
+ * decodes the request again from the bytes. The protocol's <code>bind</code> is called with the codec's context, so
+ * handlers it adds after that context receive the decoded request; anything written with that context isn't encoded
+ * by the codec, so write through the channel instead.
+ */
+public class HttpHeadByteProtocol implements StatefulByteProtocol {
+	
+	/**
+	 * The longest request head that is parsed, matching the default limits of {@link HttpServerCodec}
+	 */
+	public static final int MAX_HEAD_LENGTH =
+			HttpObjectDecoder.DEFAULT_MAX_INITIAL_LINE_LENGTH + HttpObjectDecoder.DEFAULT_MAX_HEADER_SIZE;
+	
+	private static final HttpByteProtocol METHODS = new HttpByteProtocol(ctx -> {});
+	
+	private final Supplier<? extends ChannelHandler> codec;
+	private final List<MessageProtocol<HttpRequest>> protocols;
+	
+	/**
+	 * @param codec Creates the HTTP codec for each channel, such as a {@link HttpServerCodec} with custom limits
+	 * @param protocols The protocols to choose between, in order
+	 * @throws IllegalArgumentException If there are no protocols
+	 */
+	public HttpHeadByteProtocol(Supplier<? extends ChannelHandler> codec,
+			List<? extends MessageProtocol<HttpRequest>> protocols) throws IllegalArgumentException {
+		if (protocols.isEmpty())
+			throw new IllegalArgumentException("There must be at least one protocol!");
+		this.codec = codec;
+		this.protocols = Collections.unmodifiableList(new ArrayList<>(protocols));
+	}
+	/**
+	 * Use a {@link HttpServerCodec} with the default settings
+	 * @param protocols The protocols to choose between, in order
+	 * @throws IllegalArgumentException If there are no protocols
+	 */
+	@SafeVarargs
+	public HttpHeadByteProtocol(MessageProtocol<HttpRequest>... protocols) throws IllegalArgumentException {
+		if (protocols.length == 0)
+			throw new IllegalArgumentException("There must be at least one protocol!");
+		// Only reading the elements, rather than passing the array on, is what keeps this safe for @SafeVarargs
+		List<MessageProtocol<HttpRequest>> list = new ArrayList<>(protocols.length);
+		for (MessageProtocol<HttpRequest> protocol : protocols)
+			list.add(protocol);
+		this.codec = HttpServerCodec::new;
+		this.protocols = Collections.unmodifiableList(list);
+	}
+	
+	@Override
+	public String getAlpnName() {
+		return "http/1.1";
+	}
+	
+	@Override
+	public ByteProtocolDetector newDetector() {
+		return new ByteProtocolDetector() {
+			private int scanned;
+			private Choice choice;
+			
+			@Override
+			public ProtocolDetectionResult attemptDetection(ByteBuf in) {
+				ProtocolDetectionResult method = METHODS.attemptDetection(in);
+				if (method != ProtocolDetectionResult.DETECTED)
+					return method;
+				
+				int length = headLength(in, scanned);
+				if (length == 0)
+					return ProtocolDetectionResult.REJECTED;
+				if (length == -1) {
+					scanned = Math.min(in.readableBytes(), MAX_HEAD_LENGTH);
+					return in.readableBytes() > MAX_HEAD_LENGTH ? ProtocolDetectionResult.REJECTED :
+							ProtocolDetectionResult.UNKNOWN;
+				}
+				
+				HttpRequest head = parse(in.toString(in.readerIndex(), length, StandardCharsets.ISO_8859_1));
+				if (head == null)
+					return ProtocolDetectionResult.REJECTED;
+				choice = choose(head);
+				return choice == null ? ProtocolDetectionResult.REJECTED : ProtocolDetectionResult.DETECTED;
+			}
+			
+			@Override
+			public Object getAttachment() {
+				return choice.getAttachment();
+			}
+			
+			@Override
+			public void bind(ChannelHandlerContext ctx) {
+				bindAsync(ctx);
+			}
+			
+			@Override
+			public CompletionStage<?> bindAsync(ChannelHandlerContext ctx) {
+				return choice.bindAsync(ctx);
+			}
+		};
+	}
+	
+	/**
+	 * The protocol chosen for a request head
+	 */
+	private class Choice {
+		private final List<HttpRequest> request;
+		private final MessageProtocol<HttpRequest> protocol;
+		private final MessageProtocolDetector<HttpRequest> detector;
+		
+		private Choice(List<HttpRequest> request, MessageProtocol<HttpRequest> protocol,
+				MessageProtocolDetector<HttpRequest> detector) {
+			this.request = request;
+			this.protocol = protocol;
+			this.detector = detector;
+		}
+		
+		/**
+		 * @return The attachment of the chosen protocol, or the parsed {@link HttpRequest} if it doesn't have one
+		 */
+		private Object getAttachment() {
+			Object attachment = detector == null ? protocol.getAttachment(request) : detector.getAttachment();
+			return attachment == null ? request.get(0) : attachment;
+		}
+		
+		/**
+		 * Add the codec, then bind the chosen protocol with the codec's context
+		 * @param ctx The context of the multiplexer
+		 * @return The stage returned by the chosen protocol's bind
+		 */
+		private CompletionStage<?> bindAsync(ChannelHandlerContext ctx) {
+			String codecName = ctx.name() + "#httpCodec";
+			ctx.pipeline().addAfter(ctx.name(), codecName, codec.get());
+			ChannelHandlerContext codecCtx = ctx.pipeline().context(codecName);
+			return detector == null ? protocol.bindAsync(codecCtx) : detector.bindAsync(codecCtx);
+		}
+	}
+	
+	/**
+	 * @param head The parsed request head
+	 * @return The first protocol detected from the head alone, or null if none are
+	 */
+	private Choice choose(HttpRequest head) {
+		List<HttpRequest> request = new ArrayList<>(1);
+		for (MessageProtocol<HttpRequest> candidate : protocols) {
+			// Each protocol gets the head, even if the previous one removed it
+			request.clear();
+			request.add(head);
+			MessageProtocolDetector<HttpRequest> detector = candidate instanceof StatefulMessageProtocol ?
+					((StatefulMessageProtocol<HttpRequest>) candidate).newDetector() : null;
+			ProtocolDetectionResult result = detector == null ? candidate.attemptDetection(request) :
+					detector.attemptDetection(request);
+			if (result == ProtocolDetectionResult.DETECTED)
+				return new Choice(request, candidate, detector);
+		}
+		return null;
+	}
+	
+	/**
+	 * @param in The received bytes
+	 * @param scanned How many bytes were already searched without finding the end of the head
+	 * @return The length of the head including the empty line ending it, -1 if it hasn't all arrived, or 0 if it has
+	 * a line feed without a carriage return, which the codec doesn't accept as a line break
+	 */
+	private static int headLength(ByteBuf in, int scanned) {
+		int start = in.readerIndex();
+		int end = start + Math.min(in.readableBytes(), MAX_HEAD_LENGTH);
+		// Only the new bytes need to be searched, but the line break before them may start the empty line
+		for (int i = start + scanned; i < end; i++) {
+			i = in.indexOf(i, end, (byte) '\n');
+			if (i == -1)
+				break;
+			if (i == start || in.getByte(i - 1) != '\r')
+				return 0;
+			if (i >= start + 3 && in.getByte(i - 2) == '\n')
+				return i + 1 - start;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param head The request line and headers, each ending with CRLF, followed by an empty line
+	 * @return The parsed request head, or null if it's invalid
+	 */
+	private static HttpRequest parse(String head) {
+		String[] lines = head.split("\r\n");
+		String line = lines[0];
+		int methodEnd = line.indexOf(' ');
+		int uriEnd = line.lastIndexOf(' ');
+		if (methodEnd <= 0 || uriEnd <= methodEnd + 1)
+			return null;
+		
+		try {
+			HttpRequest request = new DefaultHttpRequest(HttpVersion.valueOf(line.substring(uriEnd + 1)),
+					HttpMethod.valueOf(line.substring(0, methodEnd)), line.substring(methodEnd + 1, uriEnd));
+			for (int i = 1; i < lines.length; i++) {
+				line = lines[i];
+				int nameEnd = line.indexOf(':');
+				// Folded header values are obsolete, and aren't worth supporting just for detection
+				if (nameEnd <= 0 || line.charAt(0) == ' ' || line.charAt(0) == '\t')
+					return null;
+				request.headers().add(line.substring(0, nameEnd), line.substring(nameEnd + 1).trim());
+			}
+			return request;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @return The parsed {@link HttpRequest}, which {@link #bindAsync(ChannelHandlerContext)} chooses the protocol for
+	 * when this is used without a detector from {@link #newDetector()}, or null if <code>in</code> doesn't start with
+	 * a complete and valid request head
+	 */
+	@Override
+	public Object getAttachment(ByteBuf in) {
+		int length = headLength(in, 0);
+		return length <= 0 ? null : parse(in.toString(in.readerIndex(), length, StandardCharsets.ISO_8859_1));
+	}
+	
+	/**
+	 * See {@link #bindAsync(ChannelHandlerContext)}
+	 * @throws IllegalStateException If the channel doesn't have a {@link HttpRequest} attachment, or no protocol is
+	 * detected from it
+	 */
+	@Override
+	public void bind(ChannelHandlerContext ctx) throws IllegalStateException {
+		bindAsync(ctx);
+	}
+	
+	/**
+	 * Choose the protocol for the {@link HttpRequest} stored in {@link DetectionAttachment} by
+	 * {@link NettyByteMultiplexer}, for when this is used without a detector from {@link #newDetector()}. The
+	 * attachment is replaced with the chosen protocol's, like with a detector.
+	 * @throws IllegalStateException If the channel doesn't have a {@link HttpRequest} attachment, or no protocol is
+	 * detected from it
+	 */
+	@Override
+	public CompletionStage<?> bindAsync(ChannelHandlerContext ctx) throws IllegalStateException {
+		HttpRequest head = DetectionAttachment.get(ctx.channel(), HttpRequest.class);
+		if (head == null)
+			throw new IllegalStateException("Choosing the HTTP protocol needs the HttpRequest attachment!");
+		Choice choice = choose(head);
+		if (choice == null)
+			throw new IllegalStateException("No HTTP protocol was detected for " + head.uri() + "!");
+		DetectionAttachment.set(ctx.channel(), choice.getAttachment());
+		return choice.bindAsync(ctx);
+	}
+	
+}
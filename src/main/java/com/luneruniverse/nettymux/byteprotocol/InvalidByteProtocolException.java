@@ -14,6 +14,8 @@ public class InvalidByteProtocolException extends InvalidProtocolException {
 	 * @see #FAILED_TO_DETECT
 	 * @see #NOT_SSL_WHEN_FORCED
 	 * @see #INVALID_ALPN_PROTOCOL
+	 * @see #MISSING_PROXY_HEADER
+	 * @see #INVALID_PROXY_HEADER
 	 */
 	public enum Type {
 		/**
@@ -33,7 +35,16 @@ public class InvalidByteProtocolException extends InvalidProtocolException {
 		 * SSL was requested, SSL is allowed by the server, ALPN negotiation succeeded, and the resulting protocol name
 		 * from ALPN negotiation didn't match any protocol's {@link ByteProtocol#getAlpnName()}
 		 */
-		INVALID_ALPN_PROTOCOL
+		INVALID_ALPN_PROTOCOL,
+		/**
+		 * The PROXY protocol is required by the server, but the incoming byte data didn't start with a PROXY protocol
+		 * header
+		 */
+		MISSING_PROXY_HEADER,
+		/**
+		 * The incoming byte data started with a PROXY protocol header, but it wasn't valid
+		 */
+		INVALID_PROXY_HEADER
 	}
 	
 	private final Type type;
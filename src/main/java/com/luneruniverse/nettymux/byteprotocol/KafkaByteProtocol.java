@@ -0,0 +1,84 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Detects Kafka clients by the header of their first request: the request size, API key, API version, correlation
+ * ID, and the length of the client ID, which must fit in the request. This takes 14 bytes, though most other protocols
+ * are rejected sooner. The request is left in place for the Kafka handlers; {@link #getAttachment(ByteBuf)} returns
+ * its API key (usually 18, ApiVersions, or 17, SaslHandshake).<br>
+ * <br>
+ * <strong>Warning:</strong> Kafka requests have no magic bytes, so this is the least specific of the built-in
+ * protocols. Add it after the others, in particular after {@link PostgresByteProtocol}, whose messages also start with
+ * a small length.
+ */
+public class KafkaByteProtocol implements ByteProtocol {
+	
+	/**
+	 * The broker's default <code>socket.request.max.bytes</code>
+	 */
+	private static final int MAX_REQUEST_SIZE = 100 * 1024 * 1024;
+	/**
+	 * The API key, API version, correlation ID, and client ID length
+	 */
+	private static final int MIN_REQUEST_SIZE = 10;
+	private static final int HEADER_LENGTH = 14;
+	
+	private final Consumer<ChannelHandlerContext> bind;
+	
+	/**
+	 * @param bind Set up the pipeline for Kafka (see {@link #bind(ChannelHandlerContext)} for details)
+	 */
+	public KafkaByteProtocol(Consumer<ChannelHandlerContext> bind) {
+		this.bind = bind;
+	}
+	
+	/**
+	 * @return null, since Kafka doesn't define an ALPN name
+	 */
+	@Override
+	public String getAlpnName() {
+		return null;
+	}
+	
+	@Override
+	public ProtocolDetectionResult attemptDetection(ByteBuf in) {
+		int i = in.readerIndex();
+		int readable = in.readableBytes();
+		if (readable >= 1 && (in.getByte(i) & 0xFF) > MAX_REQUEST_SIZE >>> 24)
+			return ProtocolDetectionResult.REJECTED;
+		// API keys are below 256, and API versions below 128
+		if (readable >= 5 && in.getByte(i + 4) != 0 || readable >= 7 && in.getByte(i + 6) != 0 ||
+				readable >= 8 && in.getByte(i + 7) < 0)
+			return ProtocolDetectionResult.REJECTED;
+		if (readable < HEADER_LENGTH)
+			return ProtocolDetectionResult.UNKNOWN;
+		
+		int size = in.getInt(i);
+		if (size < MIN_REQUEST_SIZE || size > MAX_REQUEST_SIZE)
+			return ProtocolDetectionResult.REJECTED;
+		// The client ID is a nullable string, so it's either absent or fits in the request
+		short clientIdLength = in.getShort(i + 12);
+		return clientIdLength == -1 || clientIdLength >= 0 && clientIdLength <= size - MIN_REQUEST_SIZE ?
+				ProtocolDetectionResult.DETECTED : ProtocolDetectionResult.REJECTED;
+	}
+	
+	/**
+	 * @return The API key of the first request, as an {@link Integer}
+	 */
+	@Override
+	public Object getAttachment(ByteBuf in) {
+		return (int) in.getShort(in.readerIndex() + 4);
+	}
+	
+	@Override
+	public void bind(ChannelHandlerContext ctx) {
+		bind.accept(ctx);
+	}
+	
+}
@@ -1,5 +1,7 @@
 package com.luneruniverse.nettymux.byteprotocol;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.function.Consumer;
 
 import com.luneruniverse.nettymux.ProtocolDetectionResult;
@@ -10,7 +12,7 @@ import io.netty.channel.ChannelHandlerContext;
 /**
  * Detects protocols that start by sending a specific byte sequence
  */
-public class MagicByteProtocol implements ByteProtocol {
+public class MagicByteProtocol implements PrefixByteProtocol {
 	
 	private final String alpnName;
 	private final byte[] magic;
@@ -35,17 +37,20 @@ public class MagicByteProtocol implements ByteProtocol {
 		return alpnName;
 	}
 	
+	@Override
+	public List<byte[]> getPrefixes() {
+		return Collections.singletonList(magic);
+	}
+	
 	@Override
 	public ProtocolDetectionResult attemptDetection(ByteBuf in) {
-		if (in.readableBytes() < magic.length)
-			return ProtocolDetectionResult.UNKNOWN;
-		
-		byte[] bytes = new byte[magic.length];
-		in.getBytes(in.readerIndex(), bytes);
-		for (int i = 0; i < magic.length; i++) {
-			if (bytes[i] != magic[i])
+		int length = Math.min(in.readableBytes(), magic.length);
+		for (int i = 0; i < length; i++) {
+			if (in.getByte(in.readerIndex() + i) != magic[i])
 				return ProtocolDetectionResult.REJECTED;
 		}
+		if (length < magic.length)
+			return ProtocolDetectionResult.UNKNOWN;
 		
 		if (removeMagic)
 			in.skipBytes(magic.length);
@@ -53,6 +58,12 @@ public class MagicByteProtocol implements ByteProtocol {
 		return ProtocolDetectionResult.DETECTED;
 	}
 	
+	@Override
+	public void prefixDetected(ByteBuf in, int prefixLength) {
+		if (removeMagic)
+			in.skipBytes(prefixLength);
+	}
+	
 	@Override
 	public void bind(ChannelHandlerContext ctx) {
 		bind.accept(ctx);
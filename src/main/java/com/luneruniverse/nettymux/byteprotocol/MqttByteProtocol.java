@@ -0,0 +1,103 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Detects MQTT clients by their CONNECT packet: the fixed header (packet type 1 with no flags, then the remaining
+ * length in 1 to 4 bytes), the protocol name (<code>MQTT</code>, or <code>MQIsdp</code> for MQTT 3.1), and a protocol
+ * level that matches the name. This takes 9 to 14 bytes. The packet is left in place for the MQTT handlers.
+ */
+public class MqttByteProtocol implements ByteProtocol {
+	
+	private static final byte CONNECT = 0x10;
+	/**
+	 * The length of the shortest variable header (MQTT 3.1.1: the protocol name, level, flags, and keep alive)
+	 */
+	private static final int MIN_REMAINING_LENGTH = 10;
+	private static final byte[] MQTT = {0x00, 0x04, 'M', 'Q', 'T', 'T'};
+	private static final byte[] MQISDP = {0x00, 0x06, 'M', 'Q', 'I', 's', 'd', 'p'};
+	
+	private final Consumer<ChannelHandlerContext> bind;
+	
+	/**
+	 * @param bind Set up the pipeline for MQTT (see {@link #bind(ChannelHandlerContext)} for details)
+	 */
+	public MqttByteProtocol(Consumer<ChannelHandlerContext> bind) {
+		this.bind = bind;
+	}
+	
+	/**
+	 * @return <code>mqtt</code>
+	 */
+	@Override
+	public String getAlpnName() {
+		return "mqtt";
+	}
+	
+	@Override
+	public ProtocolDetectionResult attemptDetection(ByteBuf in) {
+		int start = in.readerIndex();
+		int end = in.writerIndex();
+		if (start == end)
+			return ProtocolDetectionResult.UNKNOWN;
+		if (in.getByte(start) != CONNECT)
+			return ProtocolDetectionResult.REJECTED;
+		
+		// The remaining length is a variable byte integer of at most 4 bytes
+		int i = start + 1;
+		int remainingLength = 0;
+		for (int shift = 0;; shift += 7) {
+			if (i == end)
+				return ProtocolDetectionResult.UNKNOWN;
+			byte b = in.getByte(i++);
+			remainingLength |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				break;
+			if (shift == 21)
+				return ProtocolDetectionResult.REJECTED;
+		}
+		if (remainingLength < MIN_REMAINING_LENGTH)
+			return ProtocolDetectionResult.REJECTED;
+		
+		if (i + 1 >= end)
+			return i + 1 == end && in.getByte(i) != 0 ? ProtocolDetectionResult.REJECTED :
+					ProtocolDetectionResult.UNKNOWN;
+		byte[] name = in.getByte(i + 1) == MQTT[1] ? MQTT : MQISDP;
+		for (int j = 0; j < name.length; i++, j++) {
+			if (i == end)
+				return ProtocolDetectionResult.UNKNOWN;
+			if (in.getByte(i) != name[j])
+				return ProtocolDetectionResult.REJECTED;
+		}
+		
+		if (i == end)
+			return ProtocolDetectionResult.UNKNOWN;
+		byte level = in.getByte(i);
+		if (name == MQTT)
+			return level == 4 || level == 5 ? ProtocolDetectionResult.DETECTED : ProtocolDetectionResult.REJECTED;
+		return level == 3 ? ProtocolDetectionResult.DETECTED : ProtocolDetectionResult.REJECTED;
+	}
+	
+	/**
+	 * @return The protocol level, as an {@link Integer}: 3 (MQTT 3.1), 4 (MQTT 3.1.1), or 5 (MQTT 5.0)
+	 */
+	@Override
+	public Object getAttachment(ByteBuf in) {
+		int i = in.readerIndex() + 1;
+		while ((in.getByte(i) & 0x80) != 0)
+			i++;
+		i++;
+		return (int) in.getByte(i + (in.getByte(i + 1) == MQTT[1] ? MQTT.length : MQISDP.length));
+	}
+	
+	@Override
+	public void bind(ChannelHandlerContext ctx) {
+		bind.accept(ctx);
+	}
+	
+}
@@ -1,21 +1,52 @@
 package com.luneruniverse.nettymux.byteprotocol;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.luneruniverse.nettymux.AdmissionLimit;
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.DetectionLimitException;
+import com.luneruniverse.nettymux.DetectionOrder;
+import com.luneruniverse.nettymux.InvalidProtocolException;
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+import com.luneruniverse.nettymux.metrics.MultiplexerMetrics;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandler;
 import io.netty.handler.codec.ByteToMessageDecoder;
-import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SniHandler;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.Mapping;
 
 /**
  * A {@link ChannelInboundHandler} that identifies the protocol by the incoming bytes and calls
  * {@link ByteProtocol#bind(ChannelHandlerContext)} once identified. If none of the protocols are matched, an
  * {@link InvalidByteProtocolException} is thrown with a corresponding {@link InvalidByteProtocolException.Type}.
+ * If a limit set with {@link Builder#maxBufferedBytes(int)}, {@link Builder#detectionTimeout(long, TimeUnit)},
+ * {@link Builder#maxPendingHandshakes(int)}, or {@link Builder#bindTimeout(long, TimeUnit)} is hit first, a
+ * {@link DetectionLimitException} is fired and the channel is closed. Protocols can also be given an
+ * {@link AdmissionLimit}, which rejects channels without binding the protocol while it's overloaded. Behind a load
+ * balancer, a PROXY protocol header can be handled first (see {@link Builder#requireProxyProtocol()}). Protocols
+ * where the server speaks first can be bound when the client stays silent (see
+ * {@link Builder#fallbackOnSilence(ByteProtocol, long, TimeUnit)}).<br>
+ * <br>
+ * The received buffers are never copied: if the first read is enough, that buffer is passed along to the bound
+ * pipeline as it is, and otherwise the reads are joined in a {@link io.netty.buffer.CompositeByteBuf}.
  */
 public class NettyByteMultiplexer extends ByteToMessageDecoder {
 	
@@ -24,11 +55,28 @@ public class NettyByteMultiplexer extends ByteToMessageDecoder {
 	 */
 	public static class Builder {
 		private final List<ByteProtocol> protocols;
+		private final List<AdmissionLimit> limits;
 		private SslContext ssl;
+		private Mapping<? super String, ? extends SslContext> sni;
 		private boolean forceSsl;
+		private boolean proxyProtocol;
+		private boolean requireProxyProtocol;
+		private Executor sslExecutor;
+		private int maxPendingHandshakes;
+		private int maxBufferedBytes;
+		private long detectionTimeoutNanos;
+		private long bindTimeoutNanos;
+		private ByteProtocol silenceFallback;
+		private long silenceFallbackNanos;
+		private ByteProtocol rejectionFallback;
+		private long adaptiveOrderNanos;
+		private final List<Long> exclusiveGroups;
+		private MultiplexerMetrics metrics;
 		
 		public Builder() {
 			protocols = new ArrayList<>();
+			limits = new ArrayList<>();
+			exclusiveGroups = new ArrayList<>();
 		}
 		
 		/**
@@ -36,7 +84,17 @@ public class NettyByteMultiplexer extends ByteToMessageDecoder {
 		 * @return this
 		 */
 		public Builder addProtocol(ByteProtocol protocol) {
+			return addProtocol(protocol, null);
+		}
+		/**
+		 * @param protocol A possible incoming protocol
+		 * @param limit Checked once the protocol is detected (including by ALPN), before it's bound, or null for no
+		 * limit
+		 * @return this
+		 */
+		public Builder addProtocol(ByteProtocol protocol, AdmissionLimit limit) {
 			protocols.add(protocol);
+			limits.add(limit);
 			return this;
 		}
 		/**
@@ -45,7 +103,7 @@ public class NettyByteMultiplexer extends ByteToMessageDecoder {
 		 */
 		public Builder addProtocols(ByteProtocol... protocols) {
 			for (ByteProtocol protocol : protocols)
-				this.protocols.add(protocol);
+				addProtocol(protocol);
 			return this;
 		}
 		
@@ -59,6 +117,22 @@ public class NettyByteMultiplexer extends ByteToMessageDecoder {
 		public Builder forceSsl(SslContext ssl) {
 			Objects.requireNonNull(ssl, "ssl");
 			this.ssl = ssl;
+			this.sni = null;
+			this.forceSsl = true;
+			return this;
+		}
+		/**
+		 * Require all incoming connections to use SSL, choosing the server's SSL data by the hostname the client
+		 * requested with SNI; connections that don't request SSL will result in a {@link InvalidByteProtocolException}
+		 * with the type being {@link InvalidByteProtocolException.Type#NOT_SSL_WHEN_FORCED}
+		 * @param sni Maps the requested hostname (null if the client didn't use SNI) to the server's SSL data; see
+		 * {@link SslContextCache} for reusing {@link SslContext}s so returning clients can resume their sessions
+		 * @return this
+		 */
+		public Builder forceSsl(Mapping<? super String, ? extends SslContext> sni) {
+			Objects.requireNonNull(sni, "sni");
+			this.ssl = null;
+			this.sni = sni;
 			this.forceSsl = true;
 			return this;
 		}
@@ -70,6 +144,21 @@ public class NettyByteMultiplexer extends ByteToMessageDecoder {
 		public Builder optionalSsl(SslContext ssl) {
 			Objects.requireNonNull(ssl, "ssl");
 			this.ssl = ssl;
+			this.sni = null;
+			this.forceSsl = false;
+			return this;
+		}
+		/**
+		 * Allow incoming connections to use SSL, choosing the server's SSL data by the hostname the client requested
+		 * with SNI
+		 * @param sni Maps the requested hostname (null if the client didn't use SNI) to the server's SSL data; see
+		 * {@link SslContextCache} for reusing {@link SslContext}s so returning clients can resume their sessions
+		 * @return this
+		 */
+		public Builder optionalSsl(Mapping<? super String, ? extends SslContext> sni) {
+			Objects.requireNonNull(sni, "sni");
+			this.ssl = null;
+			this.sni = sni;
 			this.forceSsl = false;
 			return this;
 		}
@@ -82,22 +171,369 @@ public class NettyByteMultiplexer extends ByteToMessageDecoder {
 		 */
 		public Builder noSsl() {
 			this.ssl = null;
+			this.sni = null;
 			this.forceSsl = false;
 			return this;
 		}
 		
 		/**
-		 * @return A {@link NettyByteMultiplexer} with the added protocols and SSL settings
-		 * @throws IllegalStateException If no protocols were added (regardless of SSL settings)
+		 * Require all incoming connections to start with a PROXY protocol header (version 1 or 2), as sent by load
+		 * balancers such as HAProxy. The header is parsed in place and skipped, the {@link ProxyHeader} is stored in
+		 * the channel attribute {@link ProxyHeader#KEY}, and detection continues with the bytes that follow (including
+		 * checking for SSL). Connections without a header will result in a {@link InvalidByteProtocolException} with
+		 * the type being {@link InvalidByteProtocolException.Type#MISSING_PROXY_HEADER}, and ones with an invalid
+		 * header with the type being {@link InvalidByteProtocolException.Type#INVALID_PROXY_HEADER}.
+		 * @return this
+		 * @see ProxyHeader#getSourceAddress(io.netty.channel.Channel)
 		 */
-		public NettyByteMultiplexer build() throws IllegalStateException {
+		public Builder requireProxyProtocol() {
+			this.proxyProtocol = true;
+			this.requireProxyProtocol = true;
+			return this;
+		}
+		/**
+		 * Like {@link #requireProxyProtocol()}, but connections without a PROXY protocol header are detected as usual.
+		 * <strong>Warning:</strong> Only use this if the port can't be reached without going through the load
+		 * balancer, since otherwise clients can send their own header to claim any address.
+		 * @return this
+		 */
+		public Builder optionalProxyProtocol() {
+			this.proxyProtocol = true;
+			this.requireProxyProtocol = false;
+			return this;
+		}
+		/**
+		 * <em>This is the default behavior</em><br>
+		 * <br>
+		 * Don't check for a PROXY protocol header; if there is one, it's passed along to the protocols like any other
+		 * bytes (see {@link HAProxyByteProtocol})
+		 * @return this
+		 */
+		public Builder noProxyProtocol() {
+			this.proxyProtocol = false;
+			this.requireProxyProtocol = false;
+			return this;
+		}
+		
+		/**
+		 * Run the CPU-heavy parts of SSL handshakes (the {@link javax.net.ssl.SSLEngine}'s delegated tasks, such as
+		 * key exchange and certificate verification) on <code>executor</code> instead of the channel's event loop, so
+		 * a burst of handshakes doesn't stall the other channels on that event loop
+		 * @param executor Runs the delegated tasks, or null to run them on the event loop (the default)
+		 * @return this
+		 * @see SslContext#newHandler(ByteBufAllocator, Executor)
+		 */
+		public Builder sslExecutor(Executor executor) {
+			this.sslExecutor = executor;
+			return this;
+		}
+		/**
+		 * Limit how many SSL handshakes can be in progress at once across all channels created from the same
+		 * {@link Template}; if a channel starts a handshake while the limit is reached, a
+		 * {@link DetectionLimitException} with the type being {@link DetectionLimitException.Type#PENDING_HANDSHAKES}
+		 * is fired and the channel is closed
+		 * @param maxPendingHandshakes The maximum number of handshakes, or 0 for no limit (the default)
+		 * @return this
+		 * @throws IllegalArgumentException If <code>maxPendingHandshakes</code> is negative
+		 */
+		public Builder maxPendingHandshakes(int maxPendingHandshakes) throws IllegalArgumentException {
+			if (maxPendingHandshakes < 0)
+				throw new IllegalArgumentException("maxPendingHandshakes must not be negative!");
+			this.maxPendingHandshakes = maxPendingHandshakes;
+			return this;
+		}
+		
+		/**
+		 * Limit how many bytes can be buffered while detecting the protocol; if a protocol hasn't been detected by the
+		 * time more bytes have been received, a {@link DetectionLimitException} with the type being
+		 * {@link DetectionLimitException.Type#BUFFERED_BYTES} is fired and the channel is closed. This also limits the
+		 * bytes held onto while {@link ByteProtocol#bindAsync(ChannelHandlerContext)} is pending.
+		 * @param maxBufferedBytes The maximum number of bytes, or 0 for no limit (the default)
+		 * @return this
+		 * @throws IllegalArgumentException If <code>maxBufferedBytes</code> is negative
+		 */
+		public Builder maxBufferedBytes(int maxBufferedBytes) throws IllegalArgumentException {
+			if (maxBufferedBytes < 0)
+				throw new IllegalArgumentException("maxBufferedBytes must not be negative!");
+			this.maxBufferedBytes = maxBufferedBytes;
+			return this;
+		}
+		/**
+		 * Limit how long detection can take after the channel becomes active; if a protocol hasn't been detected by
+		 * then, a {@link DetectionLimitException} with the type being {@link DetectionLimitException.Type#TIMEOUT} is
+		 * fired and the channel is closed. The timer runs on the channel's event loop. When SSL is in use, a new timer
+		 * starts when the SSL handshake begins, which covers both the handshake and detecting the decrypted bytes.
+		 * @param timeout The maximum time, or 0 for no limit (the default)
+		 * @param unit The unit of <code>timeout</code>
+		 * @return this
+		 * @throws IllegalArgumentException If <code>timeout</code> is negative
+		 */
+		public Builder detectionTimeout(long timeout, TimeUnit unit) throws IllegalArgumentException {
+			if (timeout < 0)
+				throw new IllegalArgumentException("timeout must not be negative!");
+			this.detectionTimeoutNanos = unit.toNanos(timeout);
+			return this;
+		}
+		/**
+		 * Limit how long {@link ByteProtocol#bindAsync(ChannelHandlerContext)} can take; if the stage it returned
+		 * hasn't completed by then, a {@link DetectionLimitException} with the type being
+		 * {@link DetectionLimitException.Type#BIND_TIMEOUT} is fired and the channel is closed. The timer runs on the
+		 * channel's event loop.
+		 * @param timeout The maximum time, or 0 for no limit (the default)
+		 * @param unit The unit of <code>timeout</code>
+		 * @return this
+		 * @throws IllegalArgumentException If <code>timeout</code> is negative
+		 */
+		public Builder bindTimeout(long timeout, TimeUnit unit) throws IllegalArgumentException {
+			if (timeout < 0)
+				throw new IllegalArgumentException("timeout must not be negative!");
+			this.bindTimeoutNanos = unit.toNanos(timeout);
+			return this;
+		}
+		
+		/**
+		 * Bind <code>protocol</code> if the client hasn't sent anything (other than a PROXY protocol header) within
+		 * <code>delay</code>, for protocols where the server speaks first, such as SMTP or MySQL. Clients of these
+		 * protocols wait for the server's greeting, so they can only be told apart from the others by their silence.
+		 * The timer runs on the channel's event loop, and is cancelled as soon as bytes arrive.<br>
+		 * <br>
+		 * <code>protocol</code> is bound without being detected, so {@link ByteProtocol#attemptDetection(ByteBuf)}
+		 * isn't called and there is no {@link DetectionAttachment}. It can't be a {@link StatefulByteProtocol}, since
+		 * those are bound through a detector.
+		 * @param protocol The protocol to bind when the client is silent, or null to always wait for bytes (the
+		 * default)
+		 * @param delay How long to wait for the client's first bytes
+		 * @param unit The unit of <code>delay</code>
+		 * @return this
+		 * @throws IllegalArgumentException If <code>protocol</code> is a {@link StatefulByteProtocol}, or isn't null
+		 * and <code>delay</code> isn't positive
+		 */
+		public Builder fallbackOnSilence(ByteProtocol protocol, long delay, TimeUnit unit)
+				throws IllegalArgumentException {
+			checkFallback(protocol);
+			if (protocol != null && delay <= 0)
+				throw new IllegalArgumentException("delay must be positive!");
+			this.silenceFallback = protocol;
+			this.silenceFallbackNanos = protocol == null ? 0 : unit.toNanos(delay);
+			return this;
+		}
+		/**
+		 * Bind <code>protocol</code> instead of throwing an {@link InvalidByteProtocolException} with the type being
+		 * {@link InvalidByteProtocolException.Type#FAILED_TO_DETECT} when every protocol rejects the incoming bytes.
+		 * The bytes received so far are passed along to it. Like with
+		 * {@link #fallbackOnSilence(ByteProtocol, long, TimeUnit)}, <code>protocol</code> is bound without being
+		 * detected and can't be a {@link StatefulByteProtocol}.
+		 * @param protocol The protocol to bind when no protocol matches, or null to fail detection (the default)
+		 * @return this
+		 * @throws IllegalArgumentException If <code>protocol</code> is a {@link StatefulByteProtocol}
+		 */
+		public Builder fallbackOnRejection(ByteProtocol protocol) throws IllegalArgumentException {
+			checkFallback(protocol);
+			this.rejectionFallback = protocol;
+			return this;
+		}
+		private static void checkFallback(ByteProtocol protocol) throws IllegalArgumentException {
+			if (protocol instanceof StatefulByteProtocol)
+				throw new IllegalArgumentException("Fallbacks can't be stateful protocols!");
+		}
+		
+		/**
+		 * Try the protocols that are detected most often first, rather than always in the order they were added. The
+		 * template counts detections of each protocol and publishes a new order every <code>interval</code>, weighing
+		 * recent detections the most; see {@link DetectionOrder}. Protocols are only moved ahead of ones added before
+		 * them if they were declared with {@link #mutuallyExclusive(ByteProtocol...)}.
+		 * @param interval How often to reorder the protocols, or 0 to keep the order they were added in (the default)
+		 * @param unit The unit of <code>interval</code>
+		 * @return this
+		 * @throws IllegalArgumentException If <code>interval</code> is negative
+		 */
+		public Builder adaptiveOrder(long interval, TimeUnit unit) throws IllegalArgumentException {
+			if (interval < 0)
+				throw new IllegalArgumentException("interval must not be negative!");
+			this.adaptiveOrderNanos = unit.toNanos(interval);
+			return this;
+		}
+		/**
+		 * Declare that no input is detected as more than one of <code>protocols</code>, so that
+		 * {@link #adaptiveOrder(long, TimeUnit)} can try them in any order
+		 * @param protocols Protocols that have already been added
+		 * @return this
+		 * @throws IllegalArgumentException If any of <code>protocols</code> haven't been added
+		 */
+		public Builder mutuallyExclusive(ByteProtocol... protocols) throws IllegalArgumentException {
+			long group = 0;
+			for (ByteProtocol protocol : protocols) {
+				int i = this.protocols.indexOf(protocol);
+				if (i == -1 || i >= MAX_PROTOCOLS)
+					throw new IllegalArgumentException("The protocol must be added before it's declared exclusive!");
+				group |= 1L << i;
+			}
+			exclusiveGroups.add(group);
+			return this;
+		}
+		
+		/**
+		 * Report the outcome of detection on each channel, including protocols selected by ALPN
+		 * @param metrics Receives the outcome of detection, or null to not report it (the default)
+		 * @return this
+		 */
+		public Builder metrics(MultiplexerMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+		
+		/**
+		 * All of the {@link PrefixByteProtocol}s are compiled into a single matcher. Build the template once and use
+		 * {@link Template#newHandler()} for each channel rather than calling {@link #build()} for each channel.
+		 * @return A {@link Template} with the added protocols and SSL settings
+		 * @throws IllegalStateException If no protocols were added (regardless of SSL settings), or if more than
+		 * {@value NettyByteMultiplexer#MAX_PROTOCOLS} protocols were added
+		 */
+		public Template buildTemplate() throws IllegalStateException {
 			if (protocols.isEmpty())
 				throw new IllegalStateException("There are no protocols registered!");
+			if (protocols.size() > MAX_PROTOCOLS)
+				throw new IllegalStateException("There can be at most " + MAX_PROTOCOLS + " protocols registered!");
 			
-			return new NettyByteMultiplexer(new ArrayList<>(protocols), ssl, forceSsl);
+			return new Template(this);
+		}
+		/**
+		 * @return A {@link NettyByteMultiplexer} with the added protocols and SSL settings
+		 * @throws IllegalStateException If no protocols were added (regardless of SSL settings), or if more than
+		 * {@value NettyByteMultiplexer#MAX_PROTOCOLS} protocols were added
+		 * @see #buildTemplate()
+		 */
+		public NettyByteMultiplexer build() throws IllegalStateException {
+			return buildTemplate().newHandler();
+		}
+	}
+	
+	/**
+	 * The immutable, compiled settings of a {@link NettyByteMultiplexer}, which can be shared by all channels and
+	 * threads. Each channel only needs its own handler from {@link #newHandler()}, which holds nothing but the
+	 * channel's detection progress.
+	 */
+	public static final class Template {
+		private final ByteProtocol[] protocols;
+		private final PrefixTrie trie;
+		private final long allProtocols;
+		private final long passthroughProtocols;
+		private final Map<String, Integer> alpnProtocols;
+		private final AdmissionLimit[] limits;
+		private final SslContext ssl;
+		private final Mapping<? super String, ? extends SslContext> sni;
+		private final boolean forceSsl;
+		private final boolean proxyProtocol;
+		private final boolean requireProxyProtocol;
+		private final Executor sslExecutor;
+		private final int maxPendingHandshakes;
+		private final AtomicInteger pendingHandshakes;
+		private final int maxBufferedBytes;
+		private final long detectionTimeoutNanos;
+		private final long bindTimeoutNanos;
+		private final ByteProtocol silenceFallback;
+		private final long silenceFallbackNanos;
+		private final ByteProtocol rejectionFallback;
+		private final DetectionOrder order;
+		private final MultiplexerMetrics metrics;
+		
+		private Template(Builder builder) {
+			this.protocols = builder.protocols.toArray(new ByteProtocol[0]);
+			this.trie = new PrefixTrie(protocols);
+			this.allProtocols = -1L >>> (Long.SIZE - protocols.length);
+			long passthroughProtocols = 0;
+			for (int i = 0; i < protocols.length; i++) {
+				if (protocols[i] instanceof TlsPassthroughByteProtocol)
+					passthroughProtocols |= 1L << i;
+			}
+			this.passthroughProtocols = passthroughProtocols;
+			this.limits = builder.limits.toArray(new AdmissionLimit[0]);
+			this.alpnProtocols = new HashMap<>();
+			for (int i = 0; i < protocols.length; i++) {
+				String alpnName = protocols[i].getAlpnName();
+				if (alpnName != null)
+					alpnProtocols.putIfAbsent(alpnName, i);
+			}
+			this.ssl = builder.ssl;
+			this.sni = builder.sni;
+			this.forceSsl = builder.forceSsl;
+			this.proxyProtocol = builder.proxyProtocol;
+			this.requireProxyProtocol = builder.requireProxyProtocol;
+			this.sslExecutor = builder.sslExecutor;
+			this.maxPendingHandshakes = builder.maxPendingHandshakes;
+			this.pendingHandshakes = new AtomicInteger();
+			this.maxBufferedBytes = builder.maxBufferedBytes;
+			this.detectionTimeoutNanos = builder.detectionTimeoutNanos;
+			this.bindTimeoutNanos = builder.bindTimeoutNanos;
+			this.silenceFallback = builder.silenceFallback;
+			this.silenceFallbackNanos = builder.silenceFallbackNanos;
+			this.rejectionFallback = builder.rejectionFallback;
+			this.order = new DetectionOrder(protocols.length,
+					builder.exclusiveGroups.stream().mapToLong(Long::longValue).toArray(), builder.adaptiveOrderNanos);
+			this.metrics = builder.metrics;
+		}
+		
+		/**
+		 * @return A new {@link NettyByteMultiplexer} for a single channel
+		 */
+		public NettyByteMultiplexer newHandler() {
+			return new NettyByteMultiplexer(this, ssl != null || sni != null, proxyProtocol, 0, 0);
+		}
+		
+		/**
+		 * @return The protocols in the order they're currently tried
+		 * @see Builder#adaptiveOrder(long, TimeUnit)
+		 */
+		public List<ByteProtocol> getDetectionOrder() {
+			List<ByteProtocol> output = new ArrayList<>();
+			for (int i : order.get())
+				output.add(protocols[i]);
+			return output;
+		}
+		
+		/**
+		 * @return The number of SSL handshakes currently in progress on channels created from this template
+		 */
+		public int getPendingHandshakes() {
+			return pendingHandshakes.get();
+		}
+		
+		private ChannelHandler newSslHandler(ByteBufAllocator alloc) {
+			if (ssl != null)
+				return sslExecutor == null ? ssl.newHandler(alloc) : ssl.newHandler(alloc, sslExecutor);
+			if (sslExecutor == null)
+				return new SniHandler(sni);
+			return new SniHandler(sni) {
+				@Override
+				protected SslHandler newSslHandler(SslContext context, ByteBufAllocator allocator) {
+					return context.newHandler(allocator, sslExecutor);
+				}
+			};
+		}
+		
+		/**
+		 * @return If a handshake can start, in which case {@link #handshakeDone()} must be called once it's over
+		 */
+		private boolean handshakeStarted() {
+			if (maxPendingHandshakes == 0)
+				return true;
+			if (pendingHandshakes.incrementAndGet() <= maxPendingHandshakes)
+				return true;
+			pendingHandshakes.decrementAndGet();
+			return false;
+		}
+		
+		private void handshakeDone() {
+			if (maxPendingHandshakes != 0)
+				pendingHandshakes.decrementAndGet();
 		}
 	}
 	
+	/**
+	 * The maximum number of protocols that can be registered in a single {@link NettyByteMultiplexer}
+	 */
+	public static final int MAX_PROTOCOLS = Long.SIZE;
+	
 	/**
 	 * @return A {@link Builder} to create a {@link NettyByteMultiplexer}
 	 */
@@ -105,64 +541,465 @@ public class NettyByteMultiplexer extends ByteToMessageDecoder {
 		return new Builder();
 	}
 	
-	private final List<ByteProtocol> protocols;
-	private final SslContext ssl;
-	private final boolean forceSsl;
+	private final Template template;
+	private final boolean checkSsl;
+	private boolean checkProxy;
+	private long candidates;
+	private ByteProtocolDetector[] detectors;
+	private int trieNode;
+	private int trieOffset;
+	private long trieDetected;
+	private ScheduledFuture<?> timeout;
+	private ScheduledFuture<?> silenceTimeout;
+	private boolean failed;
+	private boolean binding;
+	private boolean handshaking;
+	private boolean alpn;
+	private int handshakeBytes;
+	private boolean autoRead;
+	private long startNanos;
+	private int reads;
+	
+	/**
+	 * @param template The shared settings
+	 * @param checkSsl If SSL is in use and hasn't been handled yet
+	 * @param checkProxy If the PROXY protocol is in use and the header hasn't been handled yet
+	 * @param startNanos When the channel became active, or 0 if it hasn't yet
+	 * @param reads The number of reads already made by the channel
+	 */
+	private NettyByteMultiplexer(Template template, boolean checkSsl, boolean checkProxy, long startNanos, int reads) {
+		this.template = template;
+		this.checkSsl = checkSsl;
+		this.checkProxy = checkProxy;
+		this.startNanos = startNanos;
+		this.reads = reads;
+		this.candidates = template.allProtocols;
+		this.trieNode = PrefixTrie.ROOT;
+		this.trieDetected = template.trie.accepting(PrefixTrie.ROOT);
+		// Detection only reads the bytes, so buffers from multiple reads are joined without being copied
+		setCumulator(COMPOSITE_CUMULATOR);
+	}
+	
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+		// The channel can close before an SslHandler exists to report the handshake as failed
+		if (handshaking)
+			ctx.channel().closeFuture().addListener(future -> handshakeDone());
+		if (ctx.channel().isActive())
+			start(ctx);
+	}
+	
+	@Override
+	public void channelActive(ChannelHandlerContext ctx) throws Exception {
+		start(ctx);
+		super.channelActive(ctx);
+	}
+	
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		reads++;
+		super.channelRead(ctx, msg);
+	}
+	
+	@Override
+	protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+		if (timeout != null) {
+			timeout.cancel(false);
+			timeout = null;
+		}
+		cancelSilenceTimeout();
+	}
+	
+	private void cancelSilenceTimeout() {
+		if (silenceTimeout != null) {
+			silenceTimeout.cancel(false);
+			silenceTimeout = null;
+		}
+	}
+	
+	private void start(ChannelHandlerContext ctx) {
+		if (binding)
+			return;
+		if (template.metrics != null && startNanos == 0)
+			startNanos = System.nanoTime();
+		if (template.detectionTimeoutNanos > 0 && timeout == null) {
+			timeout = ctx.executor().schedule(() -> fail(ctx, null, DetectionLimitException.Type.TIMEOUT),
+					template.detectionTimeoutNanos, TimeUnit.NANOSECONDS);
+		}
+		if (template.silenceFallback != null && silenceTimeout == null && !handshaking) {
+			silenceTimeout = ctx.executor().schedule(() -> silent(ctx), template.silenceFallbackNanos,
+					TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	/**
+	 * Bind the silence fallback if the client still hasn't sent anything
+	 * @param ctx The context of this handler
+	 */
+	private void silent(ChannelHandlerContext ctx) {
+		silenceTimeout = null;
+		ByteBuf in = internalBuffer();
+		if (failed || binding || ctx.isRemoved() || in.isReadable())
+			return;
+		bind(ctx, template.silenceFallback, null, null, 0);
+	}
+	
+	@Override
+	public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+		if (handshaking && evt instanceof SslHandshakeCompletionEvent) {
+			handshakeDone();
+			if (!((SslHandshakeCompletionEvent) evt).isSuccess())
+				ctx.close();
+			else {
+				try {
+					handshook(ctx);
+				} catch (InvalidByteProtocolException e) {
+					abandon(ctx, internalBuffer(), e);
+				}
+			}
+		}
+		super.userEventTriggered(ctx, evt);
+	}
+	
+	private void handshakeDone() {
+		if (handshaking) {
+			handshaking = false;
+			template.handshakeDone();
+		}
+	}
+	
+	/**
+	 * Continue with the decrypted bytes once the SSL handshake is done, binding the protocol selected by ALPN if
+	 * there is one. A selected {@link StatefulByteProtocol} becomes the only candidate instead, since its detector
+	 * still needs to check the decrypted bytes.
+	 * @param ctx The context of this handler
+	 * @throws InvalidByteProtocolException If ALPN selected a protocol that wasn't added
+	 */
+	private void handshook(ChannelHandlerContext ctx) throws InvalidByteProtocolException {
+		SslHandler sslHandler = ctx.pipeline().get(SslHandler.class);
+		String selectedProtocol = sslHandler == null ? null : sslHandler.applicationProtocol();
+		if (selectedProtocol != null && !selectedProtocol.isEmpty()) {
+			Integer i = template.alpnProtocols.get(selectedProtocol);
+			if (i == null) {
+				throw failed(new InvalidByteProtocolException(
+						InvalidByteProtocolException.Type.INVALID_ALPN_PROTOCOL), handshakeBytes);
+			}
+			ByteProtocol protocol = template.protocols[i];
+			alpn = true;
+			if (protocol instanceof StatefulByteProtocol)
+				candidates = 1L << i;
+			else {
+				ByteBuf in = internalBuffer();
+				if (!admitted(ctx, protocol, true, template.limits[i])) {
+					failed = true;
+					in.skipBytes(in.readableBytes());
+					return;
+				}
+				// The protocol was chosen without checking the bytes, so it's only asked for an attachment if the
+				// decrypted bytes received so far detect it
+				Object attachment = null;
+				if (in.isReadable() && protocol.attemptDetection(in) == ProtocolDetectionResult.DETECTED)
+					attachment = protocol.getAttachment(in);
+				bind(ctx, protocol, null, attachment, handshakeBytes);
+				return;
+			}
+		}
+		
+		start(ctx);
+		ByteBuf in = internalBuffer();
+		if (in.isReadable())
+			callDecode(ctx, in, new ArrayList<>());
+	}
+	
+	/**
+	 * Abandon detection, dropping any buffered bytes
+	 * @param ctx The context of this handler
+	 * @param in The currently received bytes, or null if not called while decoding
+	 * @param type The limit that was hit
+	 */
+	private void fail(ChannelHandlerContext ctx, ByteBuf in, DetectionLimitException.Type type) {
+		if (failed || ctx.isRemoved())
+			return;
+		if (in == null)
+			in = internalBuffer();
+		DetectionLimitException cause = new DetectionLimitException(type);
+		// The protocol was already reported as detected if this happened while binding
+		abandon(ctx, in, binding ? cause : failed(cause, in.readableBytes()));
+	}
+	
+	private void abandon(ChannelHandlerContext ctx, ByteBuf in, Throwable cause) {
+		failed = true;
+		in.skipBytes(in.readableBytes());
+		ctx.fireExceptionCaught(cause);
+		ctx.close();
+	}
+	
+	/**
+	 * Wait for an asynchronous bind to complete before removing this handler, holding onto the received bytes and
+	 * not reading in the meantime
+	 * @param ctx The context of this handler
+	 * @param stage The stage returned by the bind
+	 */
+	private void awaitBind(ChannelHandlerContext ctx, CompletionStage<?> stage) {
+		binding = true;
+		if (timeout != null)
+			timeout.cancel(false);
+		timeout = null;
+		cancelSilenceTimeout();
+		ChannelConfig config = ctx.channel().config();
+		autoRead = config.isAutoRead();
+		config.setAutoRead(false);
+		if (template.bindTimeoutNanos > 0) {
+			timeout = ctx.executor().schedule(() -> fail(ctx, null, DetectionLimitException.Type.BIND_TIMEOUT),
+					template.bindTimeoutNanos, TimeUnit.NANOSECONDS);
+		}
+		
+		stage.whenComplete((result, cause) -> {
+			if (ctx.executor().inEventLoop())
+				bound(ctx, cause);
+			else
+				ctx.executor().execute(() -> bound(ctx, cause));
+		});
+	}
+	
+	private void bound(ChannelHandlerContext ctx, Throwable cause) {
+		if (failed || ctx.isRemoved() || !ctx.channel().isActive())
+			return;
+		if (cause != null) {
+			abandon(ctx, internalBuffer(),
+					cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause);
+			return;
+		}
+		ctx.pipeline().remove(this);
+		if (autoRead)
+			ctx.channel().config().setAutoRead(true);
+	}
+	
+	private void detected(Object protocol, boolean alpn, int buffered) {
+		if (template.metrics != null)
+			template.metrics.protocolDetected(protocol, alpn, buffered, reads, System.nanoTime() - startNanos);
+	}
+	
+	/**
+	 * @param ctx The context of the handler binding the protocol
+	 * @param protocol The detected protocol
+	 * @param alpn If the protocol was selected by ALPN negotiation
+	 * @param limit The protocol's limit, or null if it doesn't have one
+	 * @return If the protocol can be bound; otherwise, the channel was rejected
+	 */
+	private boolean admitted(ChannelHandlerContext ctx, Object protocol, boolean alpn, AdmissionLimit limit) {
+		if (limit == null || limit.tryAdmit(ctx.channel()))
+			return true;
+		if (template.metrics != null)
+			template.metrics.admissionRejected(protocol, alpn);
+		limit.reject(ctx);
+		return false;
+	}
 	
-	private NettyByteMultiplexer(List<ByteProtocol> protocols, SslContext ssl, boolean forceSsl) {
-		this.protocols = protocols;
-		this.ssl = ssl;
-		this.forceSsl = forceSsl;
+	private <T extends InvalidProtocolException> T failed(T cause, int buffered) {
+		if (template.metrics != null)
+			template.metrics.detectionFailed(cause, buffered, reads, System.nanoTime() - startNanos);
+		return cause;
 	}
 	
 	@Override
 	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-		if (ssl != null) {
+		if (failed) {
+			in.skipBytes(in.readableBytes());
+			return;
+		}
+		if (binding) {
+			// Reading stops while binding, but bytes from a read that was already underway still arrive
+			if (template.maxBufferedBytes > 0 && in.readableBytes() > template.maxBufferedBytes)
+				fail(ctx, in, DetectionLimitException.Type.BUFFERED_BYTES);
+			return;
+		}
+		if (handshaking)
+			return;
+		
+		PrefixTrie trie = template.trie;
+		int buffered = in.readableBytes();
+		
+		if (checkProxy && (!proxyHeader(ctx, in, buffered) || !in.isReadable()))
+			return;
+		cancelSilenceTimeout();
+		
+		if (checkSsl) {
 			if (in.getByte(in.readerIndex()) == 0x16) {
-				String sslHandlerName = ctx.name() + "#sslHandler";
-				ctx.pipeline().addAfter(ctx.name(), sslHandlerName, ssl.newHandler(ctx.alloc()));
-				ctx.pipeline().addAfter(sslHandlerName, null, new ApplicationProtocolNegotiationHandler("") {
-					@Override
-					protected void configurePipeline(ChannelHandlerContext ctx, String selectedProtocol) throws Exception {
-						if (selectedProtocol.isEmpty()) {
-							ctx.pipeline().addAfter(ctx.name(), null, new NettyByteMultiplexer(protocols, null, false));
-							return;
-						}
-						
-						for (ByteProtocol protocol : protocols) {
-							if (selectedProtocol.equals(protocol.getAlpnName())) {
-								protocol.bind(ctx);
-								return;
-							}
-						}
-						
-						throw new InvalidByteProtocolException(InvalidByteProtocolException.Type.INVALID_ALPN_PROTOCOL);
+				if ((candidates & template.passthroughProtocols) != 0) {
+					// Protocols that forward TLS untouched get the first chance at the ClientHello
+					if (detect(ctx, in, candidates & template.passthroughProtocols, 0, buffered))
+						return;
+					if ((candidates & template.passthroughProtocols) != 0) {
+						if (template.maxBufferedBytes > 0 && buffered > template.maxBufferedBytes)
+							fail(ctx, in, DetectionLimitException.Type.BUFFERED_BYTES);
+						return;
 					}
-				});
+				}
+				
+				if (!template.handshakeStarted()) {
+					fail(ctx, in, DetectionLimitException.Type.PENDING_HANDSHAKES);
+					return;
+				}
+				
+				String sslHandlerName = ctx.name() + "#sslHandler";
+				ctx.pipeline().addAfter(ctx.name(), sslHandlerName, template.newSslHandler(ctx.alloc()));
+				// The decrypted bytes are detected by a single handler, which also handles the handshake and ALPN
+				NettyByteMultiplexer multiplexer = new NettyByteMultiplexer(template, false, false, startNanos, reads);
+				multiplexer.handshaking = true;
+				multiplexer.handshakeBytes = buffered;
+				ctx.pipeline().addAfter(sslHandlerName, null, multiplexer);
 				ctx.pipeline().remove(this);
 				return;
-			} else if (forceSsl)
-				throw new InvalidByteProtocolException(InvalidByteProtocolException.Type.NOT_SSL_WHEN_FORCED);
+			} else if (template.forceSsl)
+				throw failed(new InvalidByteProtocolException(InvalidByteProtocolException.Type.NOT_SSL_WHEN_FORCED),
+						buffered);
+		}
+		
+		if ((candidates & trie.mask) != 0) {
+			// Only the bytes that arrived since the last call need to be walked
+			for (int i = in.readerIndex() + trieOffset; i < in.writerIndex() && trie.pending(trieNode) != 0; i++) {
+				trieNode = trie.next(trieNode, in.getByte(i));
+				trieDetected |= trie.accepting(trieNode);
+				trieOffset++;
+			}
+		}
+		if (detect(ctx, in, candidates, trie.pending(trieNode) & ~trieDetected, buffered))
+			return;
+		
+		if (candidates == 0 && template.rejectionFallback != null) {
+			bind(ctx, template.rejectionFallback, null, null, buffered);
+			return;
 		}
+		if (candidates == 0)
+			throw failed(new InvalidByteProtocolException(InvalidByteProtocolException.Type.FAILED_TO_DETECT), buffered);
 		
-		for (Iterator<ByteProtocol> i = protocols.iterator(); i.hasNext();) {
-			ByteProtocol protocol = i.next();
+		if (template.maxBufferedBytes > 0 && buffered > template.maxBufferedBytes)
+			fail(ctx, in, DetectionLimitException.Type.BUFFERED_BYTES);
+	}
+	
+	/**
+	 * Parse and skip the PROXY protocol header at the start of <code>in</code>, storing it in {@link ProxyHeader#KEY}
+	 * @param ctx The context of this handler
+	 * @param in The currently received bytes
+	 * @param buffered The number of bytes received so far
+	 * @return If detection can continue with the bytes after the header
+	 * @throws InvalidByteProtocolException If the header is invalid, or missing when it's required
+	 */
+	private boolean proxyHeader(ChannelHandlerContext ctx, ByteBuf in, int buffered)
+			throws InvalidByteProtocolException {
+		if (ProxyHeader.detect(in) == ProtocolDetectionResult.REJECTED) {
+			if (template.requireProxyProtocol) {
+				throw failed(new InvalidByteProtocolException(InvalidByteProtocolException.Type.MISSING_PROXY_HEADER),
+						buffered);
+			}
+			checkProxy = false;
+			return true;
+		}
+		
+		ProxyHeader header;
+		try {
+			header = ProxyHeader.parse(in);
+		} catch (IllegalArgumentException e) {
+			throw failed(new InvalidByteProtocolException(InvalidByteProtocolException.Type.INVALID_PROXY_HEADER),
+					buffered);
+		}
+		if (header == null) {
+			if (template.maxBufferedBytes > 0 && buffered > template.maxBufferedBytes)
+				fail(ctx, in, DetectionLimitException.Type.BUFFERED_BYTES);
+			return false;
+		}
+		
+		checkProxy = false;
+		in.skipBytes(header.getLength());
+		ctx.channel().attr(ProxyHeader.KEY).set(header);
+		return true;
+	}
+	
+	/**
+	 * Check the protocols in <code>mask</code> in the template's detection order, binding the first one that is
+	 * detected and removing the rejected ones from the candidates
+	 * @param ctx The context of this handler
+	 * @param in The currently received bytes
+	 * @param mask The protocols to check
+	 * @param pending The protocols that the compiled matcher can't decide yet
+	 * @param buffered The number of bytes received so far
+	 * @return If a protocol was detected and bound
+	 */
+	private boolean detect(ChannelHandlerContext ctx, ByteBuf in, long mask, long pending, int buffered) {
+		ByteProtocol[] protocols = template.protocols;
+		PrefixTrie trie = template.trie;
+		for (int i : template.order.get()) {
+			long bit = 1L << i;
+			if ((mask & bit) == 0)
+				continue;
+			ByteProtocol protocol = protocols[i];
+			ByteProtocolDetector detector = null;
+			
+			ProtocolDetectionResult result;
+			if ((trie.mask & bit) != 0) {
+				result = (trieDetected & bit) != 0 ? ProtocolDetectionResult.DETECTED :
+						(pending & bit) != 0 ? ProtocolDetectionResult.UNKNOWN : ProtocolDetectionResult.REJECTED;
+				if (result == ProtocolDetectionResult.DETECTED)
+					((PrefixByteProtocol) protocol).prefixDetected(in, trie.prefixLength(in, i));
+			} else if ((detector = detector(i)) != null)
+				result = detector.attemptDetection(in);
+			else
+				result = protocol.attemptDetection(in);
 			
-			switch (protocol.attemptDetection(in)) {
+			switch (result) {
 				case DETECTED:
-					protocol.bind(ctx);
-					ctx.pipeline().remove(this);
-					return;
+					template.order.hit(i);
+					if (!admitted(ctx, protocol, alpn, template.limits[i])) {
+						failed = true;
+						in.skipBytes(in.readableBytes());
+						return true;
+					}
+					bind(ctx, protocol, detector,
+							detector == null ? protocol.getAttachment(in) : detector.getAttachment(), buffered);
+					return true;
 				case UNKNOWN:
 					break;
 				case REJECTED:
-					i.remove();
+					candidates &= ~bit;
 					break;
 			}
 		}
-		
-		if (protocols.isEmpty())
-			throw new InvalidByteProtocolException(InvalidByteProtocolException.Type.FAILED_TO_DETECT);
+		return false;
+	}
+	
+	/**
+	 * Bind a protocol, then remove this handler once it's bound
+	 * @param ctx The context of this handler
+	 * @param protocol The detected protocol
+	 * @param detector The protocol's detector for this channel, or null if it doesn't have one
+	 * @param attachment What was learned during detection, or null for fallbacks, which aren't detected
+	 * @param buffered The number of bytes received so far
+	 */
+	private void bind(ChannelHandlerContext ctx, ByteProtocol protocol, ByteProtocolDetector detector,
+			Object attachment, int buffered) {
+		DetectionAttachment.set(ctx.channel(), attachment);
+		CompletionStage<?> stage = detector == null ? protocol.bindAsync(ctx) : detector.bindAsync(ctx);
+		detected(protocol, alpn, buffered);
+		if (stage == null)
+			ctx.pipeline().remove(this);
+		else
+			awaitBind(ctx, stage);
+	}
+	
+	/**
+	 * @param i The index of the protocol
+	 * @return The detector for this channel if the protocol is a {@link StatefulByteProtocol}, otherwise null
+	 */
+	private ByteProtocolDetector detector(int i) {
+		ByteProtocol[] protocols = template.protocols;
+		if (!(protocols[i] instanceof StatefulByteProtocol))
+			return null;
+		if (detectors == null)
+			detectors = new ByteProtocolDetector[protocols.length];
+		if (detectors[i] == null)
+			detectors[i] = ((StatefulByteProtocol) protocols[i]).newDetector();
+		return detectors[i];
 	}
 	
 }
@@ -0,0 +1,123 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Detects PostgreSQL clients by the first message they send, which starts with its length and a code: a
+ * StartupMessage (protocol version 3.x), an SSLRequest, a GSSENCRequest, or a CancelRequest. This takes 8 bytes, and
+ * most other protocols are rejected after the first one. The message is left in place for the PostgreSQL handlers;
+ * {@link #getAttachment(ByteBuf)} tells them which one it is.<br>
+ * <br>
+ * Clients using direct SSL negotiation (PostgreSQL 17 and later) start with a TLS handshake instead, and are selected
+ * by ALPN.
+ */
+public class PostgresByteProtocol implements ByteProtocol {
+	
+	/**
+	 * The kinds of messages that can start a PostgreSQL connection
+	 */
+	public enum Request {
+		/**
+		 * Starts a session, with the parameters following the protocol version
+		 */
+		STARTUP,
+		/**
+		 * Asks for a TLS handshake, which the server allows by replying with <code>S</code>
+		 */
+		SSL,
+		/**
+		 * Asks for GSSAPI encryption, which the server allows by replying with <code>G</code>
+		 */
+		GSS_ENCRYPTION,
+		/**
+		 * Cancels a query running on another connection
+		 */
+		CANCEL
+	}
+	
+	private static final int PROTOCOL_MAJOR_VERSION = 3;
+	private static final int SSL_REQUEST_CODE = 80877103;
+	private static final int GSSENC_REQUEST_CODE = 80877104;
+	private static final int CANCEL_REQUEST_CODE = 80877102;
+	/**
+	 * The server rejects longer startup messages
+	 */
+	private static final int MAX_STARTUP_LENGTH = 10000;
+	/**
+	 * A CancelRequest's secret key is 4 bytes before protocol version 3.2, and at most 256 bytes after
+	 */
+	private static final int MIN_CANCEL_LENGTH = 16;
+	private static final int MAX_CANCEL_LENGTH = 12 + 256;
+	
+	private final Consumer<ChannelHandlerContext> bind;
+	
+	/**
+	 * @param bind Set up the pipeline for PostgreSQL (see {@link #bind(ChannelHandlerContext)} for details)
+	 */
+	public PostgresByteProtocol(Consumer<ChannelHandlerContext> bind) {
+		this.bind = bind;
+	}
+	
+	/**
+	 * @return <code>postgresql</code>
+	 */
+	@Override
+	public String getAlpnName() {
+		return "postgresql";
+	}
+	
+	@Override
+	public ProtocolDetectionResult attemptDetection(ByteBuf in) {
+		int i = in.readerIndex();
+		int readable = in.readableBytes();
+		// None of the messages are longer than 64 KiB
+		if (readable >= 1 && in.getByte(i) != 0 || readable >= 2 && in.getByte(i + 1) != 0)
+			return ProtocolDetectionResult.REJECTED;
+		// The codes start with 0x0003 (a protocol version) or 0x04D2 (1234, for special requests)
+		if (readable >= 5 && in.getByte(i + 4) != 0x00 && in.getByte(i + 4) != 0x04)
+			return ProtocolDetectionResult.REJECTED;
+		if (readable < 8)
+			return ProtocolDetectionResult.UNKNOWN;
+		return request(in) == null ? ProtocolDetectionResult.REJECTED : ProtocolDetectionResult.DETECTED;
+	}
+	
+	/**
+	 * @param in At least 8 bytes
+	 * @return The kind of message, or null if it isn't one
+	 */
+	private static Request request(ByteBuf in) {
+		int length = in.getInt(in.readerIndex());
+		int code = in.getInt(in.readerIndex() + 4);
+		if (code >>> 16 == PROTOCOL_MAJOR_VERSION)
+			return length >= 8 && length <= MAX_STARTUP_LENGTH ? Request.STARTUP : null;
+		switch (code) {
+			case SSL_REQUEST_CODE:
+				return length == 8 ? Request.SSL : null;
+			case GSSENC_REQUEST_CODE:
+				return length == 8 ? Request.GSS_ENCRYPTION : null;
+			case CANCEL_REQUEST_CODE:
+				return length >= MIN_CANCEL_LENGTH && length <= MAX_CANCEL_LENGTH ? Request.CANCEL : null;
+			default:
+				return null;
+		}
+	}
+	
+	/**
+	 * @return The {@link Request} that the connection starts with
+	 */
+	@Override
+	public Object getAttachment(ByteBuf in) {
+		return request(in);
+	}
+	
+	@Override
+	public void bind(ChannelHandlerContext ctx) {
+		bind.accept(ctx);
+	}
+	
+}
@@ -0,0 +1,32 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.util.List;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A {@link ByteProtocol} that is detected purely by the incoming bytes starting with one of a fixed set of prefixes.
+ * {@link NettyByteMultiplexer} compiles the prefixes of all of its {@link PrefixByteProtocol}s into a single matcher,
+ * so each incoming byte is only examined once regardless of how many of these protocols are registered; in that case,
+ * {@link #attemptDetection(ByteBuf)} isn't called.
+ */
+public interface PrefixByteProtocol extends ByteProtocol {
+	/**
+	 * The incoming bytes must start with one of these for this protocol to be detected. The result must not change,
+	 * and {@link #attemptDetection(ByteBuf)} must be consistent with it.
+	 * @return The byte sequences that start this protocol
+	 */
+	public List<byte[]> getPrefixes();
+	/**
+	 * Called when this protocol was detected by a compiled matcher instead of {@link #attemptDetection(ByteBuf)},
+	 * which is where the reader index of <code>in</code> can be moved in the same way as it would have been in
+	 * {@link #attemptDetection(ByteBuf)} when returning {@link ProtocolDetectionResult#DETECTED}
+	 * @param in The currently received bytes
+	 * @param prefixLength The length of the prefix that was matched
+	 */
+	public default void prefixDetected(ByteBuf in, int prefixLength) {
+		
+	}
+}
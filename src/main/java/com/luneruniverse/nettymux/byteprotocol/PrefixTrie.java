@@ -0,0 +1,139 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * The prefixes of all of the {@link PrefixByteProtocol}s of a multiplexer, compiled into a table-based trie. Protocols
+ * are identified by their index in the multiplexer, so sets of them are represented as <code>long</code> bitmasks.
+ * Nodes are identified by <code>int</code>s, with {@link #ROOT} being the start and {@link #DEAD} meaning no prefix
+ * can match anymore.
+ */
+final class PrefixTrie {
+	
+	static final int ROOT = 0;
+	static final int DEAD = -1;
+	
+	private static final class Node {
+		private final List<Byte> keys = new ArrayList<>();
+		private final List<Node> children = new ArrayList<>();
+		private long accepting;
+		private long pending;
+		private int id;
+	}
+	
+	/**
+	 * All of the protocols that are matched by this trie
+	 */
+	final long mask;
+	
+	private final int[] edgeStart;
+	private final byte[] edgeKeys;
+	private final int[] edgeTargets;
+	private final long[] accepting;
+	private final long[] pending;
+	
+	/**
+	 * @param protocols The protocols of the multiplexer; only {@link PrefixByteProtocol}s are compiled
+	 */
+	PrefixTrie(ByteProtocol[] protocols) {
+		Node root = new Node();
+		List<Node> nodes = new ArrayList<>();
+		nodes.add(root);
+		
+		long mask = 0;
+		for (int i = 0; i < protocols.length; i++) {
+			if (!(protocols[i] instanceof PrefixByteProtocol))
+				continue;
+			long bit = 1L << i;
+			mask |= bit;
+			
+			for (byte[] prefix : ((PrefixByteProtocol) protocols[i]).getPrefixes()) {
+				Node node = root;
+				for (byte b : prefix) {
+					node.pending |= bit;
+					int index = node.keys.indexOf(b);
+					if (index == -1) {
+						Node child = new Node();
+						child.id = nodes.size();
+						nodes.add(child);
+						node.keys.add(b);
+						node.children.add(child);
+						node = child;
+					} else
+						node = node.children.get(index);
+				}
+				node.accepting |= bit;
+			}
+		}
+		this.mask = mask;
+		
+		int edges = nodes.size() - 1;
+		edgeStart = new int[nodes.size() + 1];
+		edgeKeys = new byte[edges];
+		edgeTargets = new int[edges];
+		accepting = new long[nodes.size()];
+		pending = new long[nodes.size()];
+		int edge = 0;
+		for (Node node : nodes) {
+			edgeStart[node.id] = edge;
+			for (int i = 0; i < node.keys.size(); i++) {
+				edgeKeys[edge] = node.keys.get(i);
+				edgeTargets[edge] = node.children.get(i).id;
+				edge++;
+			}
+			accepting[node.id] = node.accepting;
+			pending[node.id] = node.pending;
+		}
+		edgeStart[nodes.size()] = edge;
+	}
+	
+	/**
+	 * @param node The current node
+	 * @param b The next byte
+	 * @return The node after <code>b</code>, or {@link #DEAD}
+	 */
+	int next(int node, byte b) {
+		for (int edge = edgeStart[node], end = edgeStart[node + 1]; edge < end; edge++) {
+			if (edgeKeys[edge] == b)
+				return edgeTargets[edge];
+		}
+		return DEAD;
+	}
+	
+	/**
+	 * @param node The current node
+	 * @return The protocols with a prefix ending at <code>node</code>
+	 */
+	long accepting(int node) {
+		return node == DEAD ? 0 : accepting[node];
+	}
+	
+	/**
+	 * @param node The current node
+	 * @return The protocols with a prefix continuing past <code>node</code>
+	 */
+	long pending(int node) {
+		return node == DEAD ? 0 : pending[node];
+	}
+	
+	/**
+	 * Find the length of the shortest prefix of a protocol that <code>in</code> starts with
+	 * @param in The currently received bytes
+	 * @param protocol The index of the protocol, which must have been detected by this trie
+	 * @return The length of the matched prefix
+	 */
+	int prefixLength(ByteBuf in, int protocol) {
+		long bit = 1L << protocol;
+		int node = ROOT;
+		int length = 0;
+		while ((accepting[node] & bit) == 0) {
+			node = next(node, in.getByte(in.readerIndex() + length));
+			length++;
+		}
+		return length;
+	}
+	
+}
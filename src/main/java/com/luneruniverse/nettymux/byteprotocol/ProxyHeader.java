@@ -0,0 +1,435 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.NetUtil;
+
+/**
+ * A PROXY protocol header (version 1 or 2), which load balancers such as HAProxy send at the start of a connection to
+ * pass along the client's address. When {@link NettyByteMultiplexer} handles the header (see
+ * {@link NettyByteMultiplexer.Builder#requireProxyProtocol()}), it's stored in the channel attribute {@link #KEY};
+ * {@link #getSourceAddress(Channel)} returns the client's address either way.
+ */
+public final class ProxyHeader {
+	
+	/**
+	 * The channel attribute holding the header
+	 */
+	public static final AttributeKey<ProxyHeader> KEY = AttributeKey.valueOf(ProxyHeader.class, "header");
+	
+	/**
+	 * What the connection is for
+	 */
+	public enum Command {
+		/**
+		 * The load balancer opened the connection on its own behalf (such as for a health check), so the addresses of
+		 * the connection itself should be used
+		 */
+		LOCAL,
+		/**
+		 * The connection is relayed for a client
+		 */
+		PROXY
+	}
+	
+	/**
+	 * The TLS connection between the client and the load balancer, from a version 2 header's <code>PP2_TYPE_SSL</code>
+	 * field
+	 */
+	public static final class Ssl {
+		private final int client;
+		private final boolean verified;
+		private final String version;
+		private final String commonName;
+		private final String cipher;
+		
+		private Ssl(int client, boolean verified, String version, String commonName, String cipher) {
+			this.client = client;
+			this.verified = verified;
+			this.version = version;
+			this.commonName = commonName;
+			this.cipher = cipher;
+		}
+		
+		/**
+		 * @return If the client connected over TLS (<code>PP2_CLIENT_SSL</code>)
+		 */
+		public boolean isSsl() {
+			return (client & CLIENT_SSL) != 0;
+		}
+		/**
+		 * @return If the client presented a certificate, on this connection (<code>PP2_CLIENT_CERT_CONN</code>) or in
+		 * a resumed session (<code>PP2_CLIENT_CERT_SESS</code>), and it was verified
+		 */
+		public boolean isClientCertificateVerified() {
+			return (client & (CLIENT_CERT_CONN | CLIENT_CERT_SESS)) != 0 && verified;
+		}
+		/**
+		 * @return The TLS version, such as <code>TLSv1.3</code>, or null if it wasn't sent
+		 */
+		public String getVersion() {
+			return version;
+		}
+		/**
+		 * @return The common name of the client certificate's subject, or null if it wasn't sent
+		 */
+		public String getCommonName() {
+			return commonName;
+		}
+		/**
+		 * @return The cipher suite, such as <code>ECDHE-RSA-AES128-GCM-SHA256</code>, or null if it wasn't sent
+		 */
+		public String getCipher() {
+			return cipher;
+		}
+		
+		@Override
+		public String toString() {
+			return "Ssl[client=" + client + ", verified=" + verified + ", version=" + version + ", commonName="
+					+ commonName + ", cipher=" + cipher + "]";
+		}
+	}
+	
+	static final byte[] V1_PREFIX = "PROXY ".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] V2_SIGNATURE = {0x0D, 0x0A, 0x0D, 0x0A, 0x00, 0x0D, 0x0A, 0x51, 0x55, 0x49, 0x54, 0x0A};
+	
+	private static final int V1_MAX_LENGTH = 107;
+	private static final int V2_HEADER_LENGTH = 16;
+	private static final int FAMILY_UNSPEC = 0x0;
+	private static final int FAMILY_INET = 0x1;
+	private static final int FAMILY_INET6 = 0x2;
+	private static final int FAMILY_UNIX = 0x3;
+	private static final int TYPE_ALPN = 0x01;
+	private static final int TYPE_AUTHORITY = 0x02;
+	private static final int TYPE_UNIQUE_ID = 0x05;
+	private static final int TYPE_SSL = 0x20;
+	private static final int SUBTYPE_SSL_VERSION = 0x21;
+	private static final int SUBTYPE_SSL_CN = 0x22;
+	private static final int SUBTYPE_SSL_CIPHER = 0x23;
+	private static final int CLIENT_SSL = 0x01;
+	private static final int CLIENT_CERT_CONN = 0x02;
+	private static final int CLIENT_CERT_SESS = 0x04;
+	
+	/**
+	 * @param in The currently received bytes
+	 * @return If <code>in</code> starts with the beginning of a version 1 or 2 header, or if more bytes are needed to
+	 * tell
+	 */
+	static ProtocolDetectionResult detect(ByteBuf in) {
+		if (!in.isReadable())
+			return ProtocolDetectionResult.UNKNOWN;
+		byte[] signature = in.getByte(in.readerIndex()) == 'P' ? V1_PREFIX : V2_SIGNATURE;
+		int length = Math.min(in.readableBytes(), signature.length);
+		for (int i = 0; i < length; i++) {
+			if (in.getByte(in.readerIndex() + i) != signature[i])
+				return ProtocolDetectionResult.REJECTED;
+		}
+		return length == signature.length ? ProtocolDetectionResult.DETECTED : ProtocolDetectionResult.UNKNOWN;
+	}
+	
+	/**
+	 * Parse the header at the start of <code>in</code>. The reader index of <code>in</code> isn't moved, and the bytes
+	 * are read in place rather than copied.
+	 * @param in The currently received bytes
+	 * @return The header, or null if more bytes are needed
+	 * @throws IllegalArgumentException If <code>in</code> doesn't start with a valid header
+	 */
+	public static ProxyHeader parse(ByteBuf in) throws IllegalArgumentException {
+		switch (detect(in)) {
+			case DETECTED:
+				return in.getByte(in.readerIndex()) == 'P' ? parseV1(in) : parseV2(in);
+			case UNKNOWN:
+				return null;
+			default:
+				throw new IllegalArgumentException("Not a PROXY protocol header!");
+		}
+	}
+	
+	private static ProxyHeader parseV1(ByteBuf in) {
+		int start = in.readerIndex();
+		int end = Math.min(in.writerIndex(), start + V1_MAX_LENGTH);
+		int lineEnd = in.indexOf(start + V1_PREFIX.length, end, (byte) '\n');
+		if (lineEnd == -1) {
+			if (end - start < V1_MAX_LENGTH)
+				return null;
+			throw new IllegalArgumentException("PROXY protocol header is too long!");
+		}
+		if (in.getByte(lineEnd - 1) != '\r')
+			throw new IllegalArgumentException("PROXY protocol header doesn't end with CRLF!");
+		
+		String[] fields = in.toString(start + V1_PREFIX.length, lineEnd - 1 - start - V1_PREFIX.length,
+				StandardCharsets.US_ASCII).split(" ", -1);
+		int length = lineEnd + 1 - start;
+		if (fields[0].equals("UNKNOWN"))
+			return new ProxyHeader(1, Command.PROXY, null, null, length, null, null, null, null);
+		
+		boolean ipv6;
+		if (fields[0].equals("TCP4"))
+			ipv6 = false;
+		else if (fields[0].equals("TCP6"))
+			ipv6 = true;
+		else
+			throw new IllegalArgumentException("Unknown PROXY protocol family!");
+		if (fields.length != 5)
+			throw new IllegalArgumentException("Wrong number of PROXY protocol fields!");
+		
+		return new ProxyHeader(1, Command.PROXY, address(fields[1], fields[3], ipv6),
+				address(fields[2], fields[4], ipv6), length, null, null, null, null);
+	}
+	
+	private static InetSocketAddress address(String ip, String port, boolean ipv6) {
+		boolean valid = ipv6 ? NetUtil.isValidIpV6Address(ip) : NetUtil.isValidIpV4Address(ip);
+		if (!valid || port.isEmpty() || port.length() > 5 || (port.length() > 1 && port.charAt(0) == '0'))
+			throw new IllegalArgumentException("Invalid PROXY protocol address!");
+		int value = 0;
+		for (int i = 0; i < port.length(); i++) {
+			char c = port.charAt(i);
+			if (c < '0' || c > '9')
+				throw new IllegalArgumentException("Invalid PROXY protocol port!");
+			value = value * 10 + (c - '0');
+		}
+		if (value > 0xFFFF)
+			throw new IllegalArgumentException("Invalid PROXY protocol port!");
+		return new InetSocketAddress(NetUtil.createInetAddressFromIpAddressString(ip), value);
+	}
+	
+	private static ProxyHeader parseV2(ByteBuf in) {
+		int start = in.readerIndex();
+		if (in.readableBytes() < V2_HEADER_LENGTH)
+			return null;
+		int versionCommand = in.getUnsignedByte(start + 12);
+		int family = in.getUnsignedByte(start + 13) >>> 4;
+		int length = V2_HEADER_LENGTH + in.getUnsignedShort(start + 14);
+		if (versionCommand >>> 4 != 2)
+			throw new IllegalArgumentException("Unknown PROXY protocol version!");
+		Command command;
+		switch (versionCommand & 0xF) {
+			case 0x0:
+				command = Command.LOCAL;
+				break;
+			case 0x1:
+				command = Command.PROXY;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown PROXY protocol command!");
+		}
+		if (in.readableBytes() < length)
+			return null;
+		
+		int i = start + V2_HEADER_LENGTH;
+		int end = start + length;
+		InetSocketAddress source = null;
+		InetSocketAddress destination = null;
+		switch (family) {
+			case FAMILY_UNSPEC:
+				break;
+			case FAMILY_INET:
+				check(i, 12, end);
+				source = address(in, i, 4, i + 8);
+				destination = address(in, i + 4, 4, i + 10);
+				i += 12;
+				break;
+			case FAMILY_INET6:
+				check(i, 36, end);
+				source = address(in, i, 16, i + 32);
+				destination = address(in, i + 16, 16, i + 34);
+				i += 36;
+				break;
+			case FAMILY_UNIX:
+				check(i, 216, end);
+				i += 216;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown PROXY protocol family!");
+		}
+		
+		String alpn = null;
+		String authority = null;
+		byte[] uniqueId = null;
+		Ssl ssl = null;
+		while (i < end) {
+			check(i, 3, end);
+			int type = in.getUnsignedByte(i);
+			int valueLength = in.getUnsignedShort(i + 1);
+			i += 3;
+			check(i, valueLength, end);
+			switch (type) {
+				case TYPE_ALPN:
+					alpn = in.toString(i, valueLength, StandardCharsets.US_ASCII);
+					break;
+				case TYPE_AUTHORITY:
+					authority = in.toString(i, valueLength, StandardCharsets.UTF_8);
+					break;
+				case TYPE_UNIQUE_ID:
+					uniqueId = ByteBufUtil.getBytes(in, i, valueLength);
+					break;
+				case TYPE_SSL:
+					ssl = parseSsl(in, i, i + valueLength);
+					break;
+			}
+			i += valueLength;
+		}
+		
+		if (command == Command.LOCAL) {
+			source = null;
+			destination = null;
+		}
+		return new ProxyHeader(2, command, source, destination, length, alpn, authority, uniqueId, ssl);
+	}
+	
+	private static InetSocketAddress address(ByteBuf in, int i, int length, int port) {
+		byte[] address = new byte[length];
+		in.getBytes(i, address);
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(address), in.getUnsignedShort(port));
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Invalid PROXY protocol address!", e);
+		}
+	}
+	
+	private static Ssl parseSsl(ByteBuf in, int i, int end) {
+		check(i, 5, end);
+		int client = in.getUnsignedByte(i);
+		boolean verified = in.getInt(i + 1) == 0;
+		i += 5;
+		String version = null;
+		String commonName = null;
+		String cipher = null;
+		while (i < end) {
+			check(i, 3, end);
+			int type = in.getUnsignedByte(i);
+			int length = in.getUnsignedShort(i + 1);
+			i += 3;
+			check(i, length, end);
+			switch (type) {
+				case SUBTYPE_SSL_VERSION:
+					version = in.toString(i, length, StandardCharsets.US_ASCII);
+					break;
+				case SUBTYPE_SSL_CN:
+					commonName = in.toString(i, length, StandardCharsets.UTF_8);
+					break;
+				case SUBTYPE_SSL_CIPHER:
+					cipher = in.toString(i, length, StandardCharsets.US_ASCII);
+					break;
+			}
+			i += length;
+		}
+		return new Ssl(client, verified, version, commonName, cipher);
+	}
+	
+	/**
+	 * @throws IllegalArgumentException If <code>length</code> bytes starting at <code>i</code> go past
+	 * <code>end</code>
+	 */
+	private static void check(int i, int length, int end) throws IllegalArgumentException {
+		if (i + length > end)
+			throw new IllegalArgumentException("Truncated PROXY protocol header!");
+	}
+	
+	/**
+	 * @param channel The channel
+	 * @return The client's address from the channel's {@link ProxyHeader}, or the channel's remote address if it
+	 * doesn't have a header with one
+	 */
+	public static SocketAddress getSourceAddress(Channel channel) {
+		ProxyHeader header = channel.hasAttr(KEY) ? channel.attr(KEY).get() : null;
+		return header == null || header.source == null ? channel.remoteAddress() : header.source;
+	}
+	
+	private final int version;
+	private final Command command;
+	private final InetSocketAddress source;
+	private final InetSocketAddress destination;
+	private final int length;
+	private final String alpn;
+	private final String authority;
+	private final byte[] uniqueId;
+	private final Ssl ssl;
+	
+	private ProxyHeader(int version, Command command, InetSocketAddress source, InetSocketAddress destination,
+			int length, String alpn, String authority, byte[] uniqueId, Ssl ssl) {
+		this.version = version;
+		this.command = command;
+		this.source = source;
+		this.destination = destination;
+		this.length = length;
+		this.alpn = alpn;
+		this.authority = authority;
+		this.uniqueId = uniqueId;
+		this.ssl = ssl;
+	}
+	
+	/**
+	 * @return The version of the PROXY protocol, 1 or 2
+	 */
+	public int getVersion() {
+		return version;
+	}
+	/**
+	 * @return What the connection is for; version 1 headers are always {@link Command#PROXY}
+	 */
+	public Command getCommand() {
+		return command;
+	}
+	/**
+	 * @return The client's address, or null if it isn't known (<code>UNKNOWN</code>, a {@link Command#LOCAL}
+	 * connection, or a family other than TCP over IPv4 or IPv6)
+	 */
+	public InetSocketAddress getSourceAddress() {
+		return source;
+	}
+	/**
+	 * @return The address the client connected to, or null if it isn't known
+	 */
+	public InetSocketAddress getDestinationAddress() {
+		return destination;
+	}
+	/**
+	 * @return The length of the header in bytes
+	 */
+	public int getLength() {
+		return length;
+	}
+	/**
+	 * @return The protocol the client negotiated with ALPN (<code>PP2_TYPE_ALPN</code>), or null if it wasn't sent
+	 */
+	public String getAlpn() {
+		return alpn;
+	}
+	/**
+	 * @return The hostname the client requested, usually with SNI (<code>PP2_TYPE_AUTHORITY</code>), or null if it
+	 * wasn't sent
+	 */
+	public String getAuthority() {
+		return authority;
+	}
+	/**
+	 * @return A copy of the connection's unique ID (<code>PP2_TYPE_UNIQUE_ID</code>), or null if it wasn't sent
+	 */
+	public byte[] getUniqueId() {
+		return uniqueId == null ? null : uniqueId.clone();
+	}
+	/**
+	 * @return The client's TLS connection to the load balancer (<code>PP2_TYPE_SSL</code>), or null if it wasn't sent
+	 */
+	public Ssl getSsl() {
+		return ssl;
+	}
+	
+	@Override
+	public String toString() {
+		return "ProxyHeader[version=" + version + ", command=" + command + ", source=" + source + ", destination="
+				+ destination + ", alpn=" + alpn + ", authority=" + authority + ", ssl=" + ssl + "]";
+	}
+	
+}
@@ -0,0 +1,95 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Detects Redis clients by their first command, which RESP (the Redis serialization protocol) sends as an array of
+ * bulk strings: <code>*&lt;count&gt;\r\n$&lt;length&gt;\r\n</code>. The protocol is detected as soon as the first bulk
+ * string's length starts, which is after 6 bytes for most commands.<br>
+ * <br>
+ * <strong>Warning:</strong> Inline commands (plain text like <code>PING\r\n</code>, mostly typed by hand) aren't
+ * detected.
+ */
+public class RedisByteProtocol implements ByteProtocol {
+	
+	/**
+	 * The most digits in a count or length, which are at most {@link Integer#MAX_VALUE}
+	 */
+	private static final int MAX_DIGITS = 10;
+	private static final int MORE = -1;
+	private static final int INVALID = -2;
+	
+	private final Consumer<ChannelHandlerContext> bind;
+	
+	/**
+	 * @param bind Set up the pipeline for Redis (see {@link #bind(ChannelHandlerContext)} for details)
+	 */
+	public RedisByteProtocol(Consumer<ChannelHandlerContext> bind) {
+		this.bind = bind;
+	}
+	
+	/**
+	 * @return null, since Redis doesn't define an ALPN name
+	 */
+	@Override
+	public String getAlpnName() {
+		return null;
+	}
+	
+	@Override
+	public ProtocolDetectionResult attemptDetection(ByteBuf in) {
+		int i = in.readerIndex();
+		int end = in.writerIndex();
+		if (i == end)
+			return ProtocolDetectionResult.UNKNOWN;
+		if (in.getByte(i) != '*')
+			return ProtocolDetectionResult.REJECTED;
+		
+		i = line(in, i + 1, end);
+		if (i == INVALID)
+			return ProtocolDetectionResult.REJECTED;
+		if (i == MORE || i + 1 >= end)
+			return ProtocolDetectionResult.UNKNOWN;
+		
+		// The command name can't be empty, so its length has to start with a non-zero digit
+		byte digit = in.getByte(i + 1);
+		return in.getByte(i) == '$' && digit >= '1' && digit <= '9' ? ProtocolDetectionResult.DETECTED :
+				ProtocolDetectionResult.REJECTED;
+	}
+	
+	/**
+	 * @param in The currently received bytes
+	 * @param i The index of a positive number's first digit
+	 * @param end The writer index of <code>in</code>
+	 * @return The index after the number and the <code>\r\n</code> following it, {@link #MORE} if more bytes are
+	 * needed, or {@link #INVALID} if this isn't a positive number followed by <code>\r\n</code>
+	 */
+	private static int line(ByteBuf in, int i, int end) {
+		int start = i;
+		for (; i < end; i++) {
+			byte b = in.getByte(i);
+			if (b >= '0' && b <= '9') {
+				if (i - start == MAX_DIGITS || (i == start && b == '0'))
+					return INVALID;
+				continue;
+			}
+			if (i == start || b != '\r')
+				return INVALID;
+			if (i + 1 == end)
+				return MORE;
+			return in.getByte(i + 1) == '\n' ? i + 2 : INVALID;
+		}
+		return MORE;
+	}
+	
+	@Override
+	public void bind(ChannelHandlerContext ctx) {
+		bind.accept(ctx);
+	}
+	
+}
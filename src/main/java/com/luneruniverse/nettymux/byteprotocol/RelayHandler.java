@@ -0,0 +1,227 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ReflectiveChannelFactory;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Copies the raw bytes between an incoming channel and a backend connection, one of these being at the end of each
+ * channel's pipeline. The buffers read from one channel are written to the other as they are, reading from a channel
+ * pauses while its peer can't keep up with writes, and each direction can be shut down on its own.
+ */
+final class RelayHandler extends ChannelInboundHandlerAdapter {
+	
+	private static final boolean EPOLL;
+	static {
+		boolean epoll;
+		try {
+			Class.forName("io.netty.channel.epoll.AbstractEpollStreamChannel", false,
+					RelayHandler.class.getClassLoader());
+			epoll = true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			epoll = false;
+		}
+		EPOLL = epoll;
+	}
+	
+	/**
+	 * Start connecting to <code>backend</code> for the incoming channel. The backend connection uses the same event
+	 * loop, transport, and allocator as the incoming channel, and doesn't read until it's passed to
+	 * {@link #relay(ChannelHandlerContext, ChannelFuture, boolean)}.
+	 * @param inbound The incoming channel
+	 * @param backend Where to connect
+	 * @param connectTimeoutMillis The maximum time to wait for the connection
+	 * @return The connection attempt
+	 */
+	static ChannelFuture connect(Channel inbound, SocketAddress backend, int connectTimeoutMillis) {
+		return new Bootstrap()
+				.group(inbound.eventLoop())
+				.channelFactory(new ReflectiveChannelFactory<>(inbound.getClass()))
+				.option(ChannelOption.ALLOCATOR, inbound.alloc())
+				.option(ChannelOption.AUTO_READ, false)
+				.option(ChannelOption.ALLOW_HALF_CLOSURE, true)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis)
+				.handler(new RelayHandler(false))
+				.connect(backend);
+	}
+	
+	/**
+	 * Relay the incoming channel to a backend connection, including any bytes still buffered by the multiplexer
+	 * @param ctx The context of the last handler in the pipeline involved in multiplexing
+	 * @param connect A connection from {@link #connect(Channel, SocketAddress, int)}; if it fails, the incoming channel
+	 * is closed
+	 * @param splice If nothing but the relay is left in the incoming channel's pipeline and both channels use the
+	 * epoll transport, splice the bytes between the sockets without copying them into user space
+	 */
+	static void relay(ChannelHandlerContext ctx, ChannelFuture connect, boolean splice) {
+		Channel inbound = ctx.channel();
+		Channel outbound = connect.channel();
+		inbound.config().setAutoRead(false);
+		if (inbound instanceof DuplexChannel)
+			inbound.config().setOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+		
+		RelayHandler inboundRelay = new RelayHandler(true);
+		inboundRelay.splice = splice;
+		RelayHandler outboundRelay = outbound.pipeline().get(RelayHandler.class);
+		ctx.pipeline().addAfter(ctx.name(), null, inboundRelay);
+		inboundRelay.peer = outbound;
+		inboundRelay.peerRelay = outboundRelay;
+		outboundRelay.peer = inbound;
+		outboundRelay.peerRelay = inboundRelay;
+		
+		connect.addListener((ChannelFutureListener) future -> {
+			if (future.isSuccess() && outbound.isActive())
+				inboundRelay.connected(inbound);
+			else {
+				outbound.close();
+				inbound.close();
+			}
+		});
+	}
+	
+	/**
+	 * Close <code>channel</code> once everything written to it so far has been flushed
+	 */
+	static void closeOnFlush(Channel channel) {
+		if (channel.isActive())
+			channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+		else
+			channel.close();
+	}
+	
+	private Channel peer;
+	private RelayHandler peerRelay;
+	private List<Object> pending;
+	private boolean splice;
+	private boolean inputShutdown;
+	
+	/**
+	 * @param inbound If this is for the incoming channel, which has to hold onto its bytes until the backend is
+	 * connected
+	 */
+	private RelayHandler(boolean inbound) {
+		if (inbound)
+			pending = new ArrayList<>();
+	}
+	
+	/**
+	 * Called on the incoming channel's relay once the backend is connected
+	 * @param inbound The incoming channel
+	 */
+	private void connected(Channel inbound) {
+		ChannelFuture written = peer.newSucceededFuture();
+		for (Object msg : pending)
+			written = peer.write(msg);
+		pending = null;
+		peer.flush();
+		
+		written.addListener((ChannelFutureListener) future -> {
+			if (!future.isSuccess()) {
+				inbound.close();
+				return;
+			}
+			// The buffered bytes have been written, so later bytes can bypass the pipelines unless something still
+			// needs to see them (such as an SslHandler when the protocol was selected by ALPN)
+			peer.config().setAutoRead(true);
+			if (inputShutdown) {
+				// The client already finished sending, so only the other direction is left
+				shutdownPeerOutput(inbound);
+				return;
+			}
+			if (splice && EPOLL && inbound.pipeline().first() == this)
+				EpollSplice.splice(inbound, peer);
+			inbound.config().setAutoRead(true);
+		});
+	}
+	
+	/**
+	 * Pass along that no more bytes will be read from <code>channel</code>, closing both channels if that's true for
+	 * both directions
+	 * @param channel The channel of this relay
+	 */
+	private void shutdownPeerOutput(Channel channel) {
+		if (peerRelay.inputShutdown) {
+			closeOnFlush(peer);
+			closeOnFlush(channel);
+			return;
+		}
+		// Everything before the half-close has to be written first
+		peer.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener((ChannelFutureListener) future -> {
+			if (future.isSuccess() && peer instanceof DuplexChannel)
+				((DuplexChannel) peer).shutdownOutput();
+			else
+				peer.close();
+		});
+	}
+	
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (pending != null) {
+			pending.add(msg);
+			return;
+		}
+		peer.write(msg);
+		if (!peer.isWritable())
+			ctx.channel().config().setAutoRead(false);
+	}
+	
+	@Override
+	public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+		if (pending == null && peer != null)
+			peer.flush();
+	}
+	
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		if (pending == null && peer != null && ctx.channel().isWritable() && !peerRelay.inputShutdown)
+			peer.config().setAutoRead(true);
+		ctx.fireChannelWritabilityChanged();
+	}
+	
+	@Override
+	public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+		if (evt != ChannelInputShutdownEvent.INSTANCE) {
+			ctx.fireUserEventTriggered(evt);
+			return;
+		}
+		
+		inputShutdown = true;
+		if (peer == null) {
+			// An idle backend connection that isn't relaying anything yet
+			ctx.close();
+			return;
+		}
+		// While still connecting, this is passed along once the buffered bytes are written
+		if (pending == null)
+			shutdownPeerOutput(ctx.channel());
+	}
+	
+	@Override
+	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+		if (pending != null) {
+			pending.forEach(ReferenceCountUtil::release);
+			pending.clear();
+		}
+		if (peer != null)
+			closeOnFlush(peer);
+	}
+	
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+		ctx.close();
+	}
+	
+}
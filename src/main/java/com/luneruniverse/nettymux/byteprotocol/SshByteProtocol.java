@@ -0,0 +1,62 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Detects SSH-2.0 connections by the client's identification string (<code>SSH-2.0-</code>, RFC 4253 section 4.2).
+ * The identification string is left in place for the SSH handlers.<br>
+ * <br>
+ * <strong>Warning:</strong> SSH servers usually send their identification string first, and a client that waits for
+ * it can't be detected. Common clients (such as OpenSSH) send theirs immediately, but consider a detection timeout.
+ */
+public class SshByteProtocol implements PrefixByteProtocol {
+	
+	private static final byte[] IDENTIFICATION = "SSH-2.0-".getBytes(StandardCharsets.US_ASCII);
+	private static final List<byte[]> PREFIXES = Collections.singletonList(IDENTIFICATION);
+	
+	private final Consumer<ChannelHandlerContext> bind;
+	
+	/**
+	 * @param bind Set up the pipeline for SSH (see {@link #bind(ChannelHandlerContext)} for details)
+	 */
+	public SshByteProtocol(Consumer<ChannelHandlerContext> bind) {
+		this.bind = bind;
+	}
+	
+	/**
+	 * @return null, since SSH isn't run over TLS
+	 */
+	@Override
+	public String getAlpnName() {
+		return null;
+	}
+	
+	@Override
+	public List<byte[]> getPrefixes() {
+		return PREFIXES;
+	}
+	
+	@Override
+	public ProtocolDetectionResult attemptDetection(ByteBuf in) {
+		int length = Math.min(in.readableBytes(), IDENTIFICATION.length);
+		for (int i = 0; i < length; i++) {
+			if (in.getByte(in.readerIndex() + i) != IDENTIFICATION[i])
+				return ProtocolDetectionResult.REJECTED;
+		}
+		return length == IDENTIFICATION.length ? ProtocolDetectionResult.DETECTED : ProtocolDetectionResult.UNKNOWN;
+	}
+	
+	@Override
+	public void bind(ChannelHandlerContext ctx) {
+		bind.accept(ctx);
+	}
+	
+}
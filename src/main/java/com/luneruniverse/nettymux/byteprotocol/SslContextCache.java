@@ -0,0 +1,103 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.util.Mapping;
+
+/**
+ * Maps SNI hostnames to {@link SslContext}s that are loaded on demand and then kept, so each hostname always gets the
+ * same {@link SslContext}. TLS session caches and session ticket keys belong to an {@link SslContext}, so this lets
+ * returning clients resume their sessions instead of performing a full handshake (configure resumption with
+ * {@link SslContextBuilder#sessionCacheSize(long)} and {@link SslContextBuilder#sessionTimeout(long)}).
+ * Pass this to {@link NettyByteMultiplexer.Builder#optionalSsl(Mapping)} or
+ * {@link NettyByteMultiplexer.Builder#forceSsl(Mapping)}.<br>
+ * <br>
+ * Clients choose the hostname, so only hostnames that the loader has an {@link SslContext} for are kept, and once
+ * the limit is reached, the least recently used hostname is forgotten. Hostnames that the loader returns null for
+ * aren't kept, so the loader is called again for each of their connections and should be cheap for them.
+ */
+public class SslContextCache implements Mapping<String, SslContext> {
+	
+	private final SslContext defaultContext;
+	private final Function<? super String, ? extends SslContext> loader;
+	private final Map<String, SslContext> contexts;
+	
+	/**
+	 * @param defaultContext Used for clients that don't use SNI, and for hostnames that <code>loader</code> returns
+	 * null for
+	 * @param loader Creates the {@link SslContext} for a (lowercase) hostname, or returns null to use
+	 * <code>defaultContext</code>; this is called on the event loop, and may return the same {@link SslContext} for
+	 * multiple hostnames (such as for wildcard certificates)
+	 * @param maxEntries The maximum number of hostnames to keep; once this is reached, the least recently used
+	 * hostname is forgotten to make room for a new one
+	 * @throws IllegalArgumentException If <code>maxEntries</code> isn't positive
+	 */
+	@SuppressWarnings("serial")
+	public SslContextCache(SslContext defaultContext, Function<? super String, ? extends SslContext> loader,
+			int maxEntries) throws IllegalArgumentException {
+		if (maxEntries <= 0)
+			throw new IllegalArgumentException("maxEntries must be positive!");
+		this.defaultContext = Objects.requireNonNull(defaultContext, "defaultContext");
+		this.loader = Objects.requireNonNull(loader, "loader");
+		this.contexts = new LinkedHashMap<String, SslContext>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SslContext> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+	/**
+	 * Keep up to 1024 hostnames
+	 * @see #SslContextCache(SslContext, Function, int)
+	 */
+	public SslContextCache(SslContext defaultContext, Function<? super String, ? extends SslContext> loader) {
+		this(defaultContext, loader, 1024);
+	}
+	
+	@Override
+	public SslContext map(String hostname) {
+		if (hostname == null)
+			return defaultContext;
+		
+		SslContext context;
+		synchronized (contexts) {
+			context = contexts.get(hostname);
+		}
+		if (context != null)
+			return context;
+		
+		// The loader may be slow, so it isn't called while holding the lock
+		context = loader.apply(hostname);
+		if (context == null)
+			return defaultContext;
+		synchronized (contexts) {
+			SslContext existing = contexts.putIfAbsent(hostname, context);
+			return existing == null ? context : existing;
+		}
+	}
+	
+	/**
+	 * Forget the {@link SslContext} of a hostname, such as after its certificate has been renewed; the next connection
+	 * for it will call the loader again
+	 * @param hostname The (lowercase) hostname
+	 */
+	public void invalidate(String hostname) {
+		synchronized (contexts) {
+			contexts.remove(hostname);
+		}
+	}
+	/**
+	 * Forget all of the {@link SslContext}s
+	 */
+	public void invalidateAll() {
+		synchronized (contexts) {
+			contexts.clear();
+		}
+	}
+	
+}
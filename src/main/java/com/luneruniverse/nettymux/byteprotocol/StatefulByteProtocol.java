@@ -0,0 +1,25 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A {@link ByteProtocol} that keeps track of its detection progress per channel in a {@link ByteProtocolDetector}, so
+ * the cost of detection grows with the new bytes rather than all of the received bytes. {@link NettyByteMultiplexer}
+ * creates a detector the first time the protocol is checked on a channel, and uses it instead of
+ * {@link #attemptDetection(ByteBuf)} and {@link #bind(io.netty.channel.ChannelHandlerContext)}.
+ */
+public interface StatefulByteProtocol extends ByteProtocol {
+	/**
+	 * @return A new detector for a single channel
+	 */
+	public ByteProtocolDetector newDetector();
+	/**
+	 * Check all of the currently received bytes at once using a new detector
+	 */
+	@Override
+	public default ProtocolDetectionResult attemptDetection(ByteBuf in) {
+		return newDetector().attemptDetection(in);
+	}
+}
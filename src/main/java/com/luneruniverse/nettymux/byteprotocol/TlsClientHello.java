@@ -0,0 +1,206 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The parts of a TLS ClientHello that are useful for routing a connection without terminating TLS
+ */
+public final class TlsClientHello {
+	
+	static final int RECORD_HEADER_LENGTH = 5;
+	private static final int MAX_RECORD_LENGTH = (1 << 14) + 2048;
+	private static final int MAX_HANDSHAKE_LENGTH = 1 << 17;
+	private static final int MAX_FRAGMENTS = 64;
+	private static final byte CONTENT_TYPE_HANDSHAKE = 0x16;
+	private static final byte HANDSHAKE_TYPE_CLIENT_HELLO = 0x01;
+	private static final int EXTENSION_SERVER_NAME = 0;
+	private static final int EXTENSION_ALPN = 16;
+	private static final int SERVER_NAME_TYPE_HOST_NAME = 0;
+	
+	/**
+	 * Parse the ClientHello at the start of <code>in</code>, which may be fragmented over several TLS records. The
+	 * reader index of <code>in</code> isn't moved, and the bytes are read in place rather than copied.
+	 * @param in The currently received bytes
+	 * @return The ClientHello, or null if more bytes are needed
+	 * @throws IllegalArgumentException If <code>in</code> doesn't start with a valid ClientHello
+	 */
+	public static TlsClientHello parse(ByteBuf in) throws IllegalArgumentException {
+		int index = in.readerIndex();
+		int end = in.writerIndex();
+		ByteBuf handshake = null;
+		CompositeByteBuf fragments = null;
+		int handshakeLength = -1;
+		
+		while (handshakeLength == -1 || handshake.readableBytes() < handshakeLength) {
+			if (end - index < RECORD_HEADER_LENGTH)
+				return null;
+			int recordLength = recordLength(in, index);
+			if (end - index - RECORD_HEADER_LENGTH < recordLength)
+				return null;
+			
+			ByteBuf fragment = in.slice(index + RECORD_HEADER_LENGTH, recordLength);
+			index += RECORD_HEADER_LENGTH + recordLength;
+			if (handshake == null)
+				handshake = fragment;
+			else {
+				// Rare, but large ClientHellos are allowed to span records
+				if (fragments == null)
+					handshake = fragments = Unpooled.compositeBuffer(MAX_FRAGMENTS).addComponent(true, handshake);
+				else if (fragments.numComponents() == MAX_FRAGMENTS)
+					throw new IllegalArgumentException("ClientHello is fragmented into too many records!");
+				fragments.addComponent(true, fragment);
+			}
+			
+			if (handshakeLength == -1 && handshake.readableBytes() >= 4)
+				handshakeLength = handshakeLength(handshake.getInt(0));
+		}
+		
+		return parseClientHello(handshake, handshakeLength);
+	}
+	
+	/**
+	 * @param in The currently received bytes
+	 * @param index The index of a TLS record header in <code>in</code>, with the whole header readable
+	 * @return The length of the record after its header
+	 * @throws IllegalArgumentException If the header isn't for a valid TLS handshake record
+	 */
+	static int recordLength(ByteBuf in, int index) throws IllegalArgumentException {
+		if (in.getByte(index) != CONTENT_TYPE_HANDSHAKE || in.getByte(index + 1) != 3)
+			throw new IllegalArgumentException("Not a TLS handshake record!");
+		int recordLength = in.getUnsignedShort(index + 3);
+		if (recordLength == 0 || recordLength > MAX_RECORD_LENGTH)
+			throw new IllegalArgumentException("Invalid TLS record length!");
+		return recordLength;
+	}
+	
+	/**
+	 * @param header The first four bytes of the handshake message
+	 * @return The length of the handshake message, including its header
+	 * @throws IllegalArgumentException If the handshake message isn't a ClientHello, or is too long
+	 */
+	static int handshakeLength(int header) throws IllegalArgumentException {
+		if (header >>> 24 != HANDSHAKE_TYPE_CLIENT_HELLO)
+			throw new IllegalArgumentException("Not a ClientHello!");
+		int handshakeLength = 4 + (header & 0xFFFFFF);
+		if (handshakeLength > MAX_HANDSHAKE_LENGTH)
+			throw new IllegalArgumentException("ClientHello is too long!");
+		return handshakeLength;
+	}
+	
+	private static TlsClientHello parseClientHello(ByteBuf in, int end) {
+		int i = 4 + 2 + 32; // Header, legacy version, and random
+		check(i, 1, end);
+		i += 1 + in.getUnsignedByte(i); // Session id
+		check(i, 2, end);
+		i += 2 + in.getUnsignedShort(i); // Cipher suites
+		check(i, 1, end);
+		i += 1 + in.getUnsignedByte(i); // Compression methods
+		check(i, 0, end);
+		if (i == end)
+			return new TlsClientHello(null, Collections.emptyList());
+		
+		check(i, 2, end);
+		int extensionsEnd = i + 2 + in.getUnsignedShort(i);
+		check(i, extensionsEnd - i, end);
+		i += 2;
+		
+		String serverName = null;
+		List<String> alpnProtocols = Collections.emptyList();
+		while (i < extensionsEnd) {
+			check(i, 4, extensionsEnd);
+			int type = in.getUnsignedShort(i);
+			int length = in.getUnsignedShort(i + 2);
+			i += 4;
+			check(i, length, extensionsEnd);
+			if (type == EXTENSION_SERVER_NAME)
+				serverName = parseServerName(in, i, i + length);
+			else if (type == EXTENSION_ALPN)
+				alpnProtocols = parseAlpn(in, i, i + length);
+			i += length;
+		}
+		
+		return new TlsClientHello(serverName, alpnProtocols);
+	}
+	
+	private static String parseServerName(ByteBuf in, int i, int end) {
+		check(i, 2, end);
+		int listEnd = i + 2 + in.getUnsignedShort(i);
+		check(i, listEnd - i, end);
+		end = listEnd;
+		i += 2;
+		while (i < end) {
+			check(i, 3, end);
+			int type = in.getUnsignedByte(i);
+			int length = in.getUnsignedShort(i + 1);
+			i += 3;
+			check(i, length, end);
+			if (type == SERVER_NAME_TYPE_HOST_NAME)
+				return in.toString(i, length, StandardCharsets.US_ASCII).toLowerCase(Locale.ROOT);
+			i += length;
+		}
+		return null;
+	}
+	
+	private static List<String> parseAlpn(ByteBuf in, int i, int end) {
+		check(i, 2, end);
+		int listEnd = i + 2 + in.getUnsignedShort(i);
+		check(i, listEnd - i, end);
+		end = listEnd;
+		i += 2;
+		List<String> output = new ArrayList<>(2);
+		while (i < end) {
+			check(i, 1, end);
+			int length = in.getUnsignedByte(i);
+			i++;
+			check(i, length, end);
+			output.add(in.toString(i, length, StandardCharsets.US_ASCII));
+			i += length;
+		}
+		return Collections.unmodifiableList(output);
+	}
+	
+	/**
+	 * @throws IllegalArgumentException If <code>length</code> bytes starting at <code>i</code> go past
+	 * <code>end</code>
+	 */
+	private static void check(int i, int length, int end) throws IllegalArgumentException {
+		if (i + length > end)
+			throw new IllegalArgumentException("Truncated ClientHello!");
+	}
+	
+	private final String serverName;
+	private final List<String> alpnProtocols;
+	
+	private TlsClientHello(String serverName, List<String> alpnProtocols) {
+		this.serverName = serverName;
+		this.alpnProtocols = alpnProtocols;
+	}
+	
+	/**
+	 * @return The lowercase hostname requested with SNI, or null if the client didn't use SNI
+	 */
+	public String getServerName() {
+		return serverName;
+	}
+	/**
+	 * @return The protocols offered with ALPN in the client's order of preference, which is empty if the client didn't
+	 * use ALPN
+	 */
+	public List<String> getAlpnProtocols() {
+		return alpnProtocols;
+	}
+	
+	@Override
+	public String toString() {
+		return "TlsClientHello[serverName=" + serverName + ", alpnProtocols=" + alpnProtocols + "]";
+	}
+	
+}
@@ -0,0 +1,159 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import java.net.SocketAddress;
+import java.util.function.Function;
+
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Forwards TLS connections to a backend without terminating TLS, choosing the backend by the SNI hostname and ALPN
+ * protocols in the ClientHello. The encrypted bytes are relayed untouched in both directions, so the backend owns the
+ * certificate.<br>
+ * <br>
+ * When {@link NettyByteMultiplexer} has SSL enabled, these protocols are checked before SSL is terminated locally, so
+ * a single port can serve both; connections that aren't routed to a backend are terminated as usual.
+ */
+public class TlsPassthroughByteProtocol implements StatefulByteProtocol {
+	
+	/**
+	 * The default value for the connect timeout
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+	
+	private final Function<? super TlsClientHello, ? extends SocketAddress> router;
+	private final int connectTimeoutMillis;
+	
+	/**
+	 * @param router Chooses the backend for a ClientHello, or returns null to reject this protocol for the connection
+	 * @param connectTimeoutMillis The maximum time to wait when connecting to the backend
+	 */
+	public TlsPassthroughByteProtocol(Function<? super TlsClientHello, ? extends SocketAddress> router,
+			int connectTimeoutMillis) {
+		this.router = router;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+	/**
+	 * @param router Chooses the backend for a ClientHello, or returns null to reject this protocol for the connection
+	 */
+	public TlsPassthroughByteProtocol(Function<? super TlsClientHello, ? extends SocketAddress> router) {
+		this(router, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+	}
+	
+	/**
+	 * @return null, since ALPN is negotiated by the backend
+	 */
+	@Override
+	public String getAlpnName() {
+		return null;
+	}
+	
+	@Override
+	public ByteProtocolDetector newDetector() {
+		return new ByteProtocolDetector() {
+			private TlsClientHello hello;
+			private SocketAddress backend;
+			/**
+			 * The length of the complete records checked so far, including their headers
+			 */
+			private int recordsLength;
+			private int handshakeRead;
+			private int handshakeHeader;
+			private int handshakeLength = -1;
+			
+			@Override
+			public ProtocolDetectionResult attemptDetection(ByteBuf in) {
+				if (in.getByte(in.readerIndex()) != 0x16)
+					return ProtocolDetectionResult.REJECTED;
+				
+				try {
+					if (!buffered(in))
+						return ProtocolDetectionResult.UNKNOWN;
+					hello = TlsClientHello.parse(in);
+				} catch (IllegalArgumentException e) {
+					return ProtocolDetectionResult.REJECTED;
+				}
+				if (hello == null)
+					return ProtocolDetectionResult.UNKNOWN;
+				
+				backend = router.apply(hello);
+				return backend == null ? ProtocolDetectionResult.REJECTED : ProtocolDetectionResult.DETECTED;
+			}
+			
+			/**
+			 * Check the headers of the records that arrived since the last call, so a fragmented ClientHello is
+			 * only parsed once all of its records are buffered
+			 * @param in The currently received bytes
+			 * @return If all of the records holding the ClientHello are buffered
+			 * @throws IllegalArgumentException If a record or the handshake message has an invalid header
+			 */
+			private boolean buffered(ByteBuf in) throws IllegalArgumentException {
+				int readable = in.readableBytes();
+				while (handshakeLength == -1 || handshakeRead < handshakeLength) {
+					if (readable - recordsLength < TlsClientHello.RECORD_HEADER_LENGTH)
+						return false;
+					int index = in.readerIndex() + recordsLength;
+					int recordLength = TlsClientHello.recordLength(in, index);
+					if (readable - recordsLength - TlsClientHello.RECORD_HEADER_LENGTH < recordLength)
+						return false;
+					
+					// The handshake header may be split across records
+					index += TlsClientHello.RECORD_HEADER_LENGTH;
+					for (int i = handshakeRead; i < 4 && i - handshakeRead < recordLength; i++)
+						handshakeHeader = handshakeHeader << 8 | in.getUnsignedByte(index + i - handshakeRead);
+					handshakeRead += recordLength;
+					recordsLength += TlsClientHello.RECORD_HEADER_LENGTH + recordLength;
+					if (handshakeLength == -1 && handshakeRead >= 4)
+						handshakeLength = TlsClientHello.handshakeLength(handshakeHeader);
+				}
+				return true;
+			}
+			
+			/**
+			 * @return The {@link TlsClientHello}
+			 */
+			@Override
+			public Object getAttachment() {
+				return hello;
+			}
+			
+			@Override
+			public void bind(ChannelHandlerContext ctx) {
+				RelayHandler.relay(ctx, RelayHandler.connect(ctx.channel(), backend, connectTimeoutMillis), false);
+			}
+		};
+	}
+	
+	/**
+	 * @return The {@link TlsClientHello}, or null if <code>in</code> doesn't start with a complete one
+	 */
+	@Override
+	public Object getAttachment(ByteBuf in) {
+		try {
+			return TlsClientHello.parse(in);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Route the {@link TlsClientHello} stored in {@link DetectionAttachment} by {@link NettyByteMultiplexer}, for
+	 * when this is used without a detector from {@link #newDetector()}
+	 * @throws IllegalStateException If the channel doesn't have a {@link TlsClientHello} attachment, or the router
+	 * doesn't choose a backend for it
+	 */
+	@Override
+	public void bind(ChannelHandlerContext ctx) throws IllegalStateException {
+		TlsClientHello hello = DetectionAttachment.get(ctx.channel(), TlsClientHello.class);
+		if (hello == null)
+			throw new IllegalStateException("TLS passthrough needs the ClientHello attachment!");
+		SocketAddress backend = router.apply(hello);
+		if (backend == null)
+			throw new IllegalStateException("No backend was chosen for " + hello + "!");
+		RelayHandler.relay(ctx, RelayHandler.connect(ctx.channel(), backend, connectTimeoutMillis), false);
+	}
+	
+}
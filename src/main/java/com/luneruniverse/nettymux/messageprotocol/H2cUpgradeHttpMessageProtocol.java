@@ -0,0 +1,49 @@
+package com.luneruniverse.nettymux.messageprotocol;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+import com.luneruniverse.nettymux.byteprotocol.HttpByteProtocol;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+
+/**
+ * Detects {@link FullHttpRequest}s that are upgraded to cleartext HTTP/2 (<code>h2c</code>), which must also include
+ * a single <code>HTTP2-Settings</code> header (you may want to precede this with a {@link HttpByteProtocol} check).
+ * The request is passed along after binding, so a {@link HttpServerUpgradeHandler} added by
+ * {@link #bind(ChannelHandlerContext)} can complete the upgrade.
+ */
+public class H2cUpgradeHttpMessageProtocol implements MessageProtocol<FullHttpRequest> {
+	
+	private static final String H2C = "h2c";
+	private static final String HTTP2_SETTINGS = "HTTP2-Settings";
+	
+	private final Consumer<ChannelHandlerContext> bind;
+	
+	/**
+	 * @param bind Set up the pipeline for the upgrade (see {@link #bind(ChannelHandlerContext)} for details)
+	 */
+	public H2cUpgradeHttpMessageProtocol(Consumer<ChannelHandlerContext> bind) {
+		this.bind = bind;
+	}
+	
+	@Override
+	public ProtocolDetectionResult attemptDetection(List<FullHttpRequest> in) {
+		HttpHeaders headers = in.get(0).headers();
+		return headers.containsValue(HttpHeaderNames.CONNECTION, HttpHeaderNames.UPGRADE, true) &&
+				headers.containsValue(HttpHeaderNames.UPGRADE, H2C, true) &&
+				headers.getAll(HTTP2_SETTINGS).size() == 1 ?
+				ProtocolDetectionResult.DETECTED : ProtocolDetectionResult.REJECTED;
+	}
+	
+	@Override
+	public void bind(ChannelHandlerContext ctx) {
+		bind.accept(ctx);
+	}
+	
+}
@@ -0,0 +1,264 @@
+package com.luneruniverse.nettymux.messageprotocol;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+import com.luneruniverse.nettymux.byteprotocol.HttpByteProtocol;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Routes {@link HttpRequest}s to different pipelines by their host and path (you may want to precede this with a
+ * {@link HttpByteProtocol} check). The routes are compiled into radix trees, so finding the route for a request takes
+ * time proportional to the length of its host and path no matter how many routes there are. Like
+ * {@link NormalHttpRequestMessageProtocol}, this only needs the head of the request.<br>
+ * <br>
+ * Hosts can be exact (<code>example.com</code>), match any subdomain (<code>*.example.com</code>), or match any host
+ * (<code>*</code>, which also matches requests without a host); they're compared case-insensitively, without the port.
+ * Paths can be exact (<code>/login</code>) or match any path starting with the part before a trailing <code>*</code>
+ * (<code>/api/*</code>, or <code>*</code> for every path); they're compared as they appear in the request, without
+ * the query, and aren't decoded. The host is taken from an absolute request target if there is one, and from the
+ * <code>Host</code> header otherwise.<br>
+ * <br>
+ * The most specific route wins: an exact host over subdomains, longer subdomain patterns over shorter ones, and those
+ * over any host. If the most specific host has no route for the path, the less specific hosts are tried. Within a
+ * host, an exact path wins over prefixes, and longer prefixes win over shorter ones. If no route matches, this
+ * protocol is rejected.<br>
+ * <br>
+ * The {@link DetectionAttachment} is the {@link Target} the request was routed by, rather than the request itself,
+ * which may be released once it's passed along.
+ */
+public class HttpRouterMessageProtocol implements StatefulMessageProtocol<HttpRequest> {
+	
+	/**
+	 * Creates {@link HttpRouterMessageProtocol}s
+	 */
+	public static class Builder {
+		private final RadixTree<RadixTree<Consumer<ChannelHandlerContext>>> hosts;
+		private boolean empty;
+		
+		private Builder() {
+			this.hosts = new RadixTree<>();
+			this.empty = true;
+		}
+		
+		/**
+		 * @param host The host pattern (see {@link HttpRouterMessageProtocol} for details)
+		 * @param path The path pattern (see {@link HttpRouterMessageProtocol} for details)
+		 * @param bind Set up the pipeline for requests matching this route (see
+		 * {@link MessageProtocol#bind(ChannelHandlerContext)} for details)
+		 * @return this
+		 * @throws IllegalArgumentException If a pattern is invalid, or there is already a route with these patterns
+		 */
+		public Builder route(String host, String path, Consumer<ChannelHandlerContext> bind)
+				throws IllegalArgumentException {
+			Objects.requireNonNull(bind, "bind");
+			
+			boolean anySubdomain = host.startsWith("*.");
+			boolean anyHost = host.equals("*");
+			String hostKey = anyHost ? "" : reverse(anySubdomain ? host.substring(1) : host);
+			if (hostKey.indexOf('*') != -1)
+				throw new IllegalArgumentException("Host wildcards are only allowed as '*' or '*.domain': " + host);
+			
+			boolean prefix = path.endsWith("*");
+			String pathKey = prefix ? path.substring(0, path.length() - 1) : path;
+			if (pathKey.indexOf('*') != -1)
+				throw new IllegalArgumentException("Path wildcards are only allowed at the end: " + path);
+			
+			RadixTree<Consumer<ChannelHandlerContext>> paths = new RadixTree<>();
+			RadixTree<Consumer<ChannelHandlerContext>> existing = hosts.putIfAbsent(hostKey, anyHost || anySubdomain,
+					paths);
+			if (existing != null)
+				paths = existing;
+			if (paths.putIfAbsent(pathKey, prefix, bind) != null)
+				throw new IllegalArgumentException("There is already a route for " + host + " " + path);
+			empty = false;
+			return this;
+		}
+		
+		/**
+		 * @return A {@link HttpRouterMessageProtocol} with the added routes
+		 * @throws IllegalStateException If no routes were added
+		 */
+		public HttpRouterMessageProtocol build() throws IllegalStateException {
+			if (empty)
+				throw new IllegalStateException("There are no routes registered!");
+			return new HttpRouterMessageProtocol(hosts);
+		}
+	}
+	
+	/**
+	 * The host and path a request was routed by, which is the {@link DetectionAttachment} of this protocol
+	 */
+	public static final class Target {
+		private final String host;
+		private final String path;
+		
+		private Target(String host, String path) {
+			this.host = host;
+			this.path = path;
+		}
+		
+		/**
+		 * @return The host from the absolute request target or the <code>Host</code> header as it was received,
+		 * possibly with a port, or an empty string if the request doesn't have one
+		 */
+		public String getHost() {
+			return host;
+		}
+		/**
+		 * @return The path as it was received, without the query, and not decoded
+		 */
+		public String getPath() {
+			return path;
+		}
+		
+		@Override
+		public String toString() {
+			return "Target[host=" + host + ", path=" + path + "]";
+		}
+	}
+	
+	/**
+	 * @return A {@link Builder} to create a {@link HttpRouterMessageProtocol}
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+	
+	private static final Predicate<Object> ANY = value -> true;
+	
+	/**
+	 * @return <code>host</code> in lowercase and reversed, so that subdomain patterns become prefixes
+	 */
+	private static String reverse(CharSequence host) {
+		return new StringBuilder(host).reverse().toString().toLowerCase(Locale.ROOT);
+	}
+	
+	private final RadixTree<RadixTree<Consumer<ChannelHandlerContext>>> hosts;
+	
+	private HttpRouterMessageProtocol(RadixTree<RadixTree<Consumer<ChannelHandlerContext>>> hosts) {
+		this.hosts = hosts;
+	}
+	
+	@Override
+	public MessageProtocolDetector<HttpRequest> newDetector() {
+		return new MessageProtocolDetector<HttpRequest>() {
+			private Target target;
+			private Consumer<ChannelHandlerContext> route;
+			
+			@Override
+			public ProtocolDetectionResult attemptDetection(List<HttpRequest> in) {
+				target = target(in.get(0));
+				route = route(target);
+				return route == null ? ProtocolDetectionResult.REJECTED : ProtocolDetectionResult.DETECTED;
+			}
+			
+			/**
+			 * @return The {@link Target}
+			 */
+			@Override
+			public Object getAttachment() {
+				return target;
+			}
+			
+			@Override
+			public void bind(ChannelHandlerContext ctx) {
+				route.accept(ctx);
+			}
+		};
+	}
+	
+	/**
+	 * @param request The request to route
+	 * @return The host and path to route <code>request</code> by
+	 */
+	private static Target target(HttpRequest request) {
+		String uri = request.uri();
+		
+		int pathStart = 0;
+		String host = null;
+		int scheme = uri.startsWith("/") ? -1 : uri.indexOf("://");
+		if (scheme != -1) {
+			// An absolute request target, whose authority takes precedence over the Host header
+			int authorityStart = scheme + 3;
+			pathStart = authorityStart;
+			while (pathStart < uri.length() && "/?#".indexOf(uri.charAt(pathStart)) == -1)
+				pathStart++;
+			host = uri.substring(authorityStart, pathStart);
+			host = host.substring(host.lastIndexOf('@') + 1);
+		}
+		if (host == null)
+			host = request.headers().get(HttpHeaderNames.HOST, "");
+		
+		int pathEnd = pathStart;
+		while (pathEnd < uri.length() && uri.charAt(pathEnd) != '?' && uri.charAt(pathEnd) != '#')
+			pathEnd++;
+		return new Target(host, pathStart == pathEnd && scheme != -1 ? "/" : uri.substring(pathStart, pathEnd));
+	}
+	
+	/**
+	 * @param target The host and path of a request
+	 * @return The most specific route for <code>target</code>, or null if none match
+	 */
+	private Consumer<ChannelHandlerContext> route(Target target) {
+		String path = target.path;
+		// The most specific host that has a route for the path
+		RadixTree<Consumer<ChannelHandlerContext>> paths =
+				hosts.find(hostKey(target.host), candidate -> candidate.find(path, ANY) != null);
+		return paths == null ? null : paths.find(path, ANY);
+	}
+	
+	/**
+	 * @param host A host from a request, possibly with a port
+	 * @return The key to look up in the host tree
+	 */
+	private static String hostKey(String host) {
+		int end;
+		if (host.startsWith("[")) {
+			end = host.indexOf(']') + 1;
+			if (end == 0)
+				end = host.length();
+		} else {
+			end = host.indexOf(':');
+			if (end == -1)
+				end = host.length();
+		}
+		if (end > 0 && host.charAt(end - 1) == '.')
+			end--;
+		return reverse(host.subSequence(0, end));
+	}
+	
+	/**
+	 * @return The {@link Target}, which {@link #bind(ChannelHandlerContext)} routes when this is used without a
+	 * detector from {@link #newDetector()}
+	 */
+	@Override
+	public Object getAttachment(List<HttpRequest> in) {
+		return target(in.get(0));
+	}
+	
+	/**
+	 * Route the {@link Target} stored in {@link DetectionAttachment} by the multiplexer, for when this is used without
+	 * a detector from {@link #newDetector()}
+	 * @throws IllegalStateException If the channel doesn't have a {@link Target} attachment, or no route matches it
+	 */
+	@Override
+	public void bind(ChannelHandlerContext ctx) throws IllegalStateException {
+		Target target = DetectionAttachment.get(ctx.channel(), Target.class);
+		if (target == null)
+			throw new IllegalStateException("Routing needs the Target attachment!");
+		Consumer<ChannelHandlerContext> route = route(target);
+		if (route == null)
+			throw new IllegalStateException("No route matches " + target + "!");
+		route.accept(ctx);
+	}
+	
+}
@@ -2,6 +2,7 @@ package com.luneruniverse.nettymux.messageprotocol;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.function.Consumer;
 
 import com.luneruniverse.nettymux.ProtocolDetectionResult;
@@ -13,7 +14,7 @@ import io.netty.util.ReferenceCountUtil;
  * Detects protocols that start by sending a specific message sequence
  * @param <I> The type of messages that should be handled
  */
-public class MagicMessageProtocol<I> implements MessageProtocol<I> {
+public class MagicMessageProtocol<I> implements StatefulMessageProtocol<I> {
 	
 	private final List<I> magic;
 	private final boolean removeMagic;
@@ -41,12 +42,42 @@ public class MagicMessageProtocol<I> implements MessageProtocol<I> {
 		
 		if (removeMagic) {
 			inMagic.forEach(ReferenceCountUtil::release);
-			in.clear();
+			inMagic.clear();
 		}
 		
 		return ProtocolDetectionResult.DETECTED;
 	}
 	
+	@Override
+	public MessageProtocolDetector<I> newDetector() {
+		return new MessageProtocolDetector<I>() {
+			private int verified;
+			
+			@Override
+			public ProtocolDetectionResult attemptDetection(List<I> in) {
+				for (int end = Math.min(in.size(), magic.size()); verified < end; verified++) {
+					if (!Objects.equals(magic.get(verified), in.get(verified)))
+						return ProtocolDetectionResult.REJECTED;
+				}
+				if (verified < magic.size())
+					return ProtocolDetectionResult.UNKNOWN;
+				
+				if (removeMagic) {
+					List<I> inMagic = in.subList(0, magic.size());
+					inMagic.forEach(ReferenceCountUtil::release);
+					inMagic.clear();
+				}
+				
+				return ProtocolDetectionResult.DETECTED;
+			}
+			
+			@Override
+			public void bind(ChannelHandlerContext ctx) {
+				MagicMessageProtocol.this.bind(ctx);
+			}
+		};
+	}
+	
 	@Override
 	public void bind(ChannelHandlerContext ctx) {
 		bind.accept(ctx);
@@ -1,7 +1,10 @@
 package com.luneruniverse.nettymux.messageprotocol;
 
 import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
+import com.luneruniverse.nettymux.DetectionAttachment;
 import com.luneruniverse.nettymux.ProtocolDetectionResult;
 
 import io.netty.channel.ChannelHandlerContext;
@@ -22,6 +25,14 @@ public interface MessageProtocol<I> {
 	 * @return If this protocol is in use, cannot be in use, or this isn't known
 	 */
 	public ProtocolDetectionResult attemptDetection(List<I> in);
+	/**
+	 * Called once this protocol is detected, before binding it; see {@link DetectionAttachment}
+	 * @param in The currently received messages, after any messages were removed during detection
+	 * @return What was learned during detection, or null if there isn't anything to pass along (the default)
+	 */
+	public default Object getAttachment(List<I> in) {
+		return null;
+	}
 	/**
 	 * Set up the pipeline to handle this protocol (this is only called if {@link #attemptDetection(List)} returns
 	 * {@link ProtocolDetectionResult#DETECTED}). You do not need to remove multiplexing-related handlers; this will
@@ -29,4 +40,22 @@ public interface MessageProtocol<I> {
 	 * @param ctx The context of the {@link NettyMessageMultiplexer}
 	 */
 	public void bind(ChannelHandlerContext ctx);
+	/**
+	 * Set up the pipeline to handle this protocol when that involves slow work, such as loading configuration or keys,
+	 * which shouldn't block the event loop. While the returned stage is pending, the channel stops reading and the
+	 * multiplexer holds onto the messages received so far; once it completes, they're passed to the handlers that were
+	 * added. If it fails, the failure is passed to {@link io.netty.channel.ChannelHandler#exceptionCaught} and the
+	 * channel is closed. See {@link NettyMessageMultiplexer.Builder#bindTimeout(long, TimeUnit)} to limit how long
+	 * this can take.<br>
+	 * <br>
+	 * By default, this calls {@link #bind(ChannelHandlerContext)} and returns null. When this is overridden,
+	 * {@link #bind(ChannelHandlerContext)} isn't called by the multiplexer.
+	 * @param ctx The context of the {@link NettyMessageMultiplexer}
+	 * @return A stage that completes once the pipeline is set up, or null if it's already set up
+	 * @see com.luneruniverse.nettymux.byteprotocol.ByteProtocol#bindAsync(ChannelHandlerContext)
+	 */
+	public default CompletionStage<?> bindAsync(ChannelHandlerContext ctx) {
+		bind(ctx);
+		return null;
+	}
 }
@@ -0,0 +1,56 @@
+package com.luneruniverse.nettymux.messageprotocol;
+
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Detects a {@link StatefulMessageProtocol} on a single channel, remembering how many of the incoming messages have
+ * already been verified so that each call only has to look at the messages that arrived since the previous one
+ * @param <I> The type of messages that should be handled
+ */
+public interface MessageProtocolDetector<I> {
+	/**
+	 * Check if the currently received messages are enough to determine whether or not the protocol is in use. Each
+	 * call receives the same messages as the previous call, followed by any messages that have arrived since then.<br>
+	 * <br>
+	 * <strong>Warning:</strong> Only remove messages from <code>in</code> if the protocol is detected AND
+	 * you want to remove some messages before they get to the protocol's handler! When removing messages, make sure
+	 * to call {@link ReferenceCountUtil#release(Object)}!
+	 * @param in The currently received messages
+	 * @return If the protocol is in use, cannot be in use, or this isn't known
+	 * @see MessageProtocol#attemptDetection(List)
+	 */
+	public ProtocolDetectionResult attemptDetection(List<I> in);
+	/**
+	 * Called once the protocol is detected, before binding it; see {@link DetectionAttachment}
+	 * @return What was learned during detection, or null if there isn't anything to pass along (the default)
+	 */
+	public default Object getAttachment() {
+		return null;
+	}
+	/**
+	 * Set up the pipeline to handle the protocol (this is only called if {@link #attemptDetection(List)} returns
+	 * {@link ProtocolDetectionResult#DETECTED}), with access to anything learned during detection
+	 * @param ctx The context of the {@link NettyMessageMultiplexer}
+	 * @see MessageProtocol#bind(ChannelHandlerContext)
+	 */
+	public void bind(ChannelHandlerContext ctx);
+	/**
+	 * Set up the pipeline to handle the protocol when that involves slow work (this is only called if
+	 * {@link #attemptDetection(List)} returns {@link ProtocolDetectionResult#DETECTED}). By default, this calls
+	 * {@link #bind(ChannelHandlerContext)} and returns null.
+	 * @param ctx The context of the {@link NettyMessageMultiplexer}
+	 * @return A stage that completes once the pipeline is set up, or null if it's already set up
+	 * @see MessageProtocol#bindAsync(ChannelHandlerContext)
+	 */
+	public default CompletionStage<?> bindAsync(ChannelHandlerContext ctx) {
+		bind(ctx);
+		return null;
+	}
+}
@@ -1,9 +1,20 @@
 package com.luneruniverse.nettymux.messageprotocol;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import com.luneruniverse.nettymux.AdmissionLimit;
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.DetectionLimitException;
+import com.luneruniverse.nettymux.DetectionOrder;
+import com.luneruniverse.nettymux.InvalidProtocolException;
+import com.luneruniverse.nettymux.metrics.MultiplexerMetrics;
+
+import io.netty.channel.ChannelConfig;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandler;
 import io.netty.handler.codec.MessageToMessageDecoder;
@@ -12,7 +23,10 @@ import io.netty.util.ReferenceCountUtil;
 /**
  * A {@link ChannelInboundHandler} that identifies the protocol by the incoming messages and calls
  * {@link MessageProtocol#bind(ChannelHandlerContext)} once identified. If none of the protocols are matched, an
- * {@link InvalidMessageProtocolException} is thrown.
+ * {@link InvalidMessageProtocolException} is thrown. If a limit set with {@link Builder#maxBufferedMessages(int)},
+ * {@link Builder#detectionTimeout(long, TimeUnit)}, or {@link Builder#bindTimeout(long, TimeUnit)} is hit first, a
+ * {@link DetectionLimitException} is fired and the channel is closed. Protocols can also be given an
+ * {@link AdmissionLimit}, which rejects channels without binding the protocol while it's overloaded.
  * @param <I> The type of messages that should be handled
  */
 public class NettyMessageMultiplexer<I> extends MessageToMessageDecoder<I> {
@@ -24,10 +38,19 @@ public class NettyMessageMultiplexer<I> extends MessageToMessageDecoder<I> {
 	public static class Builder<I> {
 		private final Class<I> clazz;
 		private final List<MessageProtocol<I>> protocols;
+		private final List<AdmissionLimit> limits;
+		private int maxBufferedMessages;
+		private long detectionTimeoutNanos;
+		private long bindTimeoutNanos;
+		private long adaptiveOrderNanos;
+		private final List<Long> exclusiveGroups;
+		private MultiplexerMetrics metrics;
 		
 		public Builder(Class<I> clazz) {
 			this.clazz = clazz;
 			this.protocols = new ArrayList<>();
+			this.limits = new ArrayList<>();
+			this.exclusiveGroups = new ArrayList<>();
 		}
 		
 		/**
@@ -35,7 +58,16 @@ public class NettyMessageMultiplexer<I> extends MessageToMessageDecoder<I> {
 		 * @return this
 		 */
 		public Builder<I> addProtocol(MessageProtocol<I> protocol) {
+			return addProtocol(protocol, null);
+		}
+		/**
+		 * @param protocol A possible incoming protocol
+		 * @param limit Checked once the protocol is detected, before it's bound, or null for no limit
+		 * @return this
+		 */
+		public Builder<I> addProtocol(MessageProtocol<I> protocol, AdmissionLimit limit) {
 			protocols.add(protocol);
+			limits.add(limit);
 			return this;
 		}
 		/**
@@ -45,22 +77,191 @@ public class NettyMessageMultiplexer<I> extends MessageToMessageDecoder<I> {
 		@SuppressWarnings("unchecked")
 		public Builder<I> addProtocols(MessageProtocol<I>... protocols) {
 			for (MessageProtocol<I> protocol : protocols)
-				this.protocols.add(protocol);
+				addProtocol(protocol);
 			return this;
 		}
 		
 		/**
-		 * @return A {@link NettyMessageMultiplexer} with the added protocols
-		 * @throws IllegalStateException If no protocols were added
+		 * Limit how many messages can be buffered while detecting the protocol; if a protocol hasn't been detected by
+		 * the time more messages have been received, a {@link DetectionLimitException} with the type being
+		 * {@link DetectionLimitException.Type#BUFFERED_MESSAGES} is fired and the channel is closed. This also limits
+		 * the messages held onto while {@link MessageProtocol#bindAsync(ChannelHandlerContext)} is pending, which
+		 * includes messages of any type.
+		 * @param maxBufferedMessages The maximum number of messages, or 0 for no limit (the default)
+		 * @return this
+		 * @throws IllegalArgumentException If <code>maxBufferedMessages</code> is negative
 		 */
-		public NettyMessageMultiplexer<I> build() throws IllegalStateException {
+		public Builder<I> maxBufferedMessages(int maxBufferedMessages) throws IllegalArgumentException {
+			if (maxBufferedMessages < 0)
+				throw new IllegalArgumentException("maxBufferedMessages must not be negative!");
+			this.maxBufferedMessages = maxBufferedMessages;
+			return this;
+		}
+		/**
+		 * Limit how long detection can take after this multiplexer is added to an active channel; if a protocol hasn't
+		 * been detected by then, a {@link DetectionLimitException} with the type being
+		 * {@link DetectionLimitException.Type#TIMEOUT} is fired and the channel is closed. The timer runs on the
+		 * channel's event loop.
+		 * @param timeout The maximum time, or 0 for no limit (the default)
+		 * @param unit The unit of <code>timeout</code>
+		 * @return this
+		 * @throws IllegalArgumentException If <code>timeout</code> is negative
+		 */
+		public Builder<I> detectionTimeout(long timeout, TimeUnit unit) throws IllegalArgumentException {
+			if (timeout < 0)
+				throw new IllegalArgumentException("timeout must not be negative!");
+			this.detectionTimeoutNanos = unit.toNanos(timeout);
+			return this;
+		}
+		/**
+		 * Limit how long {@link MessageProtocol#bindAsync(ChannelHandlerContext)} can take; if the stage it returned
+		 * hasn't completed by then, a {@link DetectionLimitException} with the type being
+		 * {@link DetectionLimitException.Type#BIND_TIMEOUT} is fired and the channel is closed. The timer runs on the
+		 * channel's event loop.
+		 * @param timeout The maximum time, or 0 for no limit (the default)
+		 * @param unit The unit of <code>timeout</code>
+		 * @return this
+		 * @throws IllegalArgumentException If <code>timeout</code> is negative
+		 */
+		public Builder<I> bindTimeout(long timeout, TimeUnit unit) throws IllegalArgumentException {
+			if (timeout < 0)
+				throw new IllegalArgumentException("timeout must not be negative!");
+			this.bindTimeoutNanos = unit.toNanos(timeout);
+			return this;
+		}
+		
+		/**
+		 * Try the protocols that are detected most often first, rather than always in the order they were added. The
+		 * template counts detections of each protocol and publishes a new order every <code>interval</code>, weighing
+		 * recent detections the most; see {@link DetectionOrder}. Protocols are only moved ahead of ones added before
+		 * them if they were declared with {@link #mutuallyExclusive(MessageProtocol...)}.
+		 * @param interval How often to reorder the protocols, or 0 to keep the order they were added in (the default)
+		 * @param unit The unit of <code>interval</code>
+		 * @return this
+		 * @throws IllegalArgumentException If <code>interval</code> is negative
+		 */
+		public Builder<I> adaptiveOrder(long interval, TimeUnit unit) throws IllegalArgumentException {
+			if (interval < 0)
+				throw new IllegalArgumentException("interval must not be negative!");
+			this.adaptiveOrderNanos = unit.toNanos(interval);
+			return this;
+		}
+		/**
+		 * Declare that no messages are detected as more than one of <code>protocols</code>, so that
+		 * {@link #adaptiveOrder(long, TimeUnit)} can try them in any order
+		 * @param protocols Protocols that have already been added
+		 * @return this
+		 * @throws IllegalArgumentException If any of <code>protocols</code> haven't been added
+		 */
+		@SuppressWarnings("unchecked")
+		public Builder<I> mutuallyExclusive(MessageProtocol<I>... protocols) throws IllegalArgumentException {
+			long group = 0;
+			for (MessageProtocol<I> protocol : protocols) {
+				int i = this.protocols.indexOf(protocol);
+				if (i == -1 || i >= MAX_PROTOCOLS)
+					throw new IllegalArgumentException("The protocol must be added before it's declared exclusive!");
+				group |= 1L << i;
+			}
+			exclusiveGroups.add(group);
+			return this;
+		}
+		
+		/**
+		 * Report the outcome of detection on each channel
+		 * @param metrics Receives the outcome of detection, or null to not report it (the default)
+		 * @return this
+		 */
+		public Builder<I> metrics(MultiplexerMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+		
+		/**
+		 * Build the template once and use {@link Template#newHandler()} for each channel rather than calling
+		 * {@link #build()} for each channel.
+		 * @return A {@link Template} with the added protocols
+		 * @throws IllegalStateException If no protocols were added, or if more than
+		 * {@value NettyMessageMultiplexer#MAX_PROTOCOLS} protocols were added
+		 */
+		@SuppressWarnings("unchecked")
+		public Template<I> buildTemplate() throws IllegalStateException {
 			if (protocols.isEmpty())
 				throw new IllegalStateException("There are no protocols registered!");
+			if (protocols.size() > MAX_PROTOCOLS)
+				throw new IllegalStateException("There can be at most " + MAX_PROTOCOLS + " protocols registered!");
 			
-			return new NettyMessageMultiplexer<>(clazz, new ArrayList<>(protocols));
+			return new Template<>(clazz, (MessageProtocol<I>[]) protocols.toArray(new MessageProtocol<?>[0]),
+					limits.toArray(new AdmissionLimit[0]), maxBufferedMessages, detectionTimeoutNanos, bindTimeoutNanos,
+					new DetectionOrder(protocols.size(), exclusiveGroups.stream().mapToLong(Long::longValue).toArray(),
+							adaptiveOrderNanos),
+					metrics);
+		}
+		/**
+		 * @return A {@link NettyMessageMultiplexer} with the added protocols
+		 * @throws IllegalStateException If no protocols were added, or if more than
+		 * {@value NettyMessageMultiplexer#MAX_PROTOCOLS} protocols were added
+		 * @see #buildTemplate()
+		 */
+		public NettyMessageMultiplexer<I> build() throws IllegalStateException {
+			return buildTemplate().newHandler();
 		}
 	}
 	
+	/**
+	 * The immutable settings of a {@link NettyMessageMultiplexer}, which can be shared by all channels and threads.
+	 * Each channel only needs its own handler from {@link #newHandler()}, which holds nothing but the channel's
+	 * detection progress and received messages.
+	 * @param <I> The type of messages that should be handled
+	 */
+	public static final class Template<I> {
+		private final Class<I> clazz;
+		private final MessageProtocol<I>[] protocols;
+		private final AdmissionLimit[] limits;
+		private final long allProtocols;
+		private final int maxBufferedMessages;
+		private final long detectionTimeoutNanos;
+		private final long bindTimeoutNanos;
+		private final DetectionOrder order;
+		private final MultiplexerMetrics metrics;
+		
+		private Template(Class<I> clazz, MessageProtocol<I>[] protocols, AdmissionLimit[] limits,
+				int maxBufferedMessages, long detectionTimeoutNanos, long bindTimeoutNanos, DetectionOrder order,
+				MultiplexerMetrics metrics) {
+			this.clazz = clazz;
+			this.protocols = protocols;
+			this.limits = limits;
+			this.allProtocols = -1L >>> (Long.SIZE - protocols.length);
+			this.maxBufferedMessages = maxBufferedMessages;
+			this.detectionTimeoutNanos = detectionTimeoutNanos;
+			this.bindTimeoutNanos = bindTimeoutNanos;
+			this.order = order;
+			this.metrics = metrics;
+		}
+		
+		/**
+		 * @return A new {@link NettyMessageMultiplexer} for a single channel
+		 */
+		public NettyMessageMultiplexer<I> newHandler() {
+			return new NettyMessageMultiplexer<>(this);
+		}
+		
+		/**
+		 * @return The protocols in the order they're currently tried
+		 * @see Builder#adaptiveOrder(long, TimeUnit)
+		 */
+		public List<MessageProtocol<I>> getDetectionOrder() {
+			List<MessageProtocol<I>> output = new ArrayList<>();
+			for (int i : order.get())
+				output.add(protocols[i]);
+			return output;
+		}
+	}
+	
+	/**
+	 * The maximum number of protocols that can be registered in a single {@link NettyMessageMultiplexer}
+	 */
+	public static final int MAX_PROTOCOLS = Long.SIZE;
+	
 	/**
 	 * @param <I> The type of messages that should be handled
 	 * @param clazz The type of messages that should be handled
@@ -70,47 +271,224 @@ public class NettyMessageMultiplexer<I> extends MessageToMessageDecoder<I> {
 		return new Builder<>(clazz);
 	}
 	
-	private final List<MessageProtocol<I>> protocols;
+	private final Template<I> template;
 	private final List<I> in;
+	private final List<Object> held;
+	private long candidates;
+	private MessageProtocolDetector<I>[] detectors;
+	private ScheduledFuture<?> timeout;
+	private boolean failed;
+	private boolean binding;
+	private boolean autoRead;
+	private long startNanos;
+	private int reads;
 	
-	private NettyMessageMultiplexer(Class<I> clazz, List<MessageProtocol<I>> protocols) {
-		super(clazz);
-		this.protocols = protocols;
+	private NettyMessageMultiplexer(Template<I> template) {
+		super(template.clazz);
+		this.template = template;
 		this.in = new ArrayList<>();
+		this.held = new ArrayList<>();
+		this.candidates = template.allProtocols;
+	}
+	
+	@Override
+	public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+		if (ctx.channel().isActive())
+			start(ctx);
+	}
+	
+	@Override
+	public void channelActive(ChannelHandlerContext ctx) throws Exception {
+		start(ctx);
+		super.channelActive(ctx);
+	}
+	
+	private void start(ChannelHandlerContext ctx) {
+		if (template.metrics != null && startNanos == 0)
+			startNanos = System.nanoTime();
+		if (template.detectionTimeoutNanos > 0 && timeout == null) {
+			timeout = ctx.executor().schedule(() -> fail(ctx, DetectionLimitException.Type.TIMEOUT),
+					template.detectionTimeoutNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	/**
+	 * Abandon detection, releasing any buffered messages
+	 * @param ctx The context of this handler
+	 * @param type The limit that was hit
+	 */
+	private void fail(ChannelHandlerContext ctx, DetectionLimitException.Type type) {
+		if (failed || ctx.isRemoved())
+			return;
+		DetectionLimitException cause = new DetectionLimitException(type);
+		// The protocol was already reported as detected if this happened while binding
+		abandon(ctx, binding ? cause : failed(cause));
+	}
+	
+	private void abandon(ChannelHandlerContext ctx, Throwable cause) {
+		failed = true;
+		in.forEach(ReferenceCountUtil::release);
+		in.clear();
+		held.forEach(ReferenceCountUtil::release);
+		held.clear();
+		ctx.fireExceptionCaught(cause);
+		ctx.close();
+	}
+	
+	/**
+	 * Wait for an asynchronous bind to complete before removing this handler, holding onto the received messages and
+	 * not reading in the meantime; see {@link #channelRead(ChannelHandlerContext, Object)}
+	 * @param ctx The context of this handler
+	 * @param stage The stage returned by the bind
+	 */
+	private void awaitBind(ChannelHandlerContext ctx, CompletionStage<?> stage) {
+		binding = true;
+		if (timeout != null)
+			timeout.cancel(false);
+		timeout = null;
+		ChannelConfig config = ctx.channel().config();
+		autoRead = config.isAutoRead();
+		config.setAutoRead(false);
+		if (template.bindTimeoutNanos > 0) {
+			timeout = ctx.executor().schedule(() -> fail(ctx, DetectionLimitException.Type.BIND_TIMEOUT),
+					template.bindTimeoutNanos, TimeUnit.NANOSECONDS);
+		}
+		
+		stage.whenComplete((result, cause) -> {
+			if (ctx.executor().inEventLoop())
+				bound(ctx, cause);
+			else
+				ctx.executor().execute(() -> bound(ctx, cause));
+		});
+	}
+	
+	private void bound(ChannelHandlerContext ctx, Throwable cause) {
+		if (failed || ctx.isRemoved() || !ctx.channel().isActive())
+			return;
+		if (cause != null) {
+			abandon(ctx, cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause);
+			return;
+		}
+		ctx.pipeline().remove(this);
+		if (autoRead)
+			ctx.channel().config().setAutoRead(true);
+	}
+	
+	private void detected(Object protocol, int buffered) {
+		if (template.metrics != null)
+			template.metrics.protocolDetected(protocol, false, buffered, reads, System.nanoTime() - startNanos);
+	}
+	
+	private <T extends InvalidProtocolException> T failed(T cause) {
+		if (template.metrics != null)
+			template.metrics.detectionFailed(cause, in.size(), reads, System.nanoTime() - startNanos);
+		return cause;
+	}
+	
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+		if (!binding) {
+			super.channelRead(ctx, msg);
+			return;
+		}
+		
+		// Reading stops while binding, but messages from a read that was already underway still arrive. Those that
+		// aren't handled by this multiplexer (such as the content after a request head) are held onto too, so they
+		// reach the bound handlers in order.
+		if (failed) {
+			ReferenceCountUtil.release(msg);
+			return;
+		}
+		held.add(msg);
+		if (template.maxBufferedMessages > 0 && in.size() + held.size() > template.maxBufferedMessages)
+			fail(ctx, DetectionLimitException.Type.BUFFERED_MESSAGES);
 	}
 	
 	@Override
 	protected void decode(ChannelHandlerContext ctx, I msg, List<Object> out) throws Exception {
+		if (failed)
+			return;
+		reads++;
+		
+		MessageProtocol<I>[] protocols = template.protocols;
 		ReferenceCountUtil.retain(msg);
 		in.add(msg);
+		int buffered = in.size();
 		
-		for (Iterator<MessageProtocol<I>> i = protocols.iterator(); i.hasNext();) {
-			MessageProtocol<I> protocol = i.next();
+		for (int i : template.order.get()) {
+			long bit = 1L << i;
+			if ((candidates & bit) == 0)
+				continue;
+			MessageProtocol<I> protocol = protocols[i];
+			MessageProtocolDetector<I> detector = detector(i);
 			
-			switch (protocol.attemptDetection(in)) {
+			switch (detector == null ? protocol.attemptDetection(in) : detector.attemptDetection(in)) {
 				case DETECTED:
-					protocol.bind(ctx);
-					ctx.pipeline().remove(this);
+					template.order.hit(i);
+					AdmissionLimit limit = template.limits[i];
+					if (limit != null && !limit.tryAdmit(ctx.channel())) {
+						if (template.metrics != null)
+							template.metrics.admissionRejected(protocol, false);
+						failed = true;
+						in.forEach(ReferenceCountUtil::release);
+						in.clear();
+						limit.reject(ctx);
+						return;
+					}
+					DetectionAttachment.set(ctx.channel(),
+							detector == null ? protocol.getAttachment(in) : detector.getAttachment());
+					CompletionStage<?> stage = detector == null ? protocol.bindAsync(ctx) : detector.bindAsync(ctx);
+					detected(protocol, buffered);
+					if (stage == null)
+						ctx.pipeline().remove(this);
+					else
+						awaitBind(ctx, stage);
 					return;
 				case UNKNOWN:
 					break;
 				case REJECTED:
-					i.remove();
+					candidates &= ~bit;
 					break;
 			}
 		}
 		
-		if (protocols.isEmpty())
-			throw new InvalidMessageProtocolException();
+		if (candidates == 0)
+			throw failed(new InvalidMessageProtocolException());
+		
+		if (template.maxBufferedMessages > 0 && in.size() > template.maxBufferedMessages)
+			fail(ctx, DetectionLimitException.Type.BUFFERED_MESSAGES);
+	}
+	
+	/**
+	 * @param i The index of the protocol
+	 * @return The detector for this channel if the protocol is a {@link StatefulMessageProtocol}, otherwise null
+	 */
+	@SuppressWarnings("unchecked")
+	private MessageProtocolDetector<I> detector(int i) {
+		MessageProtocol<I>[] protocols = template.protocols;
+		if (!(protocols[i] instanceof StatefulMessageProtocol))
+			return null;
+		if (detectors == null)
+			detectors = (MessageProtocolDetector<I>[]) new MessageProtocolDetector<?>[protocols.length];
+		if (detectors[i] == null)
+			detectors[i] = ((StatefulMessageProtocol<I>) protocols[i]).newDetector();
+		return detectors[i];
 	}
 	
 	@Override
 	public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
-		if (!in.isEmpty()) {
+		if (timeout != null) {
+			timeout.cancel(false);
+			timeout = null;
+		}
+		if (!in.isEmpty() || !held.isEmpty()) {
 			for (I msg : in)
 				ctx.fireChannelRead(msg);
+			for (Object msg : held)
+				ctx.fireChannelRead(msg);
 			ctx.fireChannelReadComplete();
 			in.clear();
+			held.clear();
 		}
 	}
 	
@@ -0,0 +1,44 @@
+package com.luneruniverse.nettymux.messageprotocol;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+import com.luneruniverse.nettymux.byteprotocol.HttpByteProtocol;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Detects {@link HttpRequest}s that aren't upgraded by their head alone (you may want to precede this with a
+ * {@link HttpByteProtocol} check). Unlike {@link NormalHttpMessageProtocol}, this doesn't need a
+ * {@link HttpObjectAggregator}: use it with a {@link NettyMessageMultiplexer} built for {@link HttpRequest} right after
+ * the HTTP codec, and the {@link HttpContent}s of the body stream through to the pipeline set up by
+ * {@link #bind(ChannelHandlerContext)}, which can still add an aggregator if it wants one.
+ */
+public class NormalHttpRequestMessageProtocol implements MessageProtocol<HttpRequest> {
+	
+	private final Consumer<ChannelHandlerContext> bind;
+	
+	/**
+	 * @param bind Set up the pipeline for un-upgraded HTTP (see {@link #bind(ChannelHandlerContext)} for details)
+	 */
+	public NormalHttpRequestMessageProtocol(Consumer<ChannelHandlerContext> bind) {
+		this.bind = bind;
+	}
+	
+	@Override
+	public ProtocolDetectionResult attemptDetection(List<HttpRequest> in) {
+		return in.get(0).headers().get(HttpHeaderNames.UPGRADE) == null ?
+				ProtocolDetectionResult.DETECTED : ProtocolDetectionResult.REJECTED;
+	}
+	
+	@Override
+	public void bind(ChannelHandlerContext ctx) {
+		bind.accept(ctx);
+	}
+	
+}
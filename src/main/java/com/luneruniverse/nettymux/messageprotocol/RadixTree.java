@@ -0,0 +1,138 @@
+package com.luneruniverse.nettymux.messageprotocol;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * A radix tree from strings to values, where each key either matches exactly or as a prefix. Lookups walk the tree
+ * once, so they take time proportional to the length of the key no matter how many keys there are.
+ * @param <V> The type of values
+ */
+final class RadixTree<V> {
+	
+	private static final class Node<V> {
+		private String label;
+		private char[] keys;
+		private Node<V>[] children;
+		private V exact;
+		private V prefix;
+		
+		@SuppressWarnings("unchecked")
+		private Node(String label) {
+			this.label = label;
+			this.keys = new char[0];
+			this.children = (Node<V>[]) new Node<?>[0];
+		}
+		
+		private Node<V> child(char key) {
+			int index = Arrays.binarySearch(keys, key);
+			return index < 0 ? null : children[index];
+		}
+		
+		private void setChild(Node<V> child) {
+			char key = child.label.charAt(0);
+			int index = Arrays.binarySearch(keys, key);
+			if (index >= 0) {
+				children[index] = child;
+				return;
+			}
+			index = -index - 1;
+			keys = Arrays.copyOf(keys, keys.length + 1);
+			children = Arrays.copyOf(children, children.length + 1);
+			System.arraycopy(keys, index, keys, index + 1, keys.length - index - 1);
+			System.arraycopy(children, index, children, index + 1, children.length - index - 1);
+			keys[index] = key;
+			children[index] = child;
+		}
+	}
+	
+	private final Node<V> root = new Node<>("");
+	
+	/**
+	 * @param key The key, which ends at the returned node
+	 * @return The node for <code>key</code>, splitting or adding nodes as needed
+	 */
+	private Node<V> node(String key) {
+		Node<V> node = root;
+		int i = 0;
+		while (i < key.length()) {
+			Node<V> child = node.child(key.charAt(i));
+			if (child == null) {
+				child = new Node<>(key.substring(i));
+				node.setChild(child);
+				return child;
+			}
+			
+			int common = 0;
+			int max = Math.min(child.label.length(), key.length() - i);
+			while (common < max && child.label.charAt(common) == key.charAt(i + common))
+				common++;
+			if (common < child.label.length()) {
+				Node<V> split = new Node<>(child.label.substring(0, common));
+				child.label = child.label.substring(common);
+				split.setChild(child);
+				node.setChild(split);
+				child = split;
+			}
+			node = child;
+			i += common;
+		}
+		return node;
+	}
+	
+	/**
+	 * @param key The key
+	 * @param prefix If <code>value</code> is for any key starting with <code>key</code> rather than only
+	 * <code>key</code> itself
+	 * @param value The value
+	 * @return The value that was already there, in which case it isn't replaced
+	 */
+	V putIfAbsent(String key, boolean prefix, V value) {
+		Node<V> node = node(key);
+		V existing = prefix ? node.prefix : node.exact;
+		if (existing != null)
+			return existing;
+		if (prefix)
+			node.prefix = value;
+		else
+			node.exact = value;
+		return null;
+	}
+	
+	/**
+	 * Find the value of the most specific key matching <code>key</code> that is accepted: an exact match, or else the
+	 * longest prefix
+	 * @param key The key to look up
+	 * @param accept Decides whether a candidate value can be used, or if a less specific one should be tried
+	 * @return The value, or null if no keys match
+	 */
+	V find(CharSequence key, Predicate<? super V> accept) {
+		return find(root, key, 0, accept);
+	}
+	
+	private V find(Node<V> node, CharSequence key, int i, Predicate<? super V> accept) {
+		if (i == key.length()) {
+			if (node.exact != null && accept.test(node.exact))
+				return node.exact;
+		} else {
+			Node<V> child = node.child(key.charAt(i));
+			if (child != null && regionMatches(key, i, child.label)) {
+				V value = find(child, key, i + child.label.length(), accept);
+				if (value != null)
+					return value;
+			}
+		}
+		return node.prefix != null && accept.test(node.prefix) ? node.prefix : null;
+	}
+	
+	private static boolean regionMatches(CharSequence key, int offset, String label) {
+		if (key.length() - offset < label.length())
+			return false;
+		for (int i = 0; i < label.length(); i++) {
+			if (key.charAt(offset + i) != label.charAt(i))
+				return false;
+		}
+		return true;
+	}
+	
+}
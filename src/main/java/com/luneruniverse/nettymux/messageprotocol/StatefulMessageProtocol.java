@@ -0,0 +1,27 @@
+package com.luneruniverse.nettymux.messageprotocol;
+
+import java.util.List;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+/**
+ * A {@link MessageProtocol} that keeps track of its detection progress per channel in a
+ * {@link MessageProtocolDetector}, so the cost of detection grows with the new messages rather than all of the
+ * received messages. {@link NettyMessageMultiplexer} creates a detector the first time the protocol is checked on a
+ * channel, and uses it instead of {@link #attemptDetection(List)} and
+ * {@link #bind(io.netty.channel.ChannelHandlerContext)}.
+ * @param <I> The type of messages that should be handled
+ */
+public interface StatefulMessageProtocol<I> extends MessageProtocol<I> {
+	/**
+	 * @return A new detector for a single channel
+	 */
+	public MessageProtocolDetector<I> newDetector();
+	/**
+	 * Check all of the currently received messages at once using a new detector
+	 */
+	@Override
+	public default ProtocolDetectionResult attemptDetection(List<I> in) {
+		return newDetector().attemptDetection(in);
+	}
+}
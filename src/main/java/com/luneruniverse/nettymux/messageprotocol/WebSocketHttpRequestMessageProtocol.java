@@ -0,0 +1,44 @@
+package com.luneruniverse.nettymux.messageprotocol;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+import com.luneruniverse.nettymux.byteprotocol.HttpByteProtocol;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Detects {@link HttpRequest}s that are upgraded to WebSocket by their head alone (you may want to precede this with
+ * a {@link HttpByteProtocol} check). Unlike {@link WebSocketHttpMessageProtocol}, this doesn't need a
+ * {@link HttpObjectAggregator}; see {@link NormalHttpRequestMessageProtocol} for how to use it.
+ */
+public class WebSocketHttpRequestMessageProtocol implements MessageProtocol<HttpRequest> {
+	
+	private final Consumer<ChannelHandlerContext> bind;
+	
+	/**
+	 * @param bind Set up the pipeline for a WebSocket (see {@link #bind(ChannelHandlerContext)} for details)
+	 */
+	public WebSocketHttpRequestMessageProtocol(Consumer<ChannelHandlerContext> bind) {
+		this.bind = bind;
+	}
+	
+	@Override
+	public ProtocolDetectionResult attemptDetection(List<HttpRequest> in) {
+		HttpHeaders headers = in.get(0).headers();
+		return HttpHeaderNames.UPGRADE.contentEqualsIgnoreCase(headers.get(HttpHeaderNames.CONNECTION)) &&
+				"WebSocket".equalsIgnoreCase(headers.get(HttpHeaderNames.UPGRADE)) ?
+				ProtocolDetectionResult.DETECTED : ProtocolDetectionResult.REJECTED;
+	}
+	
+	@Override
+	public void bind(ChannelHandlerContext ctx) {
+		bind.accept(ctx);
+	}
+	
+}
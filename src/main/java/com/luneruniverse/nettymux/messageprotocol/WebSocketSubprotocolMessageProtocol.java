@@ -0,0 +1,254 @@
+package com.luneruniverse.nettymux.messageprotocol;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+import com.luneruniverse.nettymux.byteprotocol.HttpByteProtocol;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+
+/**
+ * Detects requests that are upgraded to WebSocket and negotiates the subprotocol, binding the pipeline registered for
+ * it (you may want to precede this with a {@link HttpByteProtocol} check). The subprotocols offered in
+ * <code>Sec-WebSocket-Protocol</code> are tried in the client's order of preference, first among the ones registered
+ * for the request's path and then among the ones registered for any path. If the client offers subprotocols but none
+ * of them are registered, or offers none and {@link Builder#noSubprotocol(Consumer)} wasn't used, this protocol is
+ * rejected, so nothing is set up for the WebSocket handshake.<br>
+ * <br>
+ * Each bind callback knows its subprotocol, so it can set up the handshake for just that one (for example, with a
+ * {@link WebSocketServerProtocolHandler} whose only subprotocol is the negotiated one). This only needs the head of
+ * the request, so it works with a {@link NettyMessageMultiplexer} for either {@link FullHttpRequest}s or
+ * {@link HttpRequest}s. Once bound, the negotiated subprotocol is also the {@link DetectionAttachment}, if there is
+ * one.
+ * @param <I> The type of requests that should be handled
+ */
+public class WebSocketSubprotocolMessageProtocol<I extends HttpRequest> implements StatefulMessageProtocol<I> {
+	
+	/**
+	 * Creates {@link WebSocketSubprotocolMessageProtocol}s
+	 * @param <I> The type of requests that should be handled
+	 */
+	public static class Builder<I extends HttpRequest> {
+		private final Class<I> clazz;
+		private final Map<String, Map<String, Consumer<ChannelHandlerContext>>> byPath;
+		private final Map<String, Consumer<ChannelHandlerContext>> anyPath;
+		private final Map<String, Consumer<ChannelHandlerContext>> noSubprotocol;
+		
+		private Builder(Class<I> clazz) {
+			this.clazz = clazz;
+			this.byPath = new HashMap<>();
+			this.anyPath = new HashMap<>();
+			this.noSubprotocol = new HashMap<>();
+		}
+		
+		/**
+		 * @param subprotocol The subprotocol name, which is case-sensitive
+		 * @param bind Set up the pipeline for WebSockets using this subprotocol on any path (see
+		 * {@link MessageProtocol#bind(ChannelHandlerContext)} for details)
+		 * @return this
+		 * @throws IllegalArgumentException If this subprotocol is already registered for any path
+		 */
+		public Builder<I> subprotocol(String subprotocol, Consumer<ChannelHandlerContext> bind)
+				throws IllegalArgumentException {
+			return subprotocol(null, subprotocol, bind);
+		}
+		/**
+		 * @param path The exact path (without the query), or null for any path
+		 * @param subprotocol The subprotocol name, which is case-sensitive
+		 * @param bind Set up the pipeline for WebSockets using this subprotocol on this path (see
+		 * {@link MessageProtocol#bind(ChannelHandlerContext)} for details)
+		 * @return this
+		 * @throws IllegalArgumentException If this subprotocol is already registered for this path
+		 */
+		public Builder<I> subprotocol(String path, String subprotocol, Consumer<ChannelHandlerContext> bind)
+				throws IllegalArgumentException {
+			Objects.requireNonNull(subprotocol, "subprotocol");
+			Objects.requireNonNull(bind, "bind");
+			Map<String, Consumer<ChannelHandlerContext>> binds =
+					path == null ? anyPath : byPath.computeIfAbsent(path, key -> new HashMap<>());
+			if (binds.putIfAbsent(subprotocol, bind) != null)
+				throw new IllegalArgumentException("The subprotocol " + subprotocol + " is already registered!");
+			return this;
+		}
+		/**
+		 * @param bind Set up the pipeline for WebSockets that don't offer a subprotocol on any path (see
+		 * {@link MessageProtocol#bind(ChannelHandlerContext)} for details)
+		 * @return this
+		 * @throws IllegalArgumentException If this is already registered for any path
+		 */
+		public Builder<I> noSubprotocol(Consumer<ChannelHandlerContext> bind) throws IllegalArgumentException {
+			return noSubprotocol(null, bind);
+		}
+		/**
+		 * @param path The exact path (without the query), or null for any path
+		 * @param bind Set up the pipeline for WebSockets that don't offer a subprotocol on this path (see
+		 * {@link MessageProtocol#bind(ChannelHandlerContext)} for details)
+		 * @return this
+		 * @throws IllegalArgumentException If this is already registered for this path
+		 */
+		public Builder<I> noSubprotocol(String path, Consumer<ChannelHandlerContext> bind)
+				throws IllegalArgumentException {
+			Objects.requireNonNull(bind, "bind");
+			if (noSubprotocol.containsKey(path))
+				throw new IllegalArgumentException("WebSockets without a subprotocol are already registered!");
+			noSubprotocol.put(path, bind);
+			return this;
+		}
+		
+		/**
+		 * @return A {@link WebSocketSubprotocolMessageProtocol} with the registered subprotocols
+		 * @throws IllegalStateException If nothing was registered
+		 */
+		public WebSocketSubprotocolMessageProtocol<I> build() throws IllegalStateException {
+			if (byPath.isEmpty() && anyPath.isEmpty() && noSubprotocol.isEmpty())
+				throw new IllegalStateException("There are no subprotocols registered!");
+			return new WebSocketSubprotocolMessageProtocol<>(this);
+		}
+	}
+	
+	/**
+	 * @param <I> The type of requests that should be handled
+	 * @param clazz The type of requests that should be handled, which {@link #bind(ChannelHandlerContext)} looks for
+	 * in the {@link DetectionAttachment}
+	 * @return A {@link Builder} to create a {@link WebSocketSubprotocolMessageProtocol}
+	 */
+	public static <I extends HttpRequest> Builder<I> builder(Class<I> clazz) {
+		return new Builder<>(Objects.requireNonNull(clazz, "clazz"));
+	}
+	
+	private final Class<I> clazz;
+	private final Map<String, Map<String, Consumer<ChannelHandlerContext>>> byPath;
+	private final Map<String, Consumer<ChannelHandlerContext>> anyPath;
+	private final Map<String, Consumer<ChannelHandlerContext>> noSubprotocol;
+	
+	private WebSocketSubprotocolMessageProtocol(Builder<I> builder) {
+		this.clazz = builder.clazz;
+		this.byPath = new HashMap<>(builder.byPath);
+		this.anyPath = new HashMap<>(builder.anyPath);
+		this.noSubprotocol = new HashMap<>(builder.noSubprotocol);
+	}
+	
+	@Override
+	public MessageProtocolDetector<I> newDetector() {
+		return new MessageProtocolDetector<I>() {
+			private Map.Entry<String, Consumer<ChannelHandlerContext>> negotiated;
+			
+			@Override
+			public ProtocolDetectionResult attemptDetection(List<I> in) {
+				negotiated = negotiate(in.get(0));
+				return negotiated == null ? ProtocolDetectionResult.REJECTED : ProtocolDetectionResult.DETECTED;
+			}
+			
+			@Override
+			public Object getAttachment() {
+				return negotiated.getKey();
+			}
+			
+			@Override
+			public void bind(ChannelHandlerContext ctx) {
+				negotiated.getValue().accept(ctx);
+			}
+		};
+	}
+	
+	/**
+	 * @param request The request to negotiate the subprotocol of
+	 * @return The negotiated subprotocol (or null if the client didn't offer any) and its bind callback, or null if
+	 * this isn't a WebSocket upgrade or none of the offered subprotocols are registered
+	 */
+	private Map.Entry<String, Consumer<ChannelHandlerContext>> negotiate(HttpRequest request) {
+		HttpHeaders headers = request.headers();
+		if (!headers.containsValue(HttpHeaderNames.CONNECTION, HttpHeaderNames.UPGRADE, true) ||
+				!"WebSocket".equalsIgnoreCase(headers.get(HttpHeaderNames.UPGRADE)))
+			return null;
+		
+		String uri = request.uri();
+		int pathEnd = 0;
+		while (pathEnd < uri.length() && uri.charAt(pathEnd) != '?' && uri.charAt(pathEnd) != '#')
+			pathEnd++;
+		String path = uri.substring(0, pathEnd);
+		
+		List<String> offered = headers.getAll(HttpHeaderNames.SEC_WEBSOCKET_PROTOCOL);
+		Map<String, Consumer<ChannelHandlerContext>> binds = byPath.get(path);
+		String subprotocol = negotiate(offered, binds);
+		if (subprotocol == null) {
+			binds = anyPath;
+			subprotocol = negotiate(offered, binds);
+		}
+		Consumer<ChannelHandlerContext> bind = null;
+		if (subprotocol != null)
+			bind = binds.get(subprotocol);
+		else if (offered.isEmpty()) {
+			bind = noSubprotocol.get(path);
+			if (bind == null)
+				bind = noSubprotocol.get(null);
+		}
+		return bind == null ? null : new AbstractMap.SimpleImmutableEntry<>(subprotocol, bind);
+	}
+	
+	/**
+	 * @param offered The values of the <code>Sec-WebSocket-Protocol</code> headers, each a comma-separated list
+	 * @param binds The registered subprotocols, or null if there are none
+	 * @return The first offered subprotocol that is registered, or null if there isn't one
+	 */
+	private static String negotiate(List<String> offered,
+			Map<String, Consumer<ChannelHandlerContext>> binds) {
+		if (binds == null || binds.isEmpty())
+			return null;
+		for (String value : offered) {
+			int start = 0;
+			while (start < value.length()) {
+				int end = value.indexOf(',', start);
+				if (end == -1)
+					end = value.length();
+				String subprotocol = value.substring(start, end).trim();
+				if (binds.containsKey(subprotocol))
+					return subprotocol;
+				start = end + 1;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return The request, which {@link #bind(ChannelHandlerContext)} negotiates the subprotocol of when this is used
+	 * without a detector from {@link #newDetector()}. Only the head of the request is used, and since the request may
+	 * be released once it's passed along, it's replaced by the negotiated subprotocol (or cleared if there isn't one)
+	 * when bound.
+	 */
+	@Override
+	public Object getAttachment(List<I> in) {
+		return in.get(0);
+	}
+	
+	/**
+	 * Negotiate the subprotocol of the request stored in {@link DetectionAttachment} by the multiplexer, for when this
+	 * is used without a detector from {@link #newDetector()}
+	 * @throws IllegalStateException If the channel doesn't have a request attachment, or no subprotocol can be
+	 * negotiated for it
+	 */
+	@Override
+	public void bind(ChannelHandlerContext ctx) throws IllegalStateException {
+		I request = DetectionAttachment.get(ctx.channel(), clazz);
+		if (request == null)
+			throw new IllegalStateException("Subprotocol negotiation needs the " + clazz.getSimpleName() +
+					" attachment!");
+		Map.Entry<String, Consumer<ChannelHandlerContext>> negotiated = negotiate(request);
+		ctx.channel().attr(DetectionAttachment.KEY).set(negotiated == null ? null : negotiated.getKey());
+		if (negotiated == null)
+			throw new IllegalStateException("No subprotocol can be negotiated for " + request.uri() + "!");
+		negotiated.getValue().accept(ctx);
+	}
+	
+}
@@ -0,0 +1,133 @@
+package com.luneruniverse.nettymux.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values with fixed power-of-two buckets: bucket 0 holds 0, and bucket
+ * <code>i</code> holds values from <code>2<sup>i-1</sup></code> to <code>2<sup>i</sup> - 1</code>. Recording
+ * doesn't allocate once each bucket has been used by the contending threads.
+ */
+public class Histogram {
+	
+	/**
+	 * The number of buckets
+	 */
+	public static final int BUCKETS = Long.SIZE;
+	
+	/**
+	 * An immutable copy of a {@link Histogram}
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+		
+		private Snapshot(long[] counts, long sum, long max) {
+			this.counts = counts;
+			long count = 0;
+			for (long bucket : counts)
+				count += bucket;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+		
+		/**
+		 * @param bucket The index of the bucket
+		 * @return The number of values recorded in the bucket
+		 */
+		public long getCount(int bucket) {
+			return counts[bucket];
+		}
+		/**
+		 * @return The number of values recorded
+		 */
+		public long getCount() {
+			return count;
+		}
+		/**
+		 * @return The sum of all of the recorded values
+		 */
+		public long getSum() {
+			return sum;
+		}
+		/**
+		 * @return The largest recorded value, or 0 if there are none
+		 */
+		public long getMax() {
+			return max;
+		}
+		/**
+		 * @return The average of the recorded values, or 0 if there are none
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+		/**
+		 * @param percentile From 0 to 100
+		 * @return The upper bound of the bucket containing the value at <code>percentile</code>, or 0 if there are no
+		 * values
+		 */
+		public long getValueAtPercentile(double percentile) {
+			long target = (long) Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= Math.max(target, 1))
+					return Math.min(getUpperBound(i), max);
+			}
+			return 0;
+		}
+	}
+	
+	/**
+	 * @param value A non-negative value
+	 * @return The index of the bucket that holds <code>value</code>
+	 */
+	public static int getBucket(long value) {
+		return Long.SIZE - Long.numberOfLeadingZeros(Math.max(value, 0));
+	}
+	/**
+	 * @param bucket The index of a bucket
+	 * @return The largest value that the bucket holds
+	 */
+	public static long getUpperBound(int bucket) {
+		return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+	
+	private final LongAdder[] buckets;
+	private final LongAdder sum;
+	private final LongAccumulator max;
+	
+	public Histogram() {
+		buckets = new LongAdder[BUCKETS];
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = new LongAdder();
+		sum = new LongAdder();
+		max = new LongAccumulator(Math::max, 0);
+	}
+	
+	/**
+	 * @param value A non-negative value; negative values are recorded as 0
+	 */
+	public void record(long value) {
+		value = Math.max(value, 0);
+		buckets[getBucket(value)].increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+	
+	/**
+	 * Values that are recorded while the snapshot is being taken may or may not be included
+	 * @return A copy of the current values
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[buckets.length];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = buckets[i].sum();
+		return new Snapshot(counts, sum.sum(), max.get());
+	}
+	
+}
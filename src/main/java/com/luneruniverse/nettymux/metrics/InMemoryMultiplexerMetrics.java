@@ -0,0 +1,169 @@
+package com.luneruniverse.nettymux.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.luneruniverse.nettymux.AdmissionLimit;
+import com.luneruniverse.nettymux.DetectionLimitException;
+import com.luneruniverse.nettymux.InvalidProtocolException;
+import com.luneruniverse.nettymux.byteprotocol.InvalidByteProtocolException;
+
+/**
+ * {@link MultiplexerMetrics} that keeps striped counters and {@link Histogram}s in memory, which can be read at any time
+ * with {@link #snapshot()}. Recording never locks, and only allocates the first time a protocol or failure reason is
+ * seen. A single instance can be shared by multiple multiplexers.
+ */
+public class InMemoryMultiplexerMetrics implements MultiplexerMetrics {
+	
+	/**
+	 * An immutable copy of {@link InMemoryMultiplexerMetrics}
+	 */
+	public static final class Snapshot {
+		private final Map<Object, Long> detections;
+		private final Map<Object, Long> alpnDetections;
+		private final Map<Object, Long> failures;
+		private final Map<Object, Long> rejections;
+		private final Histogram.Snapshot buffered;
+		private final Histogram.Snapshot reads;
+		private final Histogram.Snapshot nanos;
+		
+		private Snapshot(InMemoryMultiplexerMetrics metrics) {
+			this.detections = copy(metrics.detections);
+			this.alpnDetections = copy(metrics.alpnDetections);
+			this.failures = copy(metrics.failures);
+			this.rejections = copy(metrics.rejections);
+			this.buffered = metrics.buffered.snapshot();
+			this.reads = metrics.reads.snapshot();
+			this.nanos = metrics.nanos.snapshot();
+		}
+		
+		private static Map<Object, Long> copy(ConcurrentMap<Object, LongAdder> counters) {
+			Map<Object, Long> output = new LinkedHashMap<>();
+			counters.forEach((key, counter) -> output.put(key, counter.sum()));
+			return Collections.unmodifiableMap(output);
+		}
+		
+		/**
+		 * @return How many times each protocol was detected from the incoming data
+		 */
+		public Map<Object, Long> getDetections() {
+			return detections;
+		}
+		/**
+		 * @return How many times each protocol was selected by ALPN negotiation
+		 */
+		public Map<Object, Long> getAlpnDetections() {
+			return alpnDetections;
+		}
+		/**
+		 * The reasons are {@link InvalidByteProtocolException.Type}s, {@link DetectionLimitException.Type}s, or the
+		 * classes of other {@link InvalidProtocolException}s
+		 * @return How many times detection failed for each reason
+		 */
+		public Map<Object, Long> getFailures() {
+			return failures;
+		}
+		/**
+		 * @return How many channels each protocol rejected because of its {@link AdmissionLimit}
+		 */
+		public Map<Object, Long> getRejections() {
+			return rejections;
+		}
+		/**
+		 * @return The number of bytes or messages buffered when a decision was made
+		 */
+		public Histogram.Snapshot getBuffered() {
+			return buffered;
+		}
+		/**
+		 * @return The number of reads needed to make a decision
+		 */
+		public Histogram.Snapshot getReads() {
+			return reads;
+		}
+		/**
+		 * @return The nanoseconds from the channel becoming active until a protocol was bound or detection failed
+		 */
+		public Histogram.Snapshot getNanos() {
+			return nanos;
+		}
+	}
+	
+	/**
+	 * @param cause Why detection failed
+	 * @return The {@link InvalidByteProtocolException.Type} or {@link DetectionLimitException.Type} of
+	 * <code>cause</code>, or its class if it doesn't have a type
+	 */
+	public static Object getReason(InvalidProtocolException cause) {
+		if (cause instanceof InvalidByteProtocolException)
+			return ((InvalidByteProtocolException) cause).getType();
+		if (cause instanceof DetectionLimitException)
+			return ((DetectionLimitException) cause).getType();
+		return cause.getClass();
+	}
+	
+	private final ConcurrentMap<Object, LongAdder> detections;
+	private final ConcurrentMap<Object, LongAdder> alpnDetections;
+	private final ConcurrentMap<Object, LongAdder> failures;
+	private final ConcurrentMap<Object, LongAdder> rejections;
+	private final Histogram buffered;
+	private final Histogram reads;
+	private final Histogram nanos;
+	
+	public InMemoryMultiplexerMetrics() {
+		detections = new ConcurrentHashMap<>();
+		alpnDetections = new ConcurrentHashMap<>();
+		failures = new ConcurrentHashMap<>();
+		rejections = new ConcurrentHashMap<>();
+		buffered = new Histogram();
+		reads = new Histogram();
+		nanos = new Histogram();
+	}
+	
+	private static LongAdder counter(ConcurrentMap<Object, LongAdder> counters, Object key) {
+		// ConcurrentHashMap#computeIfAbsent can lock even if the key is present
+		LongAdder counter = counters.get(key);
+		if (counter == null)
+			counter = counters.computeIfAbsent(key, k -> new LongAdder());
+		return counter;
+	}
+	
+	@Override
+	public void protocolDetected(Object protocol, boolean alpn, int buffered, int reads, long nanos) {
+		counter(alpn ? alpnDetections : detections, protocol).increment();
+		record(buffered, reads, nanos);
+	}
+	
+	@Override
+	public void detectionFailed(InvalidProtocolException cause, int buffered, int reads, long nanos) {
+		counter(failures, getReason(cause)).increment();
+		record(buffered, reads, nanos);
+	}
+	
+	/**
+	 * Rejections aren't included in the histograms
+	 */
+	@Override
+	public void admissionRejected(Object protocol, boolean alpn) {
+		counter(rejections, protocol).increment();
+	}
+	
+	private void record(int buffered, int reads, long nanos) {
+		this.buffered.record(buffered);
+		this.reads.record(reads);
+		this.nanos.record(nanos);
+	}
+	
+	/**
+	 * Events that are recorded while the snapshot is being taken may or may not be included
+	 * @return A copy of the current metrics
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+	
+}
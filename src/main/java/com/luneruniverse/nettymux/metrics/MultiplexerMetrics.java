@@ -0,0 +1,46 @@
+package com.luneruniverse.nettymux.metrics;
+
+import com.luneruniverse.nettymux.AdmissionLimit;
+import com.luneruniverse.nettymux.InvalidProtocolException;
+import com.luneruniverse.nettymux.byteprotocol.ByteProtocol;
+import com.luneruniverse.nettymux.byteprotocol.NettyByteMultiplexer;
+import com.luneruniverse.nettymux.messageprotocol.MessageProtocol;
+import com.luneruniverse.nettymux.messageprotocol.NettyMessageMultiplexer;
+
+/**
+ * Receives the outcome of detection from a {@link NettyByteMultiplexer} or {@link NettyMessageMultiplexer}. Methods are
+ * called on the channel's event loop for every connection, so implementations should neither lock nor allocate.
+ * @see InMemoryMultiplexerMetrics
+ */
+public interface MultiplexerMetrics {
+	/**
+	 * A protocol was detected and bound
+	 * @param protocol The {@link ByteProtocol} or {@link MessageProtocol} that was detected
+	 * @param alpn If the protocol was selected by ALPN negotiation rather than by the incoming data
+	 * @param buffered The number of bytes ({@link NettyByteMultiplexer}) or messages ({@link NettyMessageMultiplexer})
+	 * that were buffered when the protocol was detected
+	 * @param reads The number of reads it took to detect the protocol
+	 * @param nanos The time from the channel becoming active (or the multiplexer being added to an active channel)
+	 * until the protocol was bound
+	 */
+	public void protocolDetected(Object protocol, boolean alpn, int buffered, int reads, long nanos);
+	/**
+	 * Detection failed; the exception is thrown or fired after this returns
+	 * @param cause Why detection failed
+	 * @param buffered The number of bytes ({@link NettyByteMultiplexer}) or messages ({@link NettyMessageMultiplexer})
+	 * that were buffered when detection failed
+	 * @param reads The number of reads before detection failed
+	 * @param nanos The time from the channel becoming active (or the multiplexer being added to an active channel)
+	 * until detection failed
+	 */
+	public void detectionFailed(InvalidProtocolException cause, int buffered, int reads, long nanos);
+	/**
+	 * A protocol was detected, but the channel was rejected by the protocol's {@link AdmissionLimit} instead of being
+	 * bound. By default, this does nothing.
+	 * @param protocol The {@link ByteProtocol} or {@link MessageProtocol} that was detected
+	 * @param alpn If the protocol was selected by ALPN negotiation rather than by the incoming data
+	 */
+	public default void admissionRejected(Object protocol, boolean alpn) {
+		
+	}
+}
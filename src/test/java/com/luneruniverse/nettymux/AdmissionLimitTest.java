@@ -0,0 +1,193 @@
+package com.luneruniverse.nettymux;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.luneruniverse.nettymux.byteprotocol.MagicByteProtocol;
+import com.luneruniverse.nettymux.byteprotocol.NettyByteMultiplexer;
+import com.luneruniverse.nettymux.messageprotocol.MagicMessageProtocol;
+import com.luneruniverse.nettymux.messageprotocol.NettyMessageMultiplexer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpServerCodec;
+
+/**
+ * Checks the connection rate and count of {@link AdmissionLimit}, and that rejected channels get the rejection
+ * instead of the protocol's pipeline
+ */
+public class AdmissionLimitTest {
+	
+	private static final byte[] MAGIC = "MAGIC".getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * @return How many channels in a row were admitted before one was rejected
+	 */
+	private static int admitAll(AdmissionLimit limit) {
+		int admitted = 0;
+		while (limit.tryAdmit(new EmbeddedChannel()))
+			admitted++;
+		return admitted;
+	}
+	
+	@Test
+	public void limitsRate() throws InterruptedException {
+		AdmissionLimit limit = AdmissionLimit.builder().maxConnectionRate(10, 3).build();
+		// The bucket starts out full
+		assertEquals(3, admitAll(limit));
+		assertFalse(limit.tryAdmit(new EmbeddedChannel()));
+		
+		// A token is added every 100ms
+		Thread.sleep(150);
+		int admitted = admitAll(limit);
+		assertTrue(admitted >= 1 && admitted <= 3, "admitted " + admitted);
+		
+		// No more than the burst is saved up
+		Thread.sleep(500);
+		assertEquals(3, admitAll(limit));
+		// Channels are only counted if there is a maximum
+		assertEquals(0, limit.getConnections());
+	}
+	
+	@Test
+	public void limitsConnections() {
+		AdmissionLimit limit = AdmissionLimit.builder().maxConnections(2).build();
+		EmbeddedChannel a = new EmbeddedChannel();
+		EmbeddedChannel b = new EmbeddedChannel();
+		EmbeddedChannel c = new EmbeddedChannel();
+		assertTrue(limit.tryAdmit(a));
+		assertTrue(limit.tryAdmit(b));
+		assertFalse(limit.tryAdmit(c));
+		assertEquals(2, limit.getConnections());
+		
+		// Closing an admitted channel releases its place
+		a.close();
+		assertEquals(1, limit.getConnections());
+		assertTrue(limit.tryAdmit(c));
+		assertEquals(2, limit.getConnections());
+		b.close();
+		c.close();
+		assertEquals(0, limit.getConnections());
+	}
+	
+	@Test
+	public void releasesConnectionsRejectedByRate() {
+		AdmissionLimit limit = AdmissionLimit.builder().maxConnections(5).maxConnectionRate(0.001, 1).build();
+		EmbeddedChannel admitted = new EmbeddedChannel();
+		assertTrue(limit.tryAdmit(admitted));
+		assertFalse(limit.tryAdmit(new EmbeddedChannel()));
+		assertEquals(1, limit.getConnections());
+		admitted.close();
+		assertEquals(0, limit.getConnections());
+	}
+	
+	@Test
+	public void limitsConcurrentConnections() throws InterruptedException {
+		AdmissionLimit limit = AdmissionLimit.builder().maxConnections(50).build();
+		AtomicInteger admitted = new AtomicInteger();
+		List<EmbeddedChannel> channels = new ArrayList<>();
+		for (int i = 0; i < 400; i++)
+			channels.add(new EmbeddedChannel());
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			List<EmbeddedChannel> share = channels.subList(t * 100, (t + 1) * 100);
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (EmbeddedChannel channel : share) {
+					if (limit.tryAdmit(channel))
+						admitted.incrementAndGet();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(50, admitted.get());
+		assertEquals(50, limit.getConnections());
+		channels.forEach(EmbeddedChannel::close);
+		assertEquals(0, limit.getConnections());
+	}
+	
+	@Test
+	public void rejectsWithRawResponse() {
+		AdmissionLimit limit = AdmissionLimit.builder().maxConnections(1).rejectWithServiceUnavailable().build();
+		NettyByteMultiplexer.Template mux = NettyByteMultiplexer.builder()
+				.addProtocol(new MagicByteProtocol(null, MAGIC, false,
+						ctx -> ctx.pipeline().addAfter(ctx.name(), "codec", new HttpServerCodec())), limit)
+				.buildTemplate();
+		
+		EmbeddedChannel admitted = new EmbeddedChannel(mux.newHandler());
+		admitted.writeInbound(Unpooled.wrappedBuffer(MAGIC));
+		assertNotNull(admitted.pipeline().get(HttpServerCodec.class));
+		
+		EmbeddedChannel rejected = new EmbeddedChannel(mux.newHandler());
+		rejected.writeInbound(Unpooled.wrappedBuffer(MAGIC));
+		assertNull(rejected.pipeline().get(HttpServerCodec.class));
+		assertFalse(rejected.config().isAutoRead());
+		ByteBuf response = rejected.readOutbound();
+		assertEquals("HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n",
+				response.toString(StandardCharsets.US_ASCII));
+		response.release();
+		assertNull(rejected.readInbound());
+		assertFalse(rejected.isOpen());
+		assertEquals(1, limit.getConnections());
+		
+		// Closing the admitted channel makes room for another, and each rejected channel gets the response
+		admitted.close();
+		EmbeddedChannel next = new EmbeddedChannel(mux.newHandler());
+		next.writeInbound(Unpooled.wrappedBuffer(MAGIC));
+		assertNotNull(next.pipeline().get(HttpServerCodec.class));
+		EmbeddedChannel again = new EmbeddedChannel(mux.newHandler());
+		again.writeInbound(Unpooled.wrappedBuffer(MAGIC));
+		response = again.readOutbound();
+		assertTrue(response.toString(StandardCharsets.US_ASCII).startsWith("HTTP/1.1 503 "));
+		response.release();
+		admitted.finishAndReleaseAll();
+		next.finishAndReleaseAll();
+		again.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void rejectsMessages() {
+		List<String> bound = new ArrayList<>();
+		AdmissionLimit limit = AdmissionLimit.builder().maxConnections(1)
+				.rejectWith(ctx -> {
+					bound.add("rejected");
+					ctx.close();
+				}).build();
+		NettyMessageMultiplexer.Template<String> mux = NettyMessageMultiplexer.builder(String.class)
+				.addProtocol(new MagicMessageProtocol<>(Arrays.asList("a"), false, ctx -> bound.add("bound")), limit)
+				.buildTemplate();
+		
+		EmbeddedChannel admitted = new EmbeddedChannel(mux.newHandler());
+		admitted.writeInbound("a");
+		EmbeddedChannel rejected = new EmbeddedChannel(mux.newHandler());
+		rejected.writeInbound("a", "b");
+		assertEquals(Arrays.asList("bound", "rejected"), bound);
+		assertNull(rejected.readInbound());
+		assertFalse(rejected.isOpen());
+		assertEquals("a", admitted.readInbound());
+		admitted.finishAndReleaseAll();
+	}
+	
+}
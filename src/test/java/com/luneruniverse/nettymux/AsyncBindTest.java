@@ -0,0 +1,347 @@
+package com.luneruniverse.nettymux;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import com.luneruniverse.nettymux.byteprotocol.ByteProtocol;
+import com.luneruniverse.nettymux.byteprotocol.NettyByteMultiplexer;
+import com.luneruniverse.nettymux.messageprotocol.MessageProtocol;
+import com.luneruniverse.nettymux.messageprotocol.NettyMessageMultiplexer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Checks how both multiplexers wait for {@link ByteProtocol#bindAsync(ChannelHandlerContext)} and
+ * {@link MessageProtocol#bindAsync(ChannelHandlerContext)}: reading stops and the received data is held onto in order
+ * until the stage completes, and a failure, timeout, or closed channel abandons the bind
+ */
+public class AsyncBindTest {
+	
+	private final List<Throwable> caught = new ArrayList<>();
+	private final List<String> received = new ArrayList<>();
+	private final CompletableFuture<Void> future = new CompletableFuture<>();
+	/**
+	 * The stage returned by the binds, which may wrap a failure of {@link #future} in a
+	 * {@link java.util.concurrent.CompletionException}
+	 */
+	private CompletionStage<?> stage = future;
+	private int binds;
+	
+	/**
+	 * Add a handler recording what it receives after the multiplexer (the class names of messages that aren't bytes or
+	 * strings), and return {@link #stage}
+	 */
+	private CompletionStage<?> bind(ChannelHandlerContext ctx) {
+		binds++;
+		ctx.pipeline().addAfter(ctx.name(), "sink", new ChannelInboundHandlerAdapter() {
+			@Override
+			public void channelRead(ChannelHandlerContext ctx, Object msg) {
+				if (msg instanceof ByteBuf)
+					received.add(((ByteBuf) msg).toString(StandardCharsets.US_ASCII));
+				else
+					received.add(msg instanceof String ? (String) msg : msg.getClass().getSimpleName());
+				ReferenceCountUtil.release(msg);
+			}
+		});
+		return stage;
+	}
+	
+	private EmbeddedChannel channel(ChannelHandler mux) {
+		EmbeddedChannel channel = new EmbeddedChannel(mux, new ChannelInboundHandlerAdapter() {
+			@Override
+			public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+				caught.add(cause);
+			}
+		});
+		channel.freezeTime();
+		return channel;
+	}
+	
+	private NettyByteMultiplexer.Builder bytes() {
+		return NettyByteMultiplexer.builder().addProtocol(new ByteProtocol() {
+			@Override
+			public String getAlpnName() {
+				return null;
+			}
+			
+			@Override
+			public ProtocolDetectionResult attemptDetection(ByteBuf in) {
+				if (in.readableBytes() < 5)
+					return ProtocolDetectionResult.UNKNOWN;
+				return in.toString(in.readerIndex(), 5, StandardCharsets.US_ASCII).equals("MAGIC") ?
+						ProtocolDetectionResult.DETECTED : ProtocolDetectionResult.REJECTED;
+			}
+			
+			@Override
+			public void bind(ChannelHandlerContext ctx) {
+				throw new AssertionError("Only bindAsync should be called");
+			}
+			
+			@Override
+			public CompletionStage<?> bindAsync(ChannelHandlerContext ctx) {
+				return AsyncBindTest.this.bind(ctx);
+			}
+		});
+	}
+	
+	private NettyMessageMultiplexer.Builder<String> messages() {
+		return NettyMessageMultiplexer.builder(String.class).addProtocol(new MessageProtocol<String>() {
+			@Override
+			public ProtocolDetectionResult attemptDetection(List<String> in) {
+				return in.get(0).equals("magic") ? ProtocolDetectionResult.DETECTED : ProtocolDetectionResult.REJECTED;
+			}
+			
+			@Override
+			public void bind(ChannelHandlerContext ctx) {
+				throw new AssertionError("Only bindAsync should be called");
+			}
+			
+			@Override
+			public CompletionStage<?> bindAsync(ChannelHandlerContext ctx) {
+				return AsyncBindTest.this.bind(ctx);
+			}
+		});
+	}
+	
+	private NettyMessageMultiplexer.Builder<HttpRequest> requests() {
+		return NettyMessageMultiplexer.builder(HttpRequest.class).addProtocol(new MessageProtocol<HttpRequest>() {
+			@Override
+			public ProtocolDetectionResult attemptDetection(List<HttpRequest> in) {
+				return ProtocolDetectionResult.DETECTED;
+			}
+			
+			@Override
+			public void bind(ChannelHandlerContext ctx) {
+				throw new AssertionError("Only bindAsync should be called");
+			}
+			
+			@Override
+			public CompletionStage<?> bindAsync(ChannelHandlerContext ctx) {
+				return AsyncBindTest.this.bind(ctx);
+			}
+		});
+	}
+	
+	private static ByteBuf ascii(String str) {
+		return Unpooled.copiedBuffer(str, StandardCharsets.US_ASCII);
+	}
+	
+	private void assertFailed(EmbeddedChannel channel, Throwable cause) {
+		assertEquals(Arrays.asList(cause), caught);
+		assertFalse(channel.isOpen());
+		assertTrue(received.isEmpty());
+	}
+	
+	private void assertFailed(EmbeddedChannel channel, DetectionLimitException.Type type) {
+		assertEquals(1, caught.size());
+		assertEquals(type, ((DetectionLimitException) caught.get(0)).getType());
+		assertFalse(channel.isOpen());
+		assertTrue(received.isEmpty());
+	}
+	
+	@Test
+	public void bytesReplayInOrder() {
+		EmbeddedChannel channel = channel(bytes().build());
+		channel.writeInbound(ascii("MAG"), ascii("IC1"));
+		assertEquals(1, binds);
+		assertFalse(channel.config().isAutoRead());
+		// Bytes from a read that was already underway are held onto with the rest
+		channel.writeInbound(ascii("2"), ascii("3"));
+		assertTrue(received.isEmpty());
+		assertNotNull(channel.pipeline().get(NettyByteMultiplexer.class));
+		
+		future.complete(null);
+		assertEquals("MAGIC123", String.join("", received));
+		assertNull(channel.pipeline().get(NettyByteMultiplexer.class));
+		assertTrue(channel.config().isAutoRead());
+		channel.writeInbound(ascii("4"));
+		assertEquals("4", received.get(received.size() - 1));
+		assertTrue(caught.isEmpty());
+		assertEquals(1, binds);
+		channel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void messagesReplayInOrder() {
+		EmbeddedChannel channel = channel(messages().build());
+		channel.writeInbound("magic");
+		assertFalse(channel.config().isAutoRead());
+		channel.writeInbound("a", "b");
+		assertTrue(received.isEmpty());
+		
+		future.complete(null);
+		assertEquals(Arrays.asList("magic", "a", "b"), received);
+		assertNull(channel.pipeline().get(NettyMessageMultiplexer.class));
+		assertTrue(channel.config().isAutoRead());
+		channel.writeInbound("c");
+		assertEquals(Arrays.asList("magic", "a", "b", "c"), received);
+		assertTrue(caught.isEmpty());
+		channel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void holdsOtherMessagesInOrder() {
+		// The codec passes along the head and the content from the same read
+		EmbeddedChannel channel = channel(requests().build());
+		channel.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/"),
+				new DefaultLastHttpContent(ascii("body")));
+		assertTrue(received.isEmpty());
+		
+		future.complete(null);
+		assertEquals(Arrays.asList("DefaultHttpRequest", "DefaultLastHttpContent"), received);
+		assertTrue(caught.isEmpty());
+		channel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void keepsAutoReadOff() {
+		EmbeddedChannel bytes = channel(bytes().build());
+		bytes.config().setAutoRead(false);
+		bytes.writeInbound(ascii("MAGIC"));
+		future.complete(null);
+		assertEquals(Arrays.asList("MAGIC"), received);
+		assertFalse(bytes.config().isAutoRead());
+		bytes.finishAndReleaseAll();
+		
+		received.clear();
+		EmbeddedChannel messages = channel(messages().build());
+		messages.config().setAutoRead(false);
+		messages.writeInbound("magic");
+		assertEquals(Arrays.asList("magic"), received);
+		assertFalse(messages.config().isAutoRead());
+		messages.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void bytesBindTimeout() {
+		EmbeddedChannel channel = channel(bytes().detectionTimeout(1, TimeUnit.SECONDS)
+				.bindTimeout(2, TimeUnit.SECONDS).build());
+		channel.writeInbound(ascii("MAGIC"));
+		// The detection timeout no longer applies
+		channel.advanceTimeBy(1500, TimeUnit.MILLISECONDS);
+		channel.runPendingTasks();
+		assertTrue(caught.isEmpty());
+		channel.advanceTimeBy(500, TimeUnit.MILLISECONDS);
+		channel.runPendingTasks();
+		assertFailed(channel, DetectionLimitException.Type.BIND_TIMEOUT);
+		
+		// Completing afterwards doesn't pass anything along
+		future.complete(null);
+		assertTrue(received.isEmpty());
+		assertEquals(1, caught.size());
+		channel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void messagesBindTimeout() {
+		EmbeddedChannel channel = channel(messages().bindTimeout(1, TimeUnit.SECONDS).build());
+		channel.writeInbound("magic");
+		channel.advanceTimeBy(1, TimeUnit.SECONDS);
+		channel.runPendingTasks();
+		assertFailed(channel, DetectionLimitException.Type.BIND_TIMEOUT);
+		future.complete(null);
+		assertTrue(received.isEmpty());
+		channel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void unwrapsFailures() {
+		IOException cause = new IOException("Failed to load");
+		stage = future.thenApply(Function.identity());
+		EmbeddedChannel bytes = channel(bytes().build());
+		bytes.writeInbound(ascii("MAGIC"));
+		future.completeExceptionally(cause);
+		assertFailed(bytes, cause);
+		bytes.finishAndReleaseAll();
+		
+		caught.clear();
+		CompletableFuture<Void> failed = new CompletableFuture<>();
+		stage = failed;
+		EmbeddedChannel messages = channel(messages().build());
+		messages.writeInbound("magic", "a");
+		failed.completeExceptionally(cause);
+		assertFailed(messages, cause);
+		assertSame(cause, caught.get(0));
+		messages.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void closedWhilePending() {
+		EmbeddedChannel bytes = channel(bytes().bindTimeout(1, TimeUnit.SECONDS).build());
+		bytes.writeInbound(ascii("MAGIC"));
+		EmbeddedChannel messages = channel(messages().bindTimeout(1, TimeUnit.SECONDS).build());
+		messages.writeInbound("magic");
+		bytes.close();
+		messages.close();
+		
+		future.complete(null);
+		bytes.advanceTimeBy(1, TimeUnit.SECONDS);
+		bytes.runPendingTasks();
+		messages.advanceTimeBy(1, TimeUnit.SECONDS);
+		messages.runPendingTasks();
+		assertTrue(caught.isEmpty());
+		assertTrue(received.isEmpty());
+		bytes.finishAndReleaseAll();
+		messages.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void limitsBufferedWhilePending() {
+		EmbeddedChannel bytes = channel(bytes().maxBufferedBytes(8).build());
+		bytes.writeInbound(ascii("MAGIC"), ascii("123"));
+		assertTrue(caught.isEmpty());
+		bytes.writeInbound(ascii("4"));
+		assertFailed(bytes, DetectionLimitException.Type.BUFFERED_BYTES);
+		bytes.finishAndReleaseAll();
+		
+		caught.clear();
+		EmbeddedChannel messages = channel(messages().maxBufferedMessages(2).build());
+		messages.writeInbound("magic", "a");
+		assertTrue(caught.isEmpty());
+		messages.writeInbound("b");
+		assertFailed(messages, DetectionLimitException.Type.BUFFERED_MESSAGES);
+		messages.finishAndReleaseAll();
+		
+		// Messages of other types count too
+		caught.clear();
+		EmbeddedChannel requests = channel(requests().maxBufferedMessages(2).build());
+		DefaultLastHttpContent content = new DefaultLastHttpContent(ascii("body"));
+		requests.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/"),
+				new DefaultHttpContent(ascii("more")), content);
+		assertFailed(requests, DetectionLimitException.Type.BUFFERED_MESSAGES);
+		assertEquals(0, content.refCnt());
+		requests.finishAndReleaseAll();
+		
+		future.complete(null);
+		assertTrue(received.isEmpty());
+	}
+	
+}
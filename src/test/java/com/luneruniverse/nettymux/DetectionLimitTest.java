@@ -0,0 +1,113 @@
+package com.luneruniverse.nettymux;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.luneruniverse.nettymux.byteprotocol.MagicByteProtocol;
+import com.luneruniverse.nettymux.byteprotocol.NettyByteMultiplexer;
+import com.luneruniverse.nettymux.messageprotocol.MagicMessageProtocol;
+import com.luneruniverse.nettymux.messageprotocol.NettyMessageMultiplexer;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Checks that each detection limit fires a {@link DetectionLimitException} of its type and closes the channel
+ */
+public class DetectionLimitTest {
+	
+	private final List<Throwable> caught = new ArrayList<>();
+	
+	private EmbeddedChannel channel(ChannelHandler mux) {
+		EmbeddedChannel channel = new EmbeddedChannel(mux, new ChannelInboundHandlerAdapter() {
+			@Override
+			public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+				caught.add(cause);
+			}
+		});
+		channel.freezeTime();
+		return channel;
+	}
+	
+	private void assertFailed(EmbeddedChannel channel, DetectionLimitException.Type type) {
+		assertEquals(1, caught.size());
+		assertTrue(caught.get(0) instanceof DetectionLimitException);
+		assertEquals(type, ((DetectionLimitException) caught.get(0)).getType());
+		assertFalse(channel.isOpen());
+		assertNull(channel.readInbound());
+	}
+	
+	private static NettyByteMultiplexer.Builder bytes() {
+		return NettyByteMultiplexer.builder()
+				.addProtocol(new MagicByteProtocol(null, "MAGIC".getBytes(StandardCharsets.US_ASCII), false, ctx -> {}));
+	}
+	
+	private static NettyMessageMultiplexer.Builder<String> messages() {
+		return NettyMessageMultiplexer.builder(String.class)
+				.addProtocol(new MagicMessageProtocol<>(Arrays.asList("a", "b", "c"), false, ctx -> {}));
+	}
+	
+	@Test
+	public void bufferedBytes() {
+		EmbeddedChannel channel = channel(bytes().maxBufferedBytes(3).build());
+		channel.writeInbound(Unpooled.copiedBuffer("MAG", StandardCharsets.US_ASCII));
+		assertTrue(caught.isEmpty());
+		channel.writeInbound(Unpooled.copiedBuffer("I", StandardCharsets.US_ASCII));
+		assertFailed(channel, DetectionLimitException.Type.BUFFERED_BYTES);
+	}
+	
+	@Test
+	public void bufferedMessages() {
+		EmbeddedChannel channel = channel(messages().maxBufferedMessages(1).build());
+		channel.writeInbound("a");
+		assertTrue(caught.isEmpty());
+		channel.writeInbound("b");
+		assertFailed(channel, DetectionLimitException.Type.BUFFERED_MESSAGES);
+	}
+	
+	@Test
+	public void byteTimeout() {
+		EmbeddedChannel channel = channel(bytes().detectionTimeout(1, TimeUnit.SECONDS).build());
+		channel.writeInbound(Unpooled.copiedBuffer("MA", StandardCharsets.US_ASCII));
+		channel.advanceTimeBy(500, TimeUnit.MILLISECONDS);
+		channel.runPendingTasks();
+		assertTrue(caught.isEmpty());
+		channel.advanceTimeBy(500, TimeUnit.MILLISECONDS);
+		channel.runPendingTasks();
+		assertFailed(channel, DetectionLimitException.Type.TIMEOUT);
+	}
+	
+	@Test
+	public void messageTimeout() {
+		EmbeddedChannel channel = channel(messages().detectionTimeout(1, TimeUnit.SECONDS).build());
+		channel.writeInbound("a");
+		channel.advanceTimeBy(1, TimeUnit.SECONDS);
+		channel.runPendingTasks();
+		assertFailed(channel, DetectionLimitException.Type.TIMEOUT);
+	}
+	
+	@Test
+	public void detectionCancelsTimeout() {
+		EmbeddedChannel channel = channel(bytes().detectionTimeout(1, TimeUnit.SECONDS).build());
+		channel.writeInbound(Unpooled.copiedBuffer("MAGIC", StandardCharsets.US_ASCII));
+		channel.advanceTimeBy(1, TimeUnit.SECONDS);
+		channel.runPendingTasks();
+		assertTrue(caught.isEmpty());
+		assertTrue(channel.isOpen());
+		channel.finishAndReleaseAll();
+	}
+	
+}
@@ -7,14 +7,6 @@ import com.luneruniverse.nettymux.messageprotocol.NettyMessageMultiplexer;
 import com.luneruniverse.nettymux.messageprotocol.NormalHttpMessageProtocol;
 import com.luneruniverse.nettymux.messageprotocol.WebSocketHttpMessageProtocol;
 
-import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelInitializer;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.MultiThreadIoEventLoopGroup;
-import io.netty.channel.nio.NioIoHandler;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
@@ -52,39 +44,29 @@ public class NettyMuxServerTest {
 						"http/1.1", "magic"))
 				.build();
 		
-		EventLoopGroup group = new MultiThreadIoEventLoopGroup(3, NioIoHandler.newFactory());
-		try {
-			ServerBootstrap server = new ServerBootstrap()
-					.group(group)
-					.channel(NioServerSocketChannel.class)
-					.childHandler(new ChannelInitializer<SocketChannel>() {
-						@Override
-						protected void initChannel(SocketChannel channel) throws Exception {
-							channel.pipeline().addLast(NettyByteMultiplexer.builder()
-									.addProtocol(new MagicByteProtocol("magic", "magic".getBytes(), true, ctx -> {
-										System.out.println("bind magic");
-									}))
-									.addProtocol(new HttpByteProtocol(ctx -> {
-										System.out.println("http ...");
-										ctx.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(65536));
-										ctx.pipeline().addLast(NettyMessageMultiplexer.builder(FullHttpRequest.class)
-												.addProtocol(new NormalHttpMessageProtocol(ctx2 -> {
-													System.out.println("bind normal http");
-												}))
-												.addProtocol(new WebSocketHttpMessageProtocol(ctx2 -> {
-													System.out.println("bind websocket");
-												}))
-												.build());
-									}))
-									.optionalSsl(ssl)
-									.build());
-						}
-					});
-			ChannelFuture future = server.bind(1000).sync();
-			future.channel().closeFuture().sync();
-		} finally {
-			group.shutdownGracefully();
-		}
+		NettyMessageMultiplexer.Template<FullHttpRequest> http = NettyMessageMultiplexer.builder(FullHttpRequest.class)
+				.addProtocol(new NormalHttpMessageProtocol(ctx -> {
+					System.out.println("bind normal http");
+				}))
+				.addProtocol(new WebSocketHttpMessageProtocol(ctx -> {
+					System.out.println("bind websocket");
+				}))
+				.buildTemplate();
+		NettyByteMultiplexer.Template mux = NettyByteMultiplexer.builder()
+				.addProtocol(new MagicByteProtocol("magic", "magic".getBytes(), true, ctx -> {
+					System.out.println("bind magic");
+				}))
+				.addProtocol(new HttpByteProtocol(ctx -> {
+					System.out.println("http ...");
+					ctx.pipeline().addLast(new HttpServerCodec(), new HttpObjectAggregator(65536));
+					ctx.pipeline().addLast(http.newHandler());
+				}))
+				.optionalSsl(ssl)
+				.buildTemplate();
+		
+		NettyMuxServer server = NettyMuxServer.builder(mux).bind(1000);
+		System.out.println("Listening on " + server.getLocalAddress() + " with " + server.getTransport());
+		server.terminationFuture().sync();
 	}
 	
 }
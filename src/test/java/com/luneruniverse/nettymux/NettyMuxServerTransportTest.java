@@ -0,0 +1,120 @@
+package com.luneruniverse.nettymux;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import com.luneruniverse.nettymux.byteprotocol.MagicByteProtocol;
+import com.luneruniverse.nettymux.byteprotocol.NettyByteMultiplexer;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+public class NettyMuxServerTransportTest {
+	
+	/**
+	 * Echoes everything back, and says goodbye when the server drains
+	 */
+	private static class EchoHandler extends ChannelInboundHandlerAdapter {
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			ctx.writeAndFlush(msg);
+		}
+		@Override
+		public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+			if (evt == NettyMuxServer.DrainEvent.INSTANCE)
+				ctx.writeAndFlush(Unpooled.copiedBuffer("bye", StandardCharsets.US_ASCII))
+						.addListener(ChannelFutureListener.CLOSE);
+			else
+				ctx.fireUserEventTriggered(evt);
+		}
+	}
+	
+	private static final NettyByteMultiplexer.Template MUX = NettyByteMultiplexer.builder()
+			.addProtocol(new MagicByteProtocol("echo", bytes("ECHO"), true, ctx -> {
+				ctx.pipeline().addLast(new EchoHandler());
+			}))
+			.buildTemplate();
+	
+	private static byte[] bytes(String str) {
+		return str.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	private static String read(InputStream in, int length) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[256];
+		while (out.size() < length) {
+			int read = in.read(buf, 0, Math.min(buf.length, length - out.size()));
+			if (read == -1)
+				break;
+			out.write(buf, 0, read);
+		}
+		return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+	}
+	
+	@ParameterizedTest
+	@EnumSource(NettyMuxServer.Transport.class)
+	public void servesAndDrains(NettyMuxServer.Transport transport) throws Exception {
+		assumeTrue(transport.isAvailable(), transport + " isn't available");
+		
+		int listeners = transport.supportsReusePort() ? 2 : 1;
+		NettyMuxServer server = NettyMuxServer.builder(MUX)
+				.transport(transport)
+				.threads(2)
+				.listeners(listeners)
+				.bind(new InetSocketAddress("127.0.0.1", 0));
+		try {
+			assertEquals(transport, server.getTransport());
+			assertEquals(listeners, server.getListeners().size());
+			SocketAddress address = server.getLocalAddress();
+			for (Channel listener : server.getListeners())
+				assertEquals(address, listener.localAddress());
+			
+			for (int i = 0; i < 10; i++) {
+				try (Socket socket = new Socket()) {
+					socket.connect(address, 5000);
+					socket.setSoTimeout(5000);
+					socket.getOutputStream().write(bytes("ECHOhello " + i));
+					assertEquals("hello " + i, read(socket.getInputStream(), ("hello " + i).length()));
+				}
+			}
+			
+			try (Socket socket = new Socket()) {
+				socket.connect(address, 5000);
+				socket.setSoTimeout(5000);
+				socket.getOutputStream().write(bytes("ECHOstill here"));
+				assertEquals("still here", read(socket.getInputStream(), "still here".length()));
+				
+				CompletableFuture<Boolean> drained = CompletableFuture.supplyAsync(() -> {
+					try {
+						return server.shutdownGracefully(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				});
+				assertEquals("bye", read(socket.getInputStream(), 4));
+				assertTrue(drained.get(10, TimeUnit.SECONDS), "The connection didn't close during the drain");
+			}
+			assertTrue(server.terminationFuture().isDone());
+		} finally {
+			server.shutdownGracefully(0, TimeUnit.SECONDS);
+		}
+	}
+	
+}
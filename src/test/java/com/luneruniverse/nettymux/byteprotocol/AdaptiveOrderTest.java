@@ -0,0 +1,63 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.AttributeKey;
+
+/**
+ * Checks that adaptive ordering tries the most detected protocols first without moving a protocol ahead of an
+ * earlier one that overlaps with it
+ */
+public class AdaptiveOrderTest {
+	
+	private static final AttributeKey<String> BOUND = AttributeKey.valueOf(AdaptiveOrderTest.class, "bound");
+	
+	private static MagicByteProtocol magic(String magic) {
+		return new MagicByteProtocol(null, magic.getBytes(StandardCharsets.US_ASCII), false,
+				(ChannelHandlerContext ctx) -> ctx.channel().attr(BOUND).set(magic));
+	}
+	
+	private static String send(NettyByteMultiplexer.Template mux, String bytes) {
+		EmbeddedChannel channel = new EmbeddedChannel(mux.newHandler());
+		channel.writeInbound(Unpooled.copiedBuffer(bytes, StandardCharsets.US_ASCII));
+		String bound = channel.attr(BOUND).get();
+		channel.finishAndReleaseAll();
+		return bound;
+	}
+	
+	@Test
+	public void reordersByHitsWithinConstraints() throws InterruptedException {
+		MagicByteProtocol a = magic("A");
+		MagicByteProtocol xy = magic("XY");
+		MagicByteProtocol x = magic("X");
+		MagicByteProtocol q = magic("Q");
+		NettyByteMultiplexer.Builder builder = NettyByteMultiplexer.builder()
+				.addProtocols(a, xy, x, q)
+				.mutuallyExclusive(a, xy, q)
+				.mutuallyExclusive(a, x, q);
+		assertEquals(Arrays.asList(a, xy, x, q), builder.buildTemplate().getDetectionOrder());
+		
+		NettyByteMultiplexer.Template mux = builder.adaptiveOrder(1, TimeUnit.MILLISECONDS).buildTemplate();
+		for (int i = 0; i < 5; i++)
+			assertEquals("X", send(mux, "X-"));
+		assertEquals("XY", send(mux, "XY"));
+		for (int i = 0; i < 5; i++)
+			assertEquals("Q", send(mux, "Q"));
+		Thread.sleep(5);
+		assertEquals("Q", send(mux, "Q"));
+		
+		// X is detected more than XY, but must still be tried after it
+		assertEquals(Arrays.asList(q, xy, x, a), mux.getDetectionOrder());
+		assertEquals("XY", send(mux, "XY"));
+	}
+	
+}
@@ -0,0 +1,92 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class ByteProtocolAllocationTest {
+	
+	private static final int WARMUP = 100_000;
+	private static final int ITERATIONS = 10_000;
+	private static final int ROUNDS = 5;
+	
+	@Test
+	public void httpDetectionDoesNotAllocate() {
+		HttpByteProtocol protocol = new HttpByteProtocol(ctx -> {});
+		ByteBuf get = Unpooled.copiedBuffer("GET / HTTP/1.1\r\n", StandardCharsets.US_ASCII);
+		ByteBuf put = Unpooled.copiedBuffer("PU", StandardCharsets.US_ASCII);
+		ByteBuf magic = Unpooled.copiedBuffer("magic", StandardCharsets.US_ASCII);
+		try {
+			assertEquals(ProtocolDetectionResult.DETECTED, protocol.attemptDetection(get));
+			assertEquals(ProtocolDetectionResult.UNKNOWN, protocol.attemptDetection(put));
+			assertEquals(ProtocolDetectionResult.REJECTED, protocol.attemptDetection(magic));
+			
+			assertNoAllocation(() -> {
+				protocol.attemptDetection(get);
+				protocol.attemptDetection(put);
+				protocol.attemptDetection(magic);
+			});
+		} finally {
+			get.release();
+			put.release();
+			magic.release();
+		}
+	}
+	
+	@Test
+	public void magicDetectionDoesNotAllocate() {
+		MagicByteProtocol protocol = new MagicByteProtocol("magic", "magic".getBytes(StandardCharsets.US_ASCII),
+				false, ctx -> {});
+		ByteBuf magic = Unpooled.copiedBuffer("magic bytes", StandardCharsets.US_ASCII);
+		ByteBuf partial = Unpooled.copiedBuffer("mag", StandardCharsets.US_ASCII);
+		ByteBuf get = Unpooled.copiedBuffer("GET / HTTP/1.1\r\n", StandardCharsets.US_ASCII);
+		try {
+			assertEquals(ProtocolDetectionResult.DETECTED, protocol.attemptDetection(magic));
+			assertEquals(ProtocolDetectionResult.UNKNOWN, protocol.attemptDetection(partial));
+			assertEquals(ProtocolDetectionResult.REJECTED, protocol.attemptDetection(get));
+			
+			assertNoAllocation(() -> {
+				protocol.attemptDetection(magic);
+				protocol.attemptDetection(partial);
+				protocol.attemptDetection(get);
+			});
+		} finally {
+			magic.release();
+			partial.release();
+			get.release();
+		}
+	}
+	
+	private static void assertNoAllocation(Runnable detection) {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+				"Allocation tracking isn't supported");
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported(), "Allocation tracking isn't supported");
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long thread = Thread.currentThread().getId();
+		
+		for (int i = 0; i < WARMUP; i++)
+			detection.run();
+		
+		// Take the best round, since the JIT can occasionally cause a one-off allocation on this thread
+		long allocated = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS && allocated > 0; round++) {
+			long before = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < ITERATIONS; i++)
+				detection.run();
+			allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - before);
+		}
+		
+		assertEquals(0, allocated, "Detection allocated " + allocated + " bytes over " + ITERATIONS + " iterations");
+	}
+	
+}
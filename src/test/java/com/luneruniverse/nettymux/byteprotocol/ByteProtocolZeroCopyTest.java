@@ -0,0 +1,98 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Checks that the received buffers reach the bound pipeline without being copied, and that every one of them is
+ * released exactly once by the end (a copy would have released the original early, and a leak would leave it retained)
+ */
+public class ByteProtocolZeroCopyTest {
+	
+	private static final NettyByteMultiplexer.Template MUX = NettyByteMultiplexer.builder()
+			.addProtocol(new HttpByteProtocol(ctx -> {}))
+			.addProtocol(new MagicByteProtocol("magic", bytes("magic"), true, ctx -> {}))
+			.buildTemplate();
+	
+	private static byte[] bytes(String str) {
+		return str.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	private static ByteBuf buffer(String str) {
+		ByteBuf buf = Unpooled.buffer(str.length());
+		buf.writeBytes(bytes(str));
+		return buf;
+	}
+	
+	@Test
+	public void singleReadIsPassedAlongAsIs() {
+		EmbeddedChannel channel = new EmbeddedChannel(MUX.newHandler());
+		ByteBuf request = buffer("GET / HTTP/1.1\r\n\r\n");
+		
+		channel.writeInbound(request);
+		ByteBuf received = channel.readInbound();
+		assertSame(request, received);
+		assertEquals(0, received.readerIndex());
+		assertEquals(1, received.refCnt());
+		assertNull(channel.pipeline().get(NettyByteMultiplexer.class));
+		
+		received.release();
+		assertEquals(0, request.refCnt());
+		assertFalse(channel.finish());
+	}
+	
+	@Test
+	public void removedMagicIsSkippedInPlace() {
+		EmbeddedChannel channel = new EmbeddedChannel(MUX.newHandler());
+		ByteBuf magic = buffer("magic payload");
+		
+		channel.writeInbound(magic);
+		ByteBuf received = channel.readInbound();
+		assertSame(magic, received);
+		assertEquals("magic".length(), received.readerIndex());
+		
+		received.release();
+		assertEquals(0, magic.refCnt());
+		assertFalse(channel.finish());
+	}
+	
+	@Test
+	public void multipleReadsAreJoinedWithoutCopying() {
+		EmbeddedChannel channel = new EmbeddedChannel(MUX.newHandler());
+		ByteBuf first = buffer("ma");
+		ByteBuf second = buffer("g");
+		ByteBuf third = buffer("ic payload");
+		
+		channel.writeInbound(first);
+		channel.writeInbound(second);
+		assertNull(channel.readInbound());
+		channel.writeInbound(third);
+		
+		ByteBuf received = channel.readInbound();
+		assertTrue(received instanceof CompositeByteBuf, "Expected the reads to be joined, got " + received);
+		CompositeByteBuf composite = (CompositeByteBuf) received;
+		assertSame(first.array(), composite.internalComponent(0).array());
+		assertSame(second.array(), composite.internalComponent(1).array());
+		assertSame(third.array(), composite.internalComponent(2).array());
+		assertEquals(" payload", received.toString(StandardCharsets.US_ASCII));
+		
+		received.release();
+		assertEquals(0, first.refCnt());
+		assertEquals(0, second.refCnt());
+		assertEquals(0, third.refCnt());
+		assertFalse(channel.finish());
+	}
+	
+}
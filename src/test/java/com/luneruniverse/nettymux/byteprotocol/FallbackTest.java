@@ -0,0 +1,160 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * Checks when {@link NettyByteMultiplexer.Builder#fallbackOnSilence(ByteProtocol, long, TimeUnit)} and
+ * {@link NettyByteMultiplexer.Builder#fallbackOnRejection(ByteProtocol)} bind their protocols
+ */
+public class FallbackTest {
+	
+	private final List<String> bound = new ArrayList<>();
+	
+	/**
+	 * A protocol that is never detected on its own, and records its name and the channel's attachment when bound
+	 */
+	private ByteProtocol fallback(String name) {
+		return new ByteProtocol() {
+			@Override
+			public String getAlpnName() {
+				return null;
+			}
+			
+			@Override
+			public ProtocolDetectionResult attemptDetection(ByteBuf in) {
+				return ProtocolDetectionResult.REJECTED;
+			}
+			
+			@Override
+			public Object getAttachment(ByteBuf in) {
+				return "attachment";
+			}
+			
+			@Override
+			public void bind(ChannelHandlerContext ctx) {
+				bound.add(name + " " + DetectionAttachment.get(ctx.channel(), Object.class));
+			}
+		};
+	}
+	
+	private NettyByteMultiplexer.Builder mux() {
+		return NettyByteMultiplexer.builder()
+				.addProtocol(new MagicByteProtocol(null, "MAGIC".getBytes(StandardCharsets.US_ASCII), false,
+						ctx -> bound.add("magic")));
+	}
+	
+	private static EmbeddedChannel channel(NettyByteMultiplexer mux) {
+		EmbeddedChannel channel = new EmbeddedChannel(mux);
+		channel.freezeTime();
+		return channel;
+	}
+	
+	private static void advance(EmbeddedChannel channel, long millis) {
+		channel.advanceTimeBy(millis, TimeUnit.MILLISECONDS);
+		channel.runPendingTasks();
+	}
+	
+	private static ByteBuf ascii(String str) {
+		return Unpooled.copiedBuffer(str, StandardCharsets.US_ASCII);
+	}
+	
+	@Test
+	public void bindsOnSilence() {
+		EmbeddedChannel channel = channel(mux().fallbackOnSilence(fallback("silence"), 1, TimeUnit.SECONDS).build());
+		advance(channel, 500);
+		assertTrue(bound.isEmpty());
+		advance(channel, 500);
+		// Fallbacks aren't detected, so they don't have an attachment
+		assertEquals(Arrays.asList("silence null"), bound);
+		assertNull(channel.pipeline().get(NettyByteMultiplexer.class));
+		
+		// Bytes received afterwards go to the fallback's pipeline
+		channel.writeInbound(ascii("MAGIC"));
+		ByteBuf msg = channel.readInbound();
+		assertEquals("MAGIC", msg.toString(StandardCharsets.US_ASCII));
+		msg.release();
+		channel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void dataCancelsSilence() {
+		EmbeddedChannel channel = channel(mux().fallbackOnSilence(fallback("silence"), 1, TimeUnit.SECONDS).build());
+		channel.writeInbound(ascii("MA"));
+		advance(channel, 2000);
+		assertTrue(bound.isEmpty());
+		channel.writeInbound(ascii("GIC"));
+		assertEquals(Arrays.asList("magic"), bound);
+		channel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void proxyHeaderAloneIsSilence() {
+		NettyByteMultiplexer.Template mux = mux().optionalProxyProtocol()
+				.fallbackOnSilence(fallback("silence"), 1, TimeUnit.SECONDS).buildTemplate();
+		String header = "PROXY TCP4 192.0.2.1 192.0.2.2 1234 443\r\n";
+		
+		// A client that only sends the header is still waiting for the server's greeting
+		EmbeddedChannel silent = channel(mux.newHandler());
+		silent.writeInbound(ascii(header));
+		assertNotNull(silent.pipeline().get(NettyByteMultiplexer.class));
+		advance(silent, 1000);
+		assertEquals(Arrays.asList("silence null"), bound);
+		silent.finishAndReleaseAll();
+		
+		// Bytes after the header cancel the timer
+		bound.clear();
+		EmbeddedChannel speaking = channel(mux.newHandler());
+		speaking.writeInbound(ascii(header + "MA"));
+		advance(speaking, 2000);
+		assertTrue(bound.isEmpty());
+		speaking.writeInbound(ascii("GIC"));
+		assertEquals(Arrays.asList("magic"), bound);
+		speaking.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void bindsOnRejection() {
+		EmbeddedChannel channel = channel(mux().fallbackOnRejection(fallback("rejection")).build());
+		DetectionAttachment.set(channel, "earlier");
+		channel.writeInbound(ascii("MAG"));
+		assertTrue(bound.isEmpty());
+		channel.writeInbound(ascii("GOT"));
+		// The fallback's getAttachment isn't called, so the channel keeps its earlier attachment
+		assertEquals(Arrays.asList("rejection earlier"), bound);
+		assertNull(channel.pipeline().get(NettyByteMultiplexer.class));
+		ByteBuf msg = channel.readInbound();
+		assertEquals("MAGGOT", msg.toString(StandardCharsets.US_ASCII));
+		msg.release();
+		channel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void rejectsStatefulFallbacks() {
+		StatefulByteProtocol stateful = new TlsPassthroughByteProtocol(hello -> null);
+		assertThrows(IllegalArgumentException.class,
+				() -> NettyByteMultiplexer.builder().fallbackOnSilence(stateful, 1, TimeUnit.SECONDS));
+		assertThrows(IllegalArgumentException.class,
+				() -> NettyByteMultiplexer.builder().fallbackOnRejection(stateful));
+	}
+	
+}
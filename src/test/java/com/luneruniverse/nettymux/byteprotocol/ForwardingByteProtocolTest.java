@@ -0,0 +1,248 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+public class ForwardingByteProtocolTest {
+	
+	private static EventLoopGroup group;
+	private static Channel backend;
+	private static Channel server;
+	
+	/**
+	 * Echoes everything back, and closes once the client has finished sending
+	 */
+	private static class EchoHandler extends ChannelInboundHandlerAdapter {
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+			ctx.write(msg);
+		}
+		@Override
+		public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+			ctx.flush();
+		}
+		@Override
+		public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+			if (evt == ChannelInputShutdownEvent.INSTANCE)
+				ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+			else
+				ctx.fireUserEventTriggered(evt);
+		}
+	}
+	
+	/**
+	 * @param accepted Counts the connections to the backend, or null
+	 */
+	private static Channel startBackend(AtomicInteger accepted) throws InterruptedException {
+		return new ServerBootstrap()
+				.group(group)
+				.channel(NioServerSocketChannel.class)
+				.childOption(ChannelOption.ALLOW_HALF_CLOSURE, true)
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) throws Exception {
+						if (accepted != null)
+							accepted.incrementAndGet();
+						ch.pipeline().addLast(new EchoHandler());
+					}
+				})
+				.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+	}
+	
+	private static Channel startServer(NettyByteMultiplexer.Template mux) throws InterruptedException {
+		return new ServerBootstrap()
+				.group(group)
+				.channel(NioServerSocketChannel.class)
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) throws Exception {
+						ch.pipeline().addLast(mux.newHandler());
+					}
+				})
+				.bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+	}
+	
+	@BeforeAll
+	public static void start() throws InterruptedException {
+		group = new MultiThreadIoEventLoopGroup(2, NioIoHandler.newFactory());
+		
+		backend = startBackend(null);
+		SocketAddress backendAddress = backend.localAddress();
+		
+		server = startServer(NettyByteMultiplexer.builder()
+				.addProtocol(ForwardingByteProtocol.builder(backendAddress, bytes("FWD"))
+						.removeMagic(true)
+						.build())
+				.addProtocol(ForwardingByteProtocol.builder(backendAddress, bytes("POOL"))
+						.pooledConnections(2)
+						.connectTimeout(5, TimeUnit.SECONDS)
+						.build())
+				.buildTemplate());
+	}
+	
+	@AfterAll
+	public static void stop() throws InterruptedException {
+		server.close().sync();
+		backend.close().sync();
+		group.shutdownGracefully(0, 5, TimeUnit.SECONDS).sync();
+	}
+	
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		for (int i = 0; i < 500 && !condition.getAsBoolean(); i++)
+			Thread.sleep(10);
+	}
+	
+	private static byte[] bytes(String str) {
+		return str.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Send <code>request</code> in a separate thread (so both directions can be backed up at once), half-close, and
+	 * read until the server closes
+	 */
+	private static byte[] exchange(byte[] request) throws Exception {
+		return exchange(server, request);
+	}
+	private static byte[] exchange(Channel server, byte[] request) throws Exception {
+		try (Socket socket = new Socket()) {
+			socket.connect(server.localAddress(), 5000);
+			socket.setSoTimeout(10000);
+			CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+				try {
+					OutputStream out = socket.getOutputStream();
+					out.write(request);
+					out.flush();
+					socket.shutdownOutput();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			InputStream in = socket.getInputStream();
+			byte[] buf = new byte[8192];
+			for (int read; (read = in.read(buf)) != -1;)
+				response.write(buf, 0, read);
+			sent.get(10, TimeUnit.SECONDS);
+			return response.toByteArray();
+		}
+	}
+	
+	@Test
+	public void forwardsWithoutMagic() throws Exception {
+		assertArrayEquals(bytes("hello"), exchange(bytes("FWDhello")));
+	}
+	
+	@Test
+	public void forwardsWithMagicFromPool() throws Exception {
+		for (int i = 0; i < 5; i++)
+			assertArrayEquals(bytes("POOLhello " + i), exchange(bytes("POOLhello " + i)));
+	}
+	
+	@Test
+	public void relaysLargeTransfersBothWays() throws Exception {
+		byte[] payload = new byte[8 * 1024 * 1024];
+		new Random(0).nextBytes(payload);
+		System.arraycopy(bytes("FWD"), 0, payload, 0, 3);
+		assertArrayEquals(Arrays.copyOfRange(payload, 3, payload.length), exchange(payload));
+	}
+	
+	@Test
+	public void refillsPoolWithoutExtraConnections() throws Exception {
+		AtomicInteger accepted = new AtomicInteger();
+		Channel countingBackend = startBackend(accepted);
+		ForwardingByteProtocol protocol = ForwardingByteProtocol.builder(countingBackend.localAddress(), bytes("CNT"))
+				.pooledConnections(2)
+				.build();
+		Channel countingServer = startServer(NettyByteMultiplexer.builder().addProtocol(protocol).buildTemplate());
+		try {
+			for (int i = 0; i < 6; i++)
+				assertArrayEquals(bytes("CNThello " + i), exchange(countingServer, bytes("CNThello " + i)));
+			// Every connection was either used by a channel or is still pooled
+			await(() -> accepted.get() == 6 + protocol.getPooledConnections() && protocol.getPooledConnections() >= 2);
+			assertEquals(6 + protocol.getPooledConnections(), accepted.get());
+			
+			protocol.close();
+			await(() -> protocol.getPooledConnections() == 0);
+			assertEquals(0, protocol.getPooledConnections());
+			assertArrayEquals(bytes("CNTafter close"), exchange(countingServer, bytes("CNTafter close")));
+			assertEquals(0, protocol.getPooledConnections());
+		} finally {
+			countingServer.close().sync();
+			countingBackend.close().sync();
+		}
+	}
+	
+	@Test
+	public void closesIdlePooledConnections() throws Exception {
+		ForwardingByteProtocol protocol = ForwardingByteProtocol.builder(backend.localAddress(), bytes("IDLE"))
+				.pooledConnections(2)
+				.pooledIdleTimeout(200, TimeUnit.MILLISECONDS)
+				.build();
+		Channel idleServer = startServer(NettyByteMultiplexer.builder().addProtocol(protocol).buildTemplate());
+		try {
+			assertArrayEquals(bytes("IDLEhello"), exchange(idleServer, bytes("IDLEhello")));
+			await(() -> protocol.getPooledConnections() == 0);
+			assertEquals(0, protocol.getPooledConnections());
+			// The pool is refilled by the next channel
+			assertArrayEquals(bytes("IDLEagain"), exchange(idleServer, bytes("IDLEagain")));
+		} finally {
+			protocol.close();
+			idleServer.close().sync();
+		}
+	}
+	
+	@Test
+	public void doesNotPoolWhileBackendIsDown() throws Exception {
+		Channel stopped = startBackend(null);
+		SocketAddress address = stopped.localAddress();
+		stopped.close().sync();
+		ForwardingByteProtocol protocol = ForwardingByteProtocol.builder(address, bytes("DOWN"))
+				.pooledConnections(4)
+				.build();
+		Channel downServer = startServer(NettyByteMultiplexer.builder().addProtocol(protocol).buildTemplate());
+		try {
+			for (int i = 0; i < 3; i++)
+				assertArrayEquals(new byte[0], exchange(downServer, bytes("DOWNhello")));
+			assertEquals(0, protocol.getPooledConnections());
+		} finally {
+			protocol.close();
+			downServer.close().sync();
+		}
+	}
+	
+}
@@ -0,0 +1,167 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+import com.luneruniverse.nettymux.messageprotocol.HttpRouterMessageProtocol;
+import com.luneruniverse.nettymux.messageprotocol.WebSocketHttpRequestMessageProtocol;
+import com.luneruniverse.nettymux.messageprotocol.WebSocketSubprotocolMessageProtocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.pkitesting.CertificateBuilder;
+import io.netty.pkitesting.X509Bundle;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Checks that the request head is checked straight from the bytes, and that only the codec and the chosen protocol's
+ * handlers are left in the pipeline, including after an SSL handshake that selected HTTP/1.1 by ALPN
+ */
+public class HttpHeadByteProtocolTest {
+	
+	private static final String API = "GET /api/users HTTP/1.1\r\nHost: example.com\r\n\r\n";
+	private static final String WEBSOCKET = "GET /chat HTTP/1.1\r\nHost: example.com\r\nConnection: Upgrade\r\n"
+			+ "Upgrade: websocket\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n";
+	private static final ApplicationProtocolConfig ALPN = new ApplicationProtocolConfig(
+			ApplicationProtocolConfig.Protocol.ALPN, ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+			ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT, "http/1.1");
+	
+	private final List<String> requests = new ArrayList<>();
+	
+	private ChannelInboundHandlerAdapter leaf(String name) {
+		return new ChannelInboundHandlerAdapter() {
+			@Override
+			public void channelRead(ChannelHandlerContext ctx, Object msg) {
+				if (msg instanceof HttpRequest)
+					requests.add(name + " " + ((HttpRequest) msg).uri());
+				ReferenceCountUtil.release(msg);
+			}
+		};
+	}
+	
+	private NettyByteMultiplexer.Builder mux() {
+		return NettyByteMultiplexer.builder()
+				.addProtocol(new HttpHeadByteProtocol(
+						new WebSocketHttpRequestMessageProtocol(ctx -> ctx.pipeline().addLast("ws", leaf("ws"))),
+						HttpRouterMessageProtocol.builder()
+								.route("*", "/api/*", ctx -> ctx.pipeline().addLast("api", leaf("api")))
+								.build()));
+	}
+	
+	private static void assertPipeline(EmbeddedChannel channel, String leaf) {
+		assertNull(channel.pipeline().get(NettyByteMultiplexer.class));
+		assertTrue(channel.pipeline().get(HttpServerCodec.class) != null);
+		assertTrue(channel.pipeline().get(leaf) != null);
+	}
+	
+	@Test
+	public void bindsCodecAndLeafTogether() {
+		NettyByteMultiplexer.Template mux = mux().buildTemplate();
+		for (String request : new String[] {API, WEBSOCKET}) {
+			byte[] bytes = request.getBytes(StandardCharsets.US_ASCII);
+			for (int chunk : new int[] {bytes.length, 1}) {
+				EmbeddedChannel channel = new EmbeddedChannel(mux.newHandler());
+				for (int i = 0; i < bytes.length; i += chunk)
+					channel.writeInbound(Unpooled.wrappedBuffer(bytes, i, Math.min(chunk, bytes.length - i)));
+				assertPipeline(channel, request == API ? "api" : "ws");
+				channel.finishAndReleaseAll();
+			}
+		}
+		assertEquals(Arrays.asList("api /api/users", "api /api/users", "ws /chat", "ws /chat"), requests);
+		
+		EmbeddedChannel channel = new EmbeddedChannel(mux.newHandler());
+		assertThrows(DecoderException.class, () -> channel.writeInbound(Unpooled.copiedBuffer(
+				"GET /other HTTP/1.1\r\nHost: example.com\r\n\r\n", StandardCharsets.US_ASCII)));
+	}
+	
+	@Test
+	public void continuesAfterAlpnHandshake() throws Exception {
+		X509Bundle cert = new CertificateBuilder().subject("CN=localhost").setIsCertificateAuthority(true)
+				.buildSelfSigned();
+		SslContext server = SslContextBuilder.forServer(cert.toTempCertChainPem(), cert.toTempPrivateKeyPem())
+				.applicationProtocolConfig(ALPN).build();
+		SslHandler client = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE)
+				.applicationProtocolConfig(ALPN).build().newHandler(ByteBufAllocator.DEFAULT);
+		
+		EmbeddedChannel serverChannel = new EmbeddedChannel(mux().forceSsl(server).buildTemplate().newHandler());
+		EmbeddedChannel clientChannel = new EmbeddedChannel(client);
+		boolean sent = false;
+		for (int i = 0; i < 10; i++) {
+			Object msg;
+			while ((msg = clientChannel.readOutbound()) != null)
+				serverChannel.writeInbound(msg);
+			while ((msg = serverChannel.readOutbound()) != null)
+				clientChannel.writeInbound(msg);
+			if (client.handshakeFuture().isSuccess() && !sent) {
+				clientChannel.writeAndFlush(Unpooled.copiedBuffer(API, StandardCharsets.US_ASCII));
+				sent = true;
+			}
+		}
+		
+		assertEquals("http/1.1", client.applicationProtocol());
+		assertPipeline(serverChannel, "api");
+		assertEquals(Arrays.asList("api /api/users"), requests);
+		serverChannel.finishAndReleaseAll();
+		clientChannel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void bindsWithoutDetector() {
+		HttpHeadByteProtocol protocol = new HttpHeadByteProtocol(
+				WebSocketSubprotocolMessageProtocol.builder(HttpRequest.class)
+						.subprotocol("chat", ctx -> ctx.pipeline().addLast("ws", leaf("ws")))
+						.build(),
+				HttpRouterMessageProtocol.builder()
+						.route("*", "/api/*", ctx -> ctx.pipeline().addLast("api", leaf("api")))
+						.build());
+		EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		ChannelHandlerContext ctx = channel.pipeline().firstContext();
+		assertThrows(IllegalStateException.class, () -> protocol.bind(ctx));
+		
+		// The multiplexer stores the parsed head before binding, and bind chooses the protocol from it
+		ByteBuf in = Unpooled.copiedBuffer(API, StandardCharsets.US_ASCII);
+		assertEquals(ProtocolDetectionResult.DETECTED, protocol.attemptDetection(in));
+		DetectionAttachment.set(channel, protocol.getAttachment(in));
+		protocol.bind(ctx);
+		assertPipeline(channel, "api");
+		channel.writeInbound(in);
+		assertEquals(Arrays.asList("api /api/users"), requests);
+		channel.finishAndReleaseAll();
+		
+		// The attachment is replaced with the chosen protocol's
+		EmbeddedChannel ws = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		DetectionAttachment.set(ws, protocol.getAttachment(Unpooled.copiedBuffer(
+				WEBSOCKET.replace("\r\n\r\n", "\r\nSec-WebSocket-Protocol: chat\r\n\r\n"), StandardCharsets.US_ASCII)));
+		protocol.bind(ws.pipeline().firstContext());
+		assertEquals("chat", DetectionAttachment.get(ws, String.class));
+		assertTrue(ws.pipeline().get("ws") != null);
+		ws.finishAndReleaseAll();
+		
+		assertNull(protocol.getAttachment(Unpooled.copiedBuffer("GET / HTTP/1.1\r\n", StandardCharsets.US_ASCII)));
+		assertThrows(IllegalArgumentException.class, () -> new HttpHeadByteProtocol());
+	}
+	
+}
@@ -0,0 +1,110 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.luneruniverse.nettymux.DetectionLimitException;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.pkitesting.CertificateBuilder;
+import io.netty.pkitesting.X509Bundle;
+
+/**
+ * Checks that SSL handshakes are counted while they're in progress, and stop being counted once they complete or the
+ * channel closes first
+ */
+public class PendingHandshakesTest {
+	
+	private static SslContext server;
+	private static SslContext client;
+	
+	private final List<Throwable> caught = new ArrayList<>();
+	
+	@BeforeAll
+	public static void createContexts() throws Exception {
+		X509Bundle cert = new CertificateBuilder().subject("CN=localhost").setIsCertificateAuthority(true)
+				.buildSelfSigned();
+		server = SslContextBuilder.forServer(cert.toTempCertChainPem(), cert.toTempPrivateKeyPem()).build();
+		client = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+	}
+	
+	private EmbeddedChannel serverChannel(NettyByteMultiplexer.Template mux) {
+		return new EmbeddedChannel(mux.newHandler(), new ChannelInboundHandlerAdapter() {
+			@Override
+			public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+				caught.add(cause);
+			}
+		});
+	}
+	
+	/**
+	 * Send the client's first flight to the server, and the server's reply back
+	 */
+	private static void exchange(EmbeddedChannel clientChannel, EmbeddedChannel serverChannel) {
+		Object msg;
+		while ((msg = clientChannel.readOutbound()) != null)
+			serverChannel.writeInbound(msg);
+		while ((msg = serverChannel.readOutbound()) != null)
+			clientChannel.writeInbound(msg);
+	}
+	
+	@Test
+	public void countsHandshakesInProgress() {
+		NettyByteMultiplexer.Template mux = NettyByteMultiplexer.builder()
+				.addProtocol(new MagicByteProtocol(null, "MAGIC".getBytes(StandardCharsets.US_ASCII), false, ctx -> {}))
+				.forceSsl(server)
+				.maxPendingHandshakes(1)
+				.buildTemplate();
+		
+		SslHandler firstClient = client.newHandler(ByteBufAllocator.DEFAULT);
+		EmbeddedChannel first = new EmbeddedChannel(firstClient);
+		EmbeddedChannel firstServer = serverChannel(mux);
+		exchange(first, firstServer);
+		assertEquals(1, mux.getPendingHandshakes());
+		
+		// A second handshake is over the limit while the first is in progress
+		EmbeddedChannel second = new EmbeddedChannel(client.newHandler(ByteBufAllocator.DEFAULT));
+		EmbeddedChannel secondServer = serverChannel(mux);
+		exchange(second, secondServer);
+		assertEquals(1, caught.size());
+		assertEquals(DetectionLimitException.Type.PENDING_HANDSHAKES,
+				((DetectionLimitException) caught.get(0)).getType());
+		assertFalse(secondServer.isOpen());
+		assertEquals(1, mux.getPendingHandshakes());
+		
+		// The server's handshake completes once it receives the client's Finished message
+		for (int i = 0; i < 5; i++)
+			exchange(first, firstServer);
+		assertTrue(firstClient.handshakeFuture().isSuccess());
+		assertEquals(0, mux.getPendingHandshakes());
+		
+		// Closing the channel before the handshake completes also ends it
+		EmbeddedChannel third = new EmbeddedChannel(client.newHandler(ByteBufAllocator.DEFAULT));
+		EmbeddedChannel thirdServer = serverChannel(mux);
+		exchange(third, thirdServer);
+		assertEquals(1, mux.getPendingHandshakes());
+		thirdServer.close();
+		assertEquals(0, mux.getPendingHandshakes());
+		
+		first.finishAndReleaseAll();
+		firstServer.finishAndReleaseAll();
+		second.finishAndReleaseAll();
+		third.finishAndReleaseAll();
+	}
+	
+}
@@ -0,0 +1,133 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+
+/**
+ * Checks that PROXY protocol headers are parsed and skipped before detection, whether they arrive in one read or
+ * split across several
+ */
+public class ProxyHeaderTest {
+	
+	private static final NettyByteMultiplexer.Template MUX = NettyByteMultiplexer.builder()
+			.addProtocol(new HttpByteProtocol(ctx -> {}))
+			.requireProxyProtocol()
+			.buildTemplate();
+	
+	private static final String REQUEST = "GET / HTTP/1.1\r\n\r\n";
+	private static final byte[] V1 = ascii("PROXY TCP4 192.0.2.1 198.51.100.1 56324 443\r\n");
+	/**
+	 * PROXY over TCP4, with the authority <code>example.com</code> and a TLS connection using TLSv1.3 with a verified
+	 * client certificate for <code>alice</code>
+	 */
+	private static final byte[] V2 = ByteBufUtil.decodeHexDump(("0d0a0d0a000d0a515549540a 21 11 0034"
+			+ "c0000201 c6336401 dc04 01bb"
+			+ "02 000b 6578616d706c652e636f6d"
+			+ "20 0017 05 00000000 21 0007 544c5376312e33 22 0005 616c696365").replace(" ", ""));
+	
+	private static byte[] ascii(String str) {
+		return str.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * @return The channel after detecting HTTP, with the request as its only inbound message
+	 */
+	private static EmbeddedChannel detect(NettyByteMultiplexer.Template mux, byte[] header, int split) {
+		EmbeddedChannel channel = new EmbeddedChannel(mux.newHandler());
+		channel.writeInbound(Unpooled.wrappedBuffer(header, 0, split));
+		channel.writeInbound(Unpooled.wrappedBuffer(header, split, header.length - split));
+		channel.writeInbound(Unpooled.wrappedBuffer(ascii(REQUEST)));
+		ByteBuf request = channel.readInbound();
+		assertEquals(REQUEST, request.toString(StandardCharsets.US_ASCII));
+		request.release();
+		return channel;
+	}
+	
+	@Test
+	public void parsesVersion1() {
+		for (int split = 0; split <= V1.length; split++) {
+			EmbeddedChannel channel = detect(MUX, V1, split);
+			ProxyHeader header = channel.attr(ProxyHeader.KEY).get();
+			assertEquals(1, header.getVersion());
+			assertEquals(new InetSocketAddress("192.0.2.1", 56324), ProxyHeader.getSourceAddress(channel));
+			assertEquals(new InetSocketAddress("198.51.100.1", 443), header.getDestinationAddress());
+			channel.finishAndReleaseAll();
+		}
+	}
+	
+	@Test
+	public void parsesVersion2WithTlvs() {
+		for (int split = 0; split <= V2.length; split++) {
+			EmbeddedChannel channel = detect(MUX, V2, split);
+			ProxyHeader header = channel.attr(ProxyHeader.KEY).get();
+			assertEquals(2, header.getVersion());
+			assertEquals(ProxyHeader.Command.PROXY, header.getCommand());
+			assertEquals(new InetSocketAddress("192.0.2.1", 56324), header.getSourceAddress());
+			assertEquals("example.com", header.getAuthority());
+			assertTrue(header.getSsl().isSsl());
+			assertTrue(header.getSsl().isClientCertificateVerified());
+			assertEquals("TLSv1.3", header.getSsl().getVersion());
+			assertEquals("alice", header.getSsl().getCommonName());
+			assertNull(header.getSsl().getCipher());
+			channel.finishAndReleaseAll();
+		}
+	}
+	
+	@Test
+	public void usesConnectionAddressForLocal() {
+		byte[] local = ByteBufUtil.decodeHexDump("0d0a0d0a000d0a515549540a20000000");
+		EmbeddedChannel channel = detect(MUX, local, local.length);
+		assertEquals(ProxyHeader.Command.LOCAL, channel.attr(ProxyHeader.KEY).get().getCommand());
+		assertEquals(channel.remoteAddress(), ProxyHeader.getSourceAddress(channel));
+		channel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void rejectsMissingOrInvalidHeaders() {
+		assertInvalid(MUX, ascii(REQUEST), InvalidByteProtocolException.Type.MISSING_PROXY_HEADER);
+		assertInvalid(MUX, ascii("PROXY TCP4 192.0.2.1 198.51.100.1 99999 443\r\n"),
+				InvalidByteProtocolException.Type.INVALID_PROXY_HEADER);
+		byte[] truncated = V2.clone();
+		truncated[15]++;
+		truncated = Arrays.copyOf(truncated, truncated.length + 1);
+		assertInvalid(MUX, truncated, InvalidByteProtocolException.Type.INVALID_PROXY_HEADER);
+	}
+	
+	private static void assertInvalid(NettyByteMultiplexer.Template mux, byte[] bytes,
+			InvalidByteProtocolException.Type type) {
+		EmbeddedChannel channel = new EmbeddedChannel(mux.newHandler());
+		DecoderException e = assertThrows(DecoderException.class,
+				() -> channel.writeInbound(Unpooled.wrappedBuffer(bytes)));
+		assertEquals(type, ((InvalidByteProtocolException) e.getCause()).getType());
+	}
+	
+	@Test
+	public void optionalHeaderCanBeAbsent() {
+		NettyByteMultiplexer.Template mux = NettyByteMultiplexer.builder()
+				.addProtocol(new HttpByteProtocol(ctx -> {}))
+				.optionalProxyProtocol()
+				.buildTemplate();
+		EmbeddedChannel channel = detect(mux, new byte[0], 0);
+		assertNull(channel.attr(ProxyHeader.KEY).get());
+		channel.finishAndReleaseAll();
+		
+		channel = detect(mux, V1, V1.length);
+		assertEquals(1, channel.attr(ProxyHeader.KEY).get().getVersion());
+		channel.finishAndReleaseAll();
+	}
+	
+}
@@ -0,0 +1,110 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.pkitesting.CertificateBuilder;
+import io.netty.pkitesting.X509Bundle;
+import io.netty.util.AttributeKey;
+
+/**
+ * Checks which hostnames an {@link SslContextCache} keeps, and that {@link NettyByteMultiplexer.Builder#forceSsl}
+ * with one picks the certificate by SNI
+ */
+public class SslContextCacheTest {
+	
+	private static final AttributeKey<Boolean> BOUND = AttributeKey.valueOf(SslContextCacheTest.class, "bound");
+	
+	private static SslContext server(String cn) throws Exception {
+		X509Bundle cert = new CertificateBuilder().subject("CN=" + cn).setIsCertificateAuthority(true)
+				.buildSelfSigned();
+		return SslContextBuilder.forServer(cert.toTempCertChainPem(), cert.toTempPrivateKeyPem()).build();
+	}
+	
+	@Test
+	public void keepsOnlyLoadedHostnames() throws Exception {
+		SslContext defaultContext = server("default");
+		SslContext a = server("a.example");
+		SslContext b = server("b.example");
+		List<String> loaded = new ArrayList<>();
+		SslContextCache cache = new SslContextCache(defaultContext, hostname -> {
+			loaded.add(hostname);
+			return hostname.equals("a.example") ? a : hostname.equals("b.example") ? b : null;
+		}, 1);
+		
+		assertSame(defaultContext, cache.map(null));
+		assertSame(defaultContext, cache.map("unknown.example"));
+		assertSame(defaultContext, cache.map("unknown.example"));
+		assertSame(a, cache.map("a.example"));
+		assertSame(a, cache.map("a.example"));
+		// Loading b.example forgets a.example, since only one hostname is kept
+		assertSame(b, cache.map("b.example"));
+		assertSame(a, cache.map("a.example"));
+		assertEquals(Arrays.asList("unknown.example", "unknown.example", "a.example", "b.example", "a.example"),
+				loaded);
+		
+		cache.invalidate("a.example");
+		assertSame(a, cache.map("a.example"));
+		assertEquals(6, loaded.size());
+	}
+	
+	@Test
+	public void choosesCertificateBySni() throws Exception {
+		SslContext a = server("a.example");
+		SslContextCache cache = new SslContextCache(server("default"),
+				hostname -> hostname.equals("a.example") ? a : null);
+		NettyByteMultiplexer.Template mux = NettyByteMultiplexer.builder()
+				.addProtocol(new MagicByteProtocol(null, "MAGIC".getBytes(StandardCharsets.US_ASCII), false,
+						ctx -> ctx.channel().attr(BOUND).set(true)))
+				.forceSsl(cache)
+				.buildTemplate();
+		SslContext client = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+		
+		assertEquals("CN=a.example", handshake(mux, client.newHandler(ByteBufAllocator.DEFAULT, "a.example", 443)));
+		assertEquals("CN=default", handshake(mux, client.newHandler(ByteBufAllocator.DEFAULT, "b.example", 443)));
+		assertEquals("CN=default", handshake(mux, client.newHandler(ByteBufAllocator.DEFAULT)));
+	}
+	
+	/**
+	 * @return The subject of the certificate the server presented
+	 */
+	private static String handshake(NettyByteMultiplexer.Template mux, SslHandler client) throws Exception {
+		EmbeddedChannel serverChannel = new EmbeddedChannel(mux.newHandler());
+		EmbeddedChannel clientChannel = new EmbeddedChannel(client);
+		boolean sent = false;
+		for (int i = 0; i < 10; i++) {
+			Object msg;
+			while ((msg = clientChannel.readOutbound()) != null)
+				serverChannel.writeInbound(msg);
+			while ((msg = serverChannel.readOutbound()) != null)
+				clientChannel.writeInbound(msg);
+			if (client.handshakeFuture().isSuccess() && !sent) {
+				clientChannel.writeAndFlush(Unpooled.copiedBuffer("MAGIC", StandardCharsets.US_ASCII));
+				sent = true;
+			}
+		}
+		assertTrue(serverChannel.attr(BOUND).get());
+		String subject = ((X509Certificate) client.engine().getSession().getPeerCertificates()[0])
+				.getSubjectX500Principal().getName();
+		serverChannel.finishAndReleaseAll();
+		clientChannel.finishAndReleaseAll();
+		return subject;
+	}
+	
+}
@@ -0,0 +1,236 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+
+/**
+ * Checks that {@link TlsClientHello#parse(ByteBuf)} reads real ClientHellos, waits for truncated ones, and rejects
+ * oversized or malformed ones, and that {@link TlsPassthroughByteProtocol} detects ClientHellos as they arrive and can
+ * bind without a detector
+ */
+public class TlsClientHelloTest {
+	
+	private static byte[] hello;
+	
+	@BeforeAll
+	public static void createClientHello() throws Exception {
+		SslContext client = SslContextBuilder.forClient()
+				.applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+						ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+						ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT, "h2", "http/1.1"))
+				.build();
+		EmbeddedChannel channel = new EmbeddedChannel(client.newHandler(ByteBufAllocator.DEFAULT, "Example.COM", 443));
+		ByteBuf out = Unpooled.buffer();
+		ByteBuf msg;
+		while ((msg = channel.readOutbound()) != null) {
+			out.writeBytes(msg);
+			msg.release();
+		}
+		hello = new byte[out.readableBytes()];
+		out.readBytes(hello);
+		channel.finishAndReleaseAll();
+	}
+	
+	/**
+	 * @return The offset of the extension's type in {@link #hello}
+	 */
+	private static int extension(byte[] hello, int type) {
+		int i = 5 + 4 + 2 + 32;
+		i += 1 + (hello[i] & 0xFF);
+		i += 2 + ((hello[i] & 0xFF) << 8 | hello[i + 1] & 0xFF);
+		i += 1 + (hello[i] & 0xFF);
+		int end = i + 2 + ((hello[i] & 0xFF) << 8 | hello[i + 1] & 0xFF);
+		for (i += 2; i < end; i += 4 + ((hello[i + 2] & 0xFF) << 8 | hello[i + 3] & 0xFF)) {
+			if (((hello[i] & 0xFF) << 8 | hello[i + 1] & 0xFF) == type)
+				return i;
+		}
+		throw new AssertionError("Missing extension " + type);
+	}
+	
+	/**
+	 * @param sizes The lengths of the first records, with the rest of the handshake message in one more record
+	 * @return {@link #hello} with the handshake message split over several records
+	 */
+	private static byte[] fragment(int... sizes) {
+		ByteBuf fragmented = Unpooled.buffer();
+		int i = 5;
+		for (int size : sizes) {
+			fragmented.writeBytes(hello, 0, 3).writeShort(size).writeBytes(hello, i, size);
+			i += size;
+		}
+		fragmented.writeBytes(hello, 0, 3).writeShort(hello.length - i).writeBytes(hello, i, hello.length - i);
+		byte[] bytes = new byte[fragmented.readableBytes()];
+		fragmented.readBytes(bytes);
+		return bytes;
+	}
+	
+	private static TlsClientHello parse(byte[] bytes) {
+		ByteBuf in = Unpooled.wrappedBuffer(bytes);
+		TlsClientHello output = TlsClientHello.parse(in);
+		assertEquals(0, in.readerIndex());
+		return output;
+	}
+	
+	@Test
+	public void parsesServerNameAndAlpn() {
+		TlsClientHello parsed = parse(hello);
+		assertEquals("example.com", parsed.getServerName());
+		assertEquals(Arrays.asList("h2", "http/1.1"), parsed.getAlpnProtocols());
+	}
+	
+	@Test
+	public void waitsForTruncated() {
+		for (int length = 0; length < hello.length; length++)
+			assertNull(parse(Arrays.copyOf(hello, length)), "length " + length);
+	}
+	
+	@Test
+	public void joinsFragmentedRecords() {
+		// Split the handshake message over two records
+		int handshakeLength = hello.length - 5;
+		int first = handshakeLength / 2;
+		ByteBuf fragmented = Unpooled.buffer()
+				.writeBytes(hello, 0, 3).writeShort(first).writeBytes(hello, 5, first)
+				.writeBytes(hello, 0, 3).writeShort(handshakeLength - first).writeBytes(hello, 5 + first,
+						handshakeLength - first);
+		byte[] bytes = new byte[fragmented.readableBytes()];
+		fragmented.readBytes(bytes);
+		assertEquals("example.com", parse(bytes).getServerName());
+		for (int length = 0; length < bytes.length; length++)
+			assertNull(parse(Arrays.copyOf(bytes, length)), "length " + length);
+	}
+	
+	@Test
+	public void rejectsOversized() {
+		byte[] record = hello.clone();
+		record[3] = (byte) 0x48; // Longer than the largest record allowed
+		assertThrows(IllegalArgumentException.class, () -> parse(record));
+		
+		byte[] handshake = hello.clone();
+		handshake[6] = 0x02; // Longer than the largest ClientHello allowed
+		assertThrows(IllegalArgumentException.class, () -> parse(handshake));
+		
+		byte[] empty = hello.clone();
+		empty[3] = 0;
+		empty[4] = 0;
+		assertThrows(IllegalArgumentException.class, () -> parse(empty));
+	}
+	
+	@Test
+	public void rejectsMalformed() {
+		byte[] notHandshake = hello.clone();
+		notHandshake[0] = 0x17;
+		assertThrows(IllegalArgumentException.class, () -> parse(notHandshake));
+		
+		byte[] notClientHello = hello.clone();
+		notClientHello[5] = 0x02;
+		assertThrows(IllegalArgumentException.class, () -> parse(notClientHello));
+		
+		// An extension that runs past the end of the extensions
+		byte[] extension = hello.clone();
+		int alpn = extension(extension, 16);
+		extension[alpn + 2] = (byte) 0xFF;
+		assertThrows(IllegalArgumentException.class, () -> parse(extension));
+		
+		// A server name list that runs past the end of its extension
+		byte[] serverName = hello.clone();
+		int sni = extension(serverName, 0);
+		serverName[sni + 4] = (byte) 0xFF;
+		assertThrows(IllegalArgumentException.class, () -> parse(serverName));
+		
+		// An ALPN protocol that runs past the end of the protocol list
+		byte[] protocol = hello.clone();
+		protocol[alpn + 6] = (byte) 0xFF;
+		assertThrows(IllegalArgumentException.class, () -> parse(protocol));
+	}
+	
+	@Test
+	public void detectsAsRecordsArrive() {
+		List<TlsClientHello> routed = new ArrayList<>();
+		TlsPassthroughByteProtocol protocol = new TlsPassthroughByteProtocol(parsed -> {
+			routed.add(parsed);
+			return new InetSocketAddress("127.0.0.1", 1);
+		});
+		// The handshake header can be split across records too
+		for (byte[] bytes : Arrays.asList(hello, fragment(100), fragment(1, 2, 100))) {
+			ByteProtocolDetector detector = protocol.newDetector();
+			ByteBuf in = Unpooled.buffer();
+			for (int i = 0; i < bytes.length - 1; i++) {
+				in.writeByte(bytes[i]);
+				assertEquals(ProtocolDetectionResult.UNKNOWN, detector.attemptDetection(in), "length " + i);
+			}
+			in.writeByte(bytes[bytes.length - 1]);
+			assertEquals(ProtocolDetectionResult.DETECTED, detector.attemptDetection(in));
+			assertEquals("example.com", ((TlsClientHello) detector.getAttachment()).getServerName());
+		}
+		assertEquals(3, routed.size());
+		
+		// Invalid headers are rejected as soon as they arrive, without waiting for the rest of the ClientHello
+		byte[] notClientHello = fragment(1, 2, 1);
+		notClientHello[5] = 0x02;
+		assertEquals(ProtocolDetectionResult.REJECTED,
+				protocol.newDetector().attemptDetection(Unpooled.wrappedBuffer(notClientHello, 0, 20)));
+		byte[] notHandshake = fragment(100);
+		notHandshake[105] = 0x17;
+		assertEquals(ProtocolDetectionResult.REJECTED,
+				protocol.newDetector().attemptDetection(Unpooled.wrappedBuffer(notHandshake, 0, 110)));
+		
+		// Too many records are only noticed once the ClientHello is parsed
+		int[] sizes = new int[64];
+		Arrays.fill(sizes, 1);
+		byte[] tooFragmented = fragment(sizes);
+		ByteProtocolDetector detector = protocol.newDetector();
+		assertEquals(ProtocolDetectionResult.UNKNOWN,
+				detector.attemptDetection(Unpooled.wrappedBuffer(tooFragmented, 0, tooFragmented.length - 1)));
+		assertEquals(ProtocolDetectionResult.REJECTED,
+				detector.attemptDetection(Unpooled.wrappedBuffer(tooFragmented)));
+		assertEquals(3, routed.size());
+	}
+	
+	@Test
+	public void bindsWithoutDetector() {
+		List<TlsClientHello> routed = new ArrayList<>();
+		TlsPassthroughByteProtocol protocol = new TlsPassthroughByteProtocol(parsed -> {
+			routed.add(parsed);
+			return parsed.getServerName() == null ? new InetSocketAddress("127.0.0.1", 1) : null;
+		});
+		EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		ChannelHandlerContext ctx = channel.pipeline().firstContext();
+		assertThrows(IllegalStateException.class, () -> protocol.bind(ctx));
+		
+		// The multiplexer stores the attachment before binding, and bind routes the ClientHello from it
+		ByteBuf in = Unpooled.wrappedBuffer(hello);
+		assertEquals(ProtocolDetectionResult.REJECTED, protocol.attemptDetection(in));
+		Object attachment = protocol.getAttachment(in);
+		DetectionAttachment.set(channel, attachment);
+		assertThrows(IllegalStateException.class, () -> protocol.bind(ctx));
+		assertEquals(2, routed.size());
+		assertSame(attachment, routed.get(1));
+		assertNull(protocol.getAttachment(Unpooled.wrappedBuffer(hello, 0, 10)));
+		channel.finishAndReleaseAll();
+	}
+	
+}
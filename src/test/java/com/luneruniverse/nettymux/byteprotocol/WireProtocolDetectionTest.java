@@ -0,0 +1,120 @@
+package com.luneruniverse.nettymux.byteprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.util.AttributeKey;
+
+/**
+ * Checks the built-in protocols against the first bytes sent by real clients, both when they arrive at once and one
+ * byte at a time, and that each client is rejected by every other protocol
+ */
+public class WireProtocolDetectionTest {
+	
+	private static final AttributeKey<String> BOUND = AttributeKey.valueOf(WireProtocolDetectionTest.class, "bound");
+	
+	private static final Map<String, ByteProtocol> PROTOCOLS = new LinkedHashMap<>();
+	static {
+		PROTOCOLS.put("ssh", new SshByteProtocol(bind("ssh")));
+		PROTOCOLS.put("redis", new RedisByteProtocol(bind("redis")));
+		PROTOCOLS.put("mqtt", new MqttByteProtocol(bind("mqtt")));
+		PROTOCOLS.put("postgres", new PostgresByteProtocol(bind("postgres")));
+		PROTOCOLS.put("proxy", new HAProxyByteProtocol(bind("proxy")));
+		PROTOCOLS.put("http", new HttpByteProtocol(bind("http")));
+		PROTOCOLS.put("h2", new Http2ByteProtocol(bind("h2")));
+		PROTOCOLS.put("kafka", new KafkaByteProtocol(bind("kafka")));
+	}
+	private static final NettyByteMultiplexer.Template MUX = NettyByteMultiplexer.builder()
+			.addProtocols(PROTOCOLS.values().toArray(new ByteProtocol[0]))
+			.buildTemplate();
+	
+	private static Consumer<ChannelHandlerContext> bind(String name) {
+		return ctx -> ctx.channel().attr(BOUND).set(name);
+	}
+	
+	private static byte[] ascii(String str) {
+		return str.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	private static byte[] hex(String hex) {
+		return ByteBufUtil.decodeHexDump(hex.replace(" ", ""));
+	}
+	
+	public static Stream<Arguments> clients() {
+		return Stream.of(
+				Arguments.of("ssh", ascii("SSH-2.0-OpenSSH_9.6p1 Ubuntu-3ubuntu13\r\n"), null),
+				Arguments.of("redis", ascii("*1\r\n$4\r\nPING\r\n"), null),
+				Arguments.of("redis", ascii("*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$1\r\nv\r\n"), null),
+				Arguments.of("mqtt", hex("10 0d 0004 4d515454 04 02 003c 0001 63"), 4),
+				Arguments.of("mqtt", hex("10 0d 0004 4d515454 05 02 003c 00 0000"), 5),
+				Arguments.of("mqtt", hex("10 0e 0006 4d5149736470 03 02 003c 0000"), 3),
+				Arguments.of("postgres", hex("00000008 04d2162f"), PostgresByteProtocol.Request.SSL),
+				Arguments.of("postgres", hex("00000017 00030000 7573657200 706f73746772657300 00"),
+						PostgresByteProtocol.Request.STARTUP),
+				Arguments.of("proxy", ascii("PROXY TCP4 192.0.2.1 198.51.100.1 56324 443\r\n"), 1),
+				Arguments.of("proxy", hex("0d0a0d0a000d0a515549540a 21 11 000c c0000201 c6336401 dc04 01bb"), 2),
+				Arguments.of("http", ascii("GET / HTTP/1.1\r\nHost: example.com\r\n\r\n"), HttpMethod.GET),
+				Arguments.of("h2", ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"), null),
+				// ApiVersions v3 from librdkafka
+				Arguments.of("kafka", hex("00000024 0012 0003 00000001 0007 72646b61666b61 00"
+						+ "0b 6c696272646b61666b61 06 322e332e30 00"), 18));
+	}
+	
+	private static void assertDetected(EmbeddedChannel channel, String name, Object attachment) {
+		assertEquals(name, channel.attr(BOUND).get());
+		if (attachment == null)
+			assertNull(DetectionAttachment.get(channel, Object.class));
+		else
+			assertEquals(attachment, DetectionAttachment.get(channel, Object.class));
+		assertNull(channel.pipeline().get(NettyByteMultiplexer.class));
+		channel.finishAndReleaseAll();
+	}
+	
+	@ParameterizedTest
+	@MethodSource("clients")
+	public void detectsAtOnce(String name, byte[] bytes, Object attachment) {
+		EmbeddedChannel channel = new EmbeddedChannel(MUX.newHandler());
+		channel.writeInbound(Unpooled.wrappedBuffer(bytes));
+		assertDetected(channel, name, attachment);
+	}
+	
+	@ParameterizedTest
+	@MethodSource("clients")
+	public void detectsByteByByte(String name, byte[] bytes, Object attachment) {
+		EmbeddedChannel channel = new EmbeddedChannel(MUX.newHandler());
+		for (int i = 0; i < bytes.length; i++)
+			channel.writeInbound(Unpooled.wrappedBuffer(bytes, i, 1));
+		assertDetected(channel, name, attachment);
+	}
+	
+	@ParameterizedTest
+	@MethodSource("clients")
+	public void isRejectedByOtherProtocols(String name, byte[] bytes, Object attachment) {
+		ByteBuf in = Unpooled.wrappedBuffer(bytes);
+		PROTOCOLS.forEach((other, protocol) -> {
+			if (!other.equals(name))
+				assertEquals(ProtocolDetectionResult.REJECTED, protocol.attemptDetection(in), other);
+		});
+		assertEquals(0, in.readerIndex());
+	}
+	
+}
@@ -0,0 +1,35 @@
+package com.luneruniverse.nettymux.messageprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+/**
+ * Checks that the stateless and stateful detection of a {@link MagicMessageProtocol} remove the same messages
+ */
+public class MagicMessageProtocolTest {
+	
+	private static final MagicMessageProtocol<String> MAGIC =
+			new MagicMessageProtocol<>(Arrays.asList("hello", "there"), true, ctx -> {});
+	
+	@Test
+	public void removesOnlyTheMagic() {
+		List<String> in = new ArrayList<>(Arrays.asList("hello", "there", "data"));
+		assertEquals(ProtocolDetectionResult.DETECTED, MAGIC.attemptDetection(in));
+		assertEquals(Arrays.asList("data"), in);
+		
+		MessageProtocolDetector<String> detector = MAGIC.newDetector();
+		in = new ArrayList<>(Arrays.asList("hello"));
+		assertEquals(ProtocolDetectionResult.UNKNOWN, detector.attemptDetection(in));
+		in.addAll(Arrays.asList("there", "data"));
+		assertEquals(ProtocolDetectionResult.DETECTED, detector.attemptDetection(in));
+		assertEquals(Arrays.asList("data"), in);
+	}
+	
+}
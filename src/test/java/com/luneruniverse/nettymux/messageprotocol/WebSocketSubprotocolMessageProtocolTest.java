@@ -0,0 +1,138 @@
+package com.luneruniverse.nettymux.messageprotocol;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.ProtocolDetectionResult;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * Checks that {@link WebSocketSubprotocolMessageProtocol} negotiates subprotocols in the client's order, prefers the
+ * ones registered for the path, and falls back to the binds for WebSockets without a subprotocol
+ */
+public class WebSocketSubprotocolMessageProtocolTest {
+	
+	private final List<String> bound = new ArrayList<>();
+	
+	private final WebSocketSubprotocolMessageProtocol<HttpRequest> protocol =
+			WebSocketSubprotocolMessageProtocol.builder(HttpRequest.class)
+					.subprotocol("chat", ctx -> bound.add("chat"))
+					.subprotocol("json", ctx -> bound.add("json"))
+					.subprotocol("/v2", "json", ctx -> bound.add("/v2 json"))
+					.subprotocol("/v2", "binary", ctx -> bound.add("/v2 binary"))
+					.noSubprotocol(ctx -> bound.add("none"))
+					.noSubprotocol("/raw", ctx -> bound.add("/raw none"))
+					.build();
+	
+	private static HttpRequest upgrade(String uri, String... subprotocols) {
+		HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+		request.headers()
+				.set(HttpHeaderNames.CONNECTION, "keep-alive, Upgrade")
+				.set(HttpHeaderNames.UPGRADE, "websocket");
+		for (String subprotocol : subprotocols)
+			request.headers().add(HttpHeaderNames.SEC_WEBSOCKET_PROTOCOL, subprotocol);
+		return request;
+	}
+	
+	/**
+	 * @return What was bound and the attachment, or null if the request was rejected
+	 */
+	private String negotiate(HttpRequest request) {
+		MessageProtocolDetector<HttpRequest> detector = protocol.newDetector();
+		if (detector.attemptDetection(new ArrayList<>(Collections.singletonList(request)))
+				== ProtocolDetectionResult.REJECTED)
+			return null;
+		bound.clear();
+		detector.bind(null);
+		return bound.get(0) + " (" + detector.getAttachment() + ")";
+	}
+	
+	@Test
+	public void followsClientPreference() {
+		assertEquals("chat (chat)", negotiate(upgrade("/", "chat, json")));
+		assertEquals("json (json)", negotiate(upgrade("/", "json,chat")));
+		assertEquals("json (json)", negotiate(upgrade("/", "unknown", "json ,  chat")));
+		assertEquals("chat (chat)", negotiate(upgrade("/?json", "other, chat", "json")));
+		// Subprotocols are case-sensitive
+		assertEquals("chat (chat)", negotiate(upgrade("/", "JSON, chat")));
+	}
+	
+	@Test
+	public void prefersPathSubprotocols() {
+		assertEquals("/v2 json (json)", negotiate(upgrade("/v2", "json")));
+		assertEquals("/v2 binary (binary)", negotiate(upgrade("/v2?x=1", "chat, binary")));
+		// Only once none of the path's subprotocols are offered are the ones for any path tried
+		assertEquals("chat (chat)", negotiate(upgrade("/v2", "chat")));
+		assertEquals("json (json)", negotiate(upgrade("/v1", "binary, json")));
+	}
+	
+	@Test
+	public void fallsBackWithoutSubprotocol() {
+		assertEquals("none (null)", negotiate(upgrade("/")));
+		assertEquals("/raw none (null)", negotiate(upgrade("/raw#top")));
+		assertEquals("none (null)", negotiate(upgrade("/v2")));
+		// Offering only unknown subprotocols doesn't fall back
+		assertNull(negotiate(upgrade("/", "unknown")));
+		assertNull(negotiate(upgrade("/raw", "binary")));
+		
+		WebSocketSubprotocolMessageProtocol<HttpRequest> required =
+				WebSocketSubprotocolMessageProtocol.builder(HttpRequest.class).subprotocol("chat", ctx -> {}).build();
+		List<HttpRequest> in = new ArrayList<>(Collections.singletonList(upgrade("/")));
+		assertEquals(ProtocolDetectionResult.REJECTED, required.attemptDetection(in));
+	}
+	
+	@Test
+	public void rejectsOtherRequests() {
+		HttpRequest plain = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+		assertNull(negotiate(plain));
+		HttpRequest h2c = upgrade("/", "chat");
+		h2c.headers().set(HttpHeaderNames.UPGRADE, "h2c");
+		assertNull(negotiate(h2c));
+		HttpRequest noConnection = upgrade("/", "chat");
+		noConnection.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+		assertNull(negotiate(noConnection));
+	}
+	
+	@Test
+	public void bindsWithoutDetector() {
+		EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+		ChannelHandlerContext ctx = channel.pipeline().firstContext();
+		assertThrows(IllegalStateException.class, () -> protocol.bind(ctx));
+		
+		List<HttpRequest> in = new ArrayList<>(Collections.singletonList(upgrade("/v2", "binary")));
+		assertEquals(ProtocolDetectionResult.DETECTED, protocol.attemptDetection(in));
+		DetectionAttachment.set(channel, protocol.getAttachment(in));
+		protocol.bind(ctx);
+		assertEquals(Collections.singletonList("/v2 binary"), bound);
+		// The request is replaced by the negotiated subprotocol, like with a detector
+		assertEquals("binary", DetectionAttachment.get(channel, Object.class));
+		
+		in.set(0, upgrade("/"));
+		DetectionAttachment.set(channel, protocol.getAttachment(in));
+		protocol.bind(ctx);
+		assertNull(DetectionAttachment.get(channel, Object.class));
+		
+		DetectionAttachment.set(channel, upgrade("/", "unknown"));
+		assertThrows(IllegalStateException.class, () -> protocol.bind(ctx));
+		assertNull(DetectionAttachment.get(channel, Object.class));
+		channel.finishAndReleaseAll();
+	}
+	
+}
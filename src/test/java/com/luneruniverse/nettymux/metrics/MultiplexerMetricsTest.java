@@ -0,0 +1,205 @@
+package com.luneruniverse.nettymux.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.luneruniverse.nettymux.AdmissionLimit;
+import com.luneruniverse.nettymux.DetectionAttachment;
+import com.luneruniverse.nettymux.byteprotocol.HttpByteProtocol;
+import com.luneruniverse.nettymux.byteprotocol.InvalidByteProtocolException;
+import com.luneruniverse.nettymux.byteprotocol.MagicByteProtocol;
+import com.luneruniverse.nettymux.byteprotocol.NettyByteMultiplexer;
+import com.luneruniverse.nettymux.messageprotocol.InvalidMessageProtocolException;
+import com.luneruniverse.nettymux.messageprotocol.MagicMessageProtocol;
+import com.luneruniverse.nettymux.messageprotocol.NettyMessageMultiplexer;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.pkitesting.CertificateBuilder;
+import io.netty.pkitesting.X509Bundle;
+
+/**
+ * Checks the buckets of {@link Histogram} and what a {@link NettyByteMultiplexer} and
+ * {@link NettyMessageMultiplexer} report to {@link InMemoryMultiplexerMetrics}, including across an SSL handshake
+ */
+public class MultiplexerMetricsTest {
+	
+	private static final MagicByteProtocol MAGIC =
+			new MagicByteProtocol(null, "MAGIC".getBytes(StandardCharsets.US_ASCII), false, ctx -> {});
+	
+	@Test
+	public void histogramBuckets() {
+		assertEquals(0, Histogram.getBucket(0));
+		assertEquals(1, Histogram.getBucket(1));
+		assertEquals(2, Histogram.getBucket(2));
+		assertEquals(2, Histogram.getBucket(3));
+		assertEquals(11, Histogram.getBucket(1024));
+		assertEquals(Histogram.BUCKETS - 1, Histogram.getBucket(Long.MAX_VALUE));
+		assertEquals(3, Histogram.getUpperBound(2));
+		assertEquals(Long.MAX_VALUE, Histogram.getUpperBound(Histogram.BUCKETS - 1));
+		
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.snapshot().getValueAtPercentile(50));
+		for (long value : new long[] {-5, 1, 2, 3, 100})
+			histogram.record(value);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(5, snapshot.getCount());
+		assertEquals(1, snapshot.getCount(0));
+		assertEquals(2, snapshot.getCount(2));
+		assertEquals(106, snapshot.getSum());
+		assertEquals(100, snapshot.getMax());
+		assertEquals(106 / 5.0, snapshot.getMean());
+		assertEquals(0, snapshot.getValueAtPercentile(0));
+		assertEquals(3, snapshot.getValueAtPercentile(60));
+		// The upper bound of the last bucket is capped at the largest value
+		assertEquals(100, snapshot.getValueAtPercentile(100));
+	}
+	
+	@Test
+	public void recordsDetectionsFailuresAndRejections() {
+		InMemoryMultiplexerMetrics metrics = new InMemoryMultiplexerMetrics();
+		NettyByteMultiplexer.Template mux = NettyByteMultiplexer.builder()
+				.addProtocol(MAGIC, AdmissionLimit.builder().maxConnections(1).build())
+				.metrics(metrics)
+				.buildTemplate();
+		
+		EmbeddedChannel detected = new EmbeddedChannel(mux.newHandler());
+		detected.writeInbound(Unpooled.copiedBuffer("MAG", StandardCharsets.US_ASCII));
+		detected.writeInbound(Unpooled.copiedBuffer("IC", StandardCharsets.US_ASCII));
+		
+		EmbeddedChannel rejected = new EmbeddedChannel(mux.newHandler());
+		rejected.writeInbound(Unpooled.copiedBuffer("MAGIC", StandardCharsets.US_ASCII));
+		
+		EmbeddedChannel failed = new EmbeddedChannel(mux.newHandler());
+		assertThrows(DecoderException.class,
+				() -> failed.writeInbound(Unpooled.copiedBuffer("OTHER", StandardCharsets.US_ASCII)));
+		
+		InMemoryMultiplexerMetrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(Collections.singletonMap(MAGIC, 1L), snapshot.getDetections());
+		assertEquals(Collections.emptyMap(), snapshot.getAlpnDetections());
+		assertEquals(Collections.singletonMap(MAGIC, 1L), snapshot.getRejections());
+		assertEquals(Collections.singletonMap(InvalidByteProtocolException.Type.FAILED_TO_DETECT, 1L),
+				snapshot.getFailures());
+		// Rejections aren't recorded in the histograms
+		assertEquals(2, snapshot.getReads().getCount());
+		assertEquals(2, snapshot.getReads().getMax());
+		assertEquals(10, snapshot.getBuffered().getSum());
+		detected.finishAndReleaseAll();
+		rejected.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void countsMessageReads() {
+		InMemoryMultiplexerMetrics metrics = new InMemoryMultiplexerMetrics();
+		MagicMessageProtocol<String> magic = new MagicMessageProtocol<>(Arrays.asList("a", "b", "c"), false, ctx -> {});
+		NettyMessageMultiplexer.Template<String> mux = NettyMessageMultiplexer.builder(String.class)
+				.addProtocol(magic).metrics(metrics).buildTemplate();
+		
+		EmbeddedChannel detected = new EmbeddedChannel(mux.newHandler());
+		detected.writeInbound("a");
+		detected.writeInbound("b");
+		detected.writeInbound("c");
+		EmbeddedChannel failed = new EmbeddedChannel(mux.newHandler());
+		assertThrows(DecoderException.class, () -> failed.writeInbound("a", "c"));
+		
+		InMemoryMultiplexerMetrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(Collections.singletonMap(magic, 1L), snapshot.getDetections());
+		assertEquals(Collections.singletonMap(InvalidMessageProtocolException.class, 1L),
+				snapshot.getFailures());
+		assertEquals(2, snapshot.getReads().getCount());
+		assertEquals(5, snapshot.getReads().getSum());
+		assertEquals(5, snapshot.getBuffered().getSum());
+		detected.finishAndReleaseAll();
+		failed.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void countsReadsBeforeHandshake() throws Exception {
+		X509Bundle cert = new CertificateBuilder().subject("CN=localhost").setIsCertificateAuthority(true)
+				.buildSelfSigned();
+		SslContext server = SslContextBuilder.forServer(cert.toTempCertChainPem(), cert.toTempPrivateKeyPem()).build();
+		SslHandler client = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).build()
+				.newHandler(ByteBufAllocator.DEFAULT);
+		InMemoryMultiplexerMetrics metrics = new InMemoryMultiplexerMetrics();
+		
+		EmbeddedChannel serverChannel = new EmbeddedChannel(NettyByteMultiplexer.builder()
+				.addProtocol(MAGIC).forceSsl(server).metrics(metrics).build());
+		EmbeddedChannel clientChannel = new EmbeddedChannel(client);
+		boolean sent = false;
+		for (int i = 0; i < 10; i++) {
+			Object msg;
+			while ((msg = clientChannel.readOutbound()) != null)
+				serverChannel.writeInbound(msg);
+			while ((msg = serverChannel.readOutbound()) != null)
+				clientChannel.writeInbound(msg);
+			if (client.handshakeFuture().isSuccess() && !sent) {
+				clientChannel.writeAndFlush(Unpooled.copiedBuffer("MAGIC", StandardCharsets.US_ASCII));
+				sent = true;
+			}
+		}
+		
+		InMemoryMultiplexerMetrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(Collections.singletonMap(MAGIC, 1L), snapshot.getDetections());
+		// The ClientHello was read before the handler for the decrypted bytes was added
+		assertTrue(snapshot.getReads().getMax() >= 2);
+		serverChannel.finishAndReleaseAll();
+		clientChannel.finishAndReleaseAll();
+	}
+	
+	@Test
+	public void recordsAlpnDetections() throws Exception {
+		ApplicationProtocolConfig alpn = new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+				ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+				ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT, "http/1.1");
+		X509Bundle cert = new CertificateBuilder().subject("CN=localhost").setIsCertificateAuthority(true)
+				.buildSelfSigned();
+		SslContext server = SslContextBuilder.forServer(cert.toTempCertChainPem(), cert.toTempPrivateKeyPem())
+				.applicationProtocolConfig(alpn).build();
+		SslHandler client = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE)
+				.applicationProtocolConfig(alpn).build().newHandler(ByteBufAllocator.DEFAULT);
+		InMemoryMultiplexerMetrics metrics = new InMemoryMultiplexerMetrics();
+		List<Object> attachments = new ArrayList<>();
+		HttpByteProtocol http = new HttpByteProtocol(
+				ctx -> attachments.add(DetectionAttachment.get(ctx.channel(), Object.class)));
+		
+		EmbeddedChannel serverChannel = new EmbeddedChannel(NettyByteMultiplexer.builder()
+				.addProtocol(http).forceSsl(server).metrics(metrics).build());
+		DetectionAttachment.set(serverChannel, "earlier");
+		EmbeddedChannel clientChannel = new EmbeddedChannel(client);
+		for (int i = 0; i < 10; i++) {
+			Object msg;
+			while ((msg = clientChannel.readOutbound()) != null)
+				serverChannel.writeInbound(msg);
+			while ((msg = serverChannel.readOutbound()) != null)
+				clientChannel.writeInbound(msg);
+		}
+		
+		// The protocol is bound once the handshake is done, before any decrypted bytes could detect it
+		assertEquals("http/1.1", client.applicationProtocol());
+		assertEquals(Collections.singletonList("earlier"), attachments);
+		assertNull(serverChannel.pipeline().get(NettyByteMultiplexer.class));
+		InMemoryMultiplexerMetrics.Snapshot snapshot = metrics.snapshot();
+		assertEquals(Collections.emptyMap(), snapshot.getDetections());
+		assertEquals(Collections.singletonMap(http, 1L), snapshot.getAlpnDetections());
+		serverChannel.finishAndReleaseAll();
+		clientChannel.finishAndReleaseAll();
+	}
+	
+}